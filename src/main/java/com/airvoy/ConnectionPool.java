@@ -0,0 +1,128 @@
+package com.airvoy;
+
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Fixed-size pool of read connections. Each connection keeps its own prepared statement for every query in the
+// fixed query set, prepared on first use and reused until the pool closes, so concurrent readers neither share a
+// connection nor re-prepare. A connection that fails is closed and replaced when it is released.
+public class ConnectionPool {
+
+    private final static LoggerFactory logger = new LoggerFactory("ConnectionPool");
+
+    public static class PooledConnection {
+
+        private Connection connection;
+        private final PreparedStatement[] statements;
+
+        private PooledConnection(Connection connection, int numQueries) {
+            this.connection = connection;
+            this.statements = new PreparedStatement[numQueries];
+        }
+
+        public PreparedStatement getStatement(int queryIndex, String sql) throws SQLException {
+            PreparedStatement statement = statements[queryIndex];
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements[queryIndex] = statement;
+            }
+            return statement;
+        }
+
+        private void close() {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] != null) {
+                    try {
+                        statements[i].close();
+                    } catch (SQLException e) {
+                        logger.warn("Exception closing statement: " + e.getMessage());
+                    }
+                    statements[i] = null;
+                }
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Exception closing connection: " + e.getMessage());
+            }
+        }
+
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int numQueries;
+    private final long timeoutMillis;
+    private final BlockingQueue<PooledConnection> idle;
+    private final PooledConnection[] connections;
+
+    public ConnectionPool(String url, String user, String password, int size, int numQueries, long timeoutMillis)
+            throws SQLException {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.numQueries = numQueries;
+        this.timeoutMillis = timeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.connections = new PooledConnection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new PooledConnection(DriverManager.getConnection(url, user, password), numQueries);
+            idle.add(connections[i]);
+        }
+        logger.info("Opened " + size + " pooled connections to " + url);
+    }
+
+    // Waits up to the pool timeout for a free connection
+    public PooledConnection borrow() throws SQLException {
+        try {
+            PooledConnection pooledConnection = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (pooledConnection == null) {
+                throw new SQLException("Timed out after " + timeoutMillis + "ms waiting for a database connection");
+            }
+            return pooledConnection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection");
+        }
+    }
+
+    public void release(PooledConnection pooledConnection, boolean healthy) {
+        if (!healthy && !isValid(pooledConnection)) {
+            pooledConnection.close();
+            try {
+                pooledConnection.connection = DriverManager.getConnection(url, user, password);
+            } catch (SQLException e) {
+                logger.warn("Could not reopen pooled connection: " + e.getMessage());
+            }
+        }
+        idle.offer(pooledConnection);
+    }
+
+    private boolean isValid(PooledConnection pooledConnection) {
+        try {
+            return pooledConnection.connection.isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    public int getNumIdle() {
+        return idle.size();
+    }
+
+    public void close() {
+        for (PooledConnection pooledConnection : connections) {
+            pooledConnection.close();
+        }
+        idle.clear();
+    }
+
+}
@@ -11,21 +11,58 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 
 public class DatabaseManager {
 
     private final static LoggerFactory logger = new LoggerFactory("DatabaseManager");
 
+    private final static String MARKET_COLUMNS = "Markets.Name, Markets.Symbol, Markets.Expiry, Markets.QueuePriority, "
+            + "Markets.TopOrderPriority, Markets.AuctionInterval, Markets.Outcome, Markets.ComplementSymbol";
+
+    // Every read the exchange makes. Each pooled connection prepares these once and reuses them.
+    public enum Query {
+        GET_MARKETS("SELECT Name, Symbol, Expiry FROM Markets"),
+        GET_MARKET_CONFIGS("SELECT " + MARKET_COLUMNS + " FROM Markets"),
+        GET_USERS("SELECT Username, Balance FROM Users"),
+        GET_MARKET("SELECT Markets.Id, " + MARKET_COLUMNS + " FROM Markets WHERE Symbol=?"),
+        GET_ORDER("SELECT Price, Amount, Username, Type, Symbol FROM Orderbooks WHERE Id=?");
+
+        private final String sql;
+
+        Query(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+    }
+
+    public interface ResultHandler<T> {
+        T handle(ResultSet resultSet) throws SQLException;
+    }
+
     private final String url;
     private final String user;
     private final String password;
+    private final int poolSize;
+    // Used for schema setup and ad hoc writes
     private Connection connection;
+    private ConnectionPool connectionPool;
     private int entryCount = 0;
+    // Order updates and trades are written behind matching on a separate connection
+    private PersistenceWriter persistenceWriter;
 
     public DatabaseManager(String url, String user, String password) {
+        this(url, user, password, 4);
+    }
+
+    public DatabaseManager(String url, String user, String password, int poolSize) {
         this.url = url;
         this.user = user;
         this.password = password;
+        this.poolSize = poolSize;
         try {
             init();
         } catch (Exception e) {
@@ -41,7 +78,8 @@ public class DatabaseManager {
         executeStatement("CREATE TABLE Users(Username VARCHAR(20) PRIMARY KEY, Balance DOUBLE, " +
                 "CreationTime BIGINT);");
         executeStatement("CREATE TABLE Markets(Id VARCHAR(100) PRIMARY KEY, Name VARCHAR(100), " +
-                "Symbol VARCHAR(5), Expiry BIGINT, CreationTime BIGINT);");
+                "Symbol VARCHAR(5), Expiry BIGINT, CreationTime BIGINT, QueuePriority VARCHAR(20), " +
+                "TopOrderPriority BOOLEAN, AuctionInterval BIGINT, Outcome VARCHAR(10), ComplementSymbol VARCHAR(5));");
         executeStatement("CREATE TABLE OrderUpdates(SequenceNumber BIGINT PRIMARY KEY AUTO_INCREMENT, " +
                 "Id VARCHAR(100), Username VARCHAR(100), Symbol VARCHAR(5), Type VARCHAR(20), Price DOUBLE, " +
                 "Amount DOUBLE, OrderTime BIGINT);");
@@ -49,6 +87,9 @@ public class DatabaseManager {
                 "Username VARCHAR(100), Price DOUBLE, Amount DOUBLE)");
         executeStatement("CREATE TABLE Trades(Id VARCHAR(100) PRIMARY KEY, Maker VARCHAR(20), " +
                 "Taker VARCHAR(20), Price DOUBLE, Amount DOUBLE, Fee DOUBLE, TradeTime BIGINT);");
+        persistenceWriter = new PersistenceWriter(url, user, password, 1 << 16, 1000, 50);
+        persistenceWriter.start();
+        connectionPool = new ConnectionPool(url, user, password, poolSize, Query.values().length, 5000);
         logger.info("Initialized database.");
     }
 
@@ -60,54 +101,77 @@ public class DatabaseManager {
     }
 
     public void addMarket(Market market) {
-        String command = "INSERT INTO Markets(Id, Name, Symbol, Expiry, CreationTime) VALUES("
+        String command = "INSERT INTO Markets(Id, Name, Symbol, Expiry, CreationTime, QueuePriority, TopOrderPriority, AuctionInterval, Outcome, ComplementSymbol) VALUES("
                 + "\"" + market.getId() + "\", \"" + market.getName() + "\", \"" + market.getSymbol() + "\", "
-                + String.valueOf(market.getExpiry()) + ", " + String.valueOf(market.getCreationTime()) + ")";
+                + String.valueOf(market.getExpiry()) + ", " + String.valueOf(market.getCreationTime()) + ", \""
+                + market.getQueuePriorityString() + "\", " + String.valueOf(market.isTopOrderPriority()) + ", "
+                + String.valueOf(market.getAuctionInterval()) + ", \"" + market.getOutcomeString() + "\", "
+                + (market.getComplementSymbol() == null ? "NULL" : "\"" + market.getComplementSymbol() + "\"") + ")";
         logger.info("Market command: " + command);
         executeStatement(command);
     }
 
     public void addOrderUpdate(Order order) {
-        String command = "INSERT INTO OrderUpdates(Id, Username, Symbol, Type, Price, Amount, OrderTime) VALUES("
-                + "\"" + order.getId() + "\", \"" + order.getAccount().getUsername() + "\", \"" + order.getSymbol()
-                + "\", \"" + order.getTypeString() + "\", " + String.valueOf(order.getPrice()) + ", "
-                + String.valueOf(order.getSide() * order.getAmount()) + ", "
-                + String.valueOf(order.getTimestamp()) + ")";
-        executeStatement(command);
-        logger.info("Executed orderbook update command: " + command);
-        command = "INSERT INTO Orderbooks (Id, Username, Symbol, Price, Amount) VALUES("
-                + "\"" + order.getId() + "\", \"" + order.getAccount().getUsername() + "\", \"" + order.getSymbol()
-                + "\", " + String.valueOf(order.getPrice()) + ", " + String.valueOf(order.getSide() * order.getAmount())
-                + ") ON DUPLICATE KEY UPDATE Price=" + String.valueOf(order.getPrice())
-                + ", Amount=" + String.valueOf(order.getSide() * order.getAmount());
-        executeStatement(command);
-        logger.info("Executed orderbook command: " + command);
+        addOrderUpdate(order.getId(), order.getAccount().getUsername(), order.getSymbol(), order.getType(),
+                order.getPrice(), order.getSide() * order.getAmount(), order.getTimestamp());
+    }
+
+    // Queued for the persistence writer; returns once the event is queued, blocking only while the queue is full
+    public void addOrderUpdate(long id, String username, String symbol, Order.Type type, long price, long signedAmount,
+                               long timestamp) {
+        if (persistenceWriter != null) {
+            persistenceWriter.enqueue(PersistenceWriter.Event.orderUpdate(id, username, symbol,
+                    Order.getTypeString(type), price, signedAmount, timestamp));
+        }
     }
 
     public void addTrade(Trade trade) {
-        String command = "INSERT INTO Trades(Id, Maker, Taker, Price, Amount, Fee, TradeTime) VALUES("
-                + "\"" + trade.getId() + "\", \"" + trade.getMakerAccount().getUsername() + "\", \""
-                + trade.getTakerAccount().getUsername() + "\", " + String.valueOf(trade.getPrice()) + ", "
-                + String.valueOf(trade.getAmount()) + ", " + String.valueOf(trade.getFee()) + ", "
-                + String.valueOf(trade.getTimestamp()) + ")";
-        logger.info("Command: " + command);
-        executeStatement(command);
+        if (persistenceWriter != null) {
+            persistenceWriter.enqueue(PersistenceWriter.Event.trade(trade.getId(), trade.getMakerAccount().getUsername(),
+                    trade.getTakerAccount().getUsername(), trade.getPrice(), trade.getAmount(), trade.getFee(),
+                    trade.getTimestamp()));
+        }
+    }
+
+    public PersistenceWriter getPersistenceWriter() {
+        return persistenceWriter;
     }
 
-    public ResultSet executeQuery(String query) {
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    // Runs a fixed query on a pooled connection and hands its rows to the handler, which must not keep the
+    // ResultSet. Returns null if the query fails or no connection frees up in time.
+    public <T> T query(Query query, ResultHandler<T> handler, Object... parameters) {
+        if (connectionPool == null) {
+            logger.warn("No database connection for query " + query);
+            return null;
+        }
+        ConnectionPool.PooledConnection pooledConnection = null;
+        boolean healthy = true;
         try {
-            PreparedStatement statement = connection.prepareStatement(query);
-            logger.info("Executed query: " + query);
-            return statement.executeQuery();
-        } catch (Exception e) {
-            logger.warn("Exception executing statement: " + e.getMessage());
+            pooledConnection = connectionPool.borrow();
+            PreparedStatement statement = pooledConnection.getStatement(query.ordinal(), query.getSql());
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return handler.handle(resultSet);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+            logger.warn("Exception executing query " + query + ": " + e.getMessage());
+        } finally {
+            if (pooledConnection != null) {
+                connectionPool.release(pooledConnection, healthy);
+            }
         }
         return null;
     }
 
     public void executeStatement(String command) {
-        try {
-            PreparedStatement statement = connection.prepareStatement(command);
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
             statement.executeUpdate();
             logger.info("Executed statement: " + command);
         } catch (Exception e) {
@@ -3,8 +3,17 @@ package com.airvoy;
 import com.airvoy.model.Account;
 import com.airvoy.model.Market;
 import com.airvoy.model.Order;
+import com.airvoy.model.utils.FixedPoint;
 import com.airvoy.model.utils.LoggerFactory;
+import com.airvoy.trading.AuctionScheduler;
+import com.airvoy.trading.CommandJournal;
 import com.airvoy.trading.ExchangeManager;
+import com.airvoy.trading.MarketDataPublisher;
+import com.airvoy.trading.PnlPublisher;
+import com.airvoy.trading.Sequencer;
+import com.airvoy.trading.SnapshotManager;
+
+import java.io.IOException;
 
 public class Main {
 
@@ -21,8 +30,52 @@ public class Main {
         DatabaseManager databaseManager = new DatabaseManager(url, user, password);
         addInitialMarkets(databaseManager);
         addInitialAccounts(databaseManager);
-        ExchangeManager exchangeManager = new ExchangeManager(databaseManager);
-        addInitialOrders(databaseManager, exchangeManager);
+        int matchingThreads;
+        try {
+            matchingThreads = Integer.parseInt(System.getenv("MATCHING_THREADS"));
+        } catch (NumberFormatException nfe) {
+            matchingThreads = Runtime.getRuntime().availableProcessors();
+        }
+        int partitionCapacity;
+        try {
+            partitionCapacity = Integer.parseInt(System.getenv("MATCHING_QUEUE_CAPACITY"));
+        } catch (NumberFormatException nfe) {
+            partitionCapacity = 1 << 14;
+        }
+        ExchangeManager exchangeManager = new ExchangeManager(databaseManager, matchingThreads, partitionCapacity);
+        CommandJournal journal = openJournal();
+        String snapshotDirectory = System.getenv("SNAPSHOT_DIR");
+        SnapshotManager snapshotManager = new SnapshotManager(exchangeManager,
+                snapshotDirectory != null ? snapshotDirectory : "snapshots");
+        exchangeManager.setSnapshotManager(snapshotManager);
+        long snapshotSequence;
+        try {
+            snapshotSequence = snapshotManager.loadLatest();
+        } catch (Exception e) {
+            logger.warn("Could not restore snapshot, not starting: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (snapshotSequence == 0 && (journal == null || journal.isEmpty())) {
+            addInitialOrders(databaseManager, exchangeManager, journal);
+        } else if (journal != null) {
+            try {
+                journal.replay(exchangeManager, snapshotSequence);
+            } catch (IOException e) {
+                logger.warn("Could not replay journal: " + e.getMessage());
+            }
+        }
+        Sequencer sequencer = new Sequencer(exchangeManager, 1 << 16, journal);
+        sequencer.start();
+        long snapshotInterval;
+        try {
+            snapshotInterval = Long.parseLong(System.getenv("SNAPSHOT_INTERVAL_MS"));
+        } catch (NumberFormatException nfe) {
+            snapshotInterval = 60000;
+        }
+        snapshotManager.start(sequencer, snapshotInterval);
+        AuctionScheduler auctionScheduler = new AuctionScheduler(exchangeManager, sequencer);
+        auctionScheduler.start();
         logger.info("Starting server...");
         int port;
         try {
@@ -30,10 +83,48 @@ public class Main {
         } catch (NumberFormatException nfe) {
             port = 9001;
         }
-        Server server = new Server(port, databaseManager, exchangeManager);
+        long pnlInterval;
+        try {
+            pnlInterval = Long.parseLong(System.getenv("PNL_INTERVAL_MS"));
+        } catch (NumberFormatException nfe) {
+            pnlInterval = 500;
+        }
+        PnlPublisher pnlPublisher = new PnlPublisher(exchangeManager.getMarketDataPublisher());
+        exchangeManager.getMarketDataPublisher().setPnlPublisher(pnlPublisher);
+        pnlPublisher.start(pnlInterval);
+        int marketDataQueueCapacity;
+        try {
+            marketDataQueueCapacity = Integer.parseInt(System.getenv("MARKET_DATA_QUEUE_CAPACITY"));
+        } catch (NumberFormatException nfe) {
+            marketDataQueueCapacity = 1024;
+        }
+        MarketDataPublisher marketDataPublisher = exchangeManager.getMarketDataPublisher();
+        marketDataPublisher.setQueueCapacity(marketDataQueueCapacity);
+        marketDataPublisher.start(10);
+        Server server = new Server(port, databaseManager, exchangeManager, sequencer);
+        server.setPnlPublisher(pnlPublisher);
         server.start();
     }
 
+    private static CommandJournal openJournal() {
+        String path = System.getenv("JOURNAL_PATH");
+        if (path == null) {
+            path = "journal.dat";
+        }
+        int syncBatch;
+        try {
+            syncBatch = Integer.parseInt(System.getenv("JOURNAL_SYNC_BATCH"));
+        } catch (NumberFormatException nfe) {
+            syncBatch = 64;
+        }
+        try {
+            return new CommandJournal(path, 64L << 20, syncBatch);
+        } catch (IOException e) {
+            logger.warn("Could not open journal " + path + ", running without one: " + e.getMessage());
+            return null;
+        }
+    }
+
     private static void configureLogging() {
         System.setProperty("java.util.logging.SimpleFormatter.format",
                 "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS %4$s %3$s: %5$s%6$s%n");
@@ -42,7 +133,7 @@ public class Main {
     public static void addInitialAccounts(DatabaseManager databaseManager) {
         long currentTime = System.currentTimeMillis();
         Account user1 = new Account("user1");
-        databaseManager.addUser(user1.getUsername(), 1.23124, currentTime);
+        databaseManager.addUser(user1.getUsername(), 10.23124, currentTime);
         Account user2 = new Account("user2");
         databaseManager.addUser(user2.getUsername(), 3.1234, currentTime);
         Account user3 = new Account("user3");
@@ -55,26 +146,41 @@ public class Main {
         databaseManager.addMarket(newMarket);
     }
 
-    public static void addInitialOrders(DatabaseManager databaseManager, ExchangeManager exchangeManager) {
-        Market market = Market.fromSymbol(databaseManager, "TRUMP");
-        Account user1 = new Account("user1");
+    public static void addInitialOrders(DatabaseManager databaseManager, ExchangeManager exchangeManager,
+                                        CommandJournal journal) {
+        Market market = exchangeManager.getMarketRegistry().get("TRUMP");
+        Account user1 = exchangeManager.getAccountRegistry().get("user1");
+        if (market == null || user1 == null) {
+            logger.warn("Seed market or account missing, not adding initial orders");
+            return;
+        }
         Order newOrder;
-        newOrder = new Order(market, Order.BUY, .4, 1, user1, Order.Type.LIMIT);
-        databaseManager.addOrderUpdate(newOrder);
-        exchangeManager.submitOrder(newOrder, false);
-        newOrder = new Order(market, Order.BUY, .3, 2, user1, Order.Type.LIMIT);
-        databaseManager.addOrderUpdate(newOrder);
-        exchangeManager.submitOrder(newOrder, false);
-        newOrder = new Order(market, Order.BUY, .3, .5, user1, Order.Type.LIMIT);
-        databaseManager.addOrderUpdate(newOrder);
-        exchangeManager.submitOrder(newOrder, false);
-        newOrder = new Order(market, Order.SELL, .5, 1, user1, Order.Type.LIMIT);
-        databaseManager.addOrderUpdate(newOrder);
-        exchangeManager.submitOrder(newOrder, false);
-        newOrder = new Order(market, Order.SELL, .6, 2.5, user1, Order.Type.LIMIT);
-        databaseManager.addOrderUpdate(newOrder);
-        exchangeManager.submitOrder(newOrder, false);
+        newOrder = new Order(market, Order.BUY, FixedPoint.toPrice(.4), FixedPoint.toLots(1), user1, Order.Type.LIMIT);
+        addInitialOrder(databaseManager, exchangeManager, journal, newOrder);
+        newOrder = new Order(market, Order.BUY, FixedPoint.toPrice(.3), FixedPoint.toLots(2), user1, Order.Type.LIMIT);
+        addInitialOrder(databaseManager, exchangeManager, journal, newOrder);
+        newOrder = new Order(market, Order.BUY, FixedPoint.toPrice(.3), FixedPoint.toLots(.5), user1, Order.Type.LIMIT);
+        addInitialOrder(databaseManager, exchangeManager, journal, newOrder);
+        newOrder = new Order(market, Order.SELL, FixedPoint.toPrice(.5), FixedPoint.toLots(1), user1, Order.Type.LIMIT);
+        addInitialOrder(databaseManager, exchangeManager, journal, newOrder);
+        newOrder = new Order(market, Order.SELL, FixedPoint.toPrice(.6), FixedPoint.toLots(2.5), user1, Order.Type.LIMIT);
+        addInitialOrder(databaseManager, exchangeManager, journal, newOrder);
         logger.info("Added initial data.");
     }
 
+    // Seed orders are journaled like sequenced commands so a restart replays them instead of seeding again
+    private static void addInitialOrder(DatabaseManager databaseManager, ExchangeManager exchangeManager,
+                                        CommandJournal journal, Order order) {
+        long sequence = 0;
+        if (journal != null) {
+            try {
+                sequence = journal.appendSubmit(order, false);
+            } catch (IOException e) {
+                logger.warn("Could not journal initial order: " + e.getMessage());
+            }
+        }
+        // The engine queues the resulting order updates for persistence
+        exchangeManager.submitOrder(order, sequence, false);
+    }
+
 }
@@ -0,0 +1,408 @@
+package com.airvoy;
+
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Write-behind persistence for order updates and trades. Matching threads enqueue events into a bounded queue;
+// one writer thread drains them into reusable parameterised statements and commits each batch as one
+// transaction. A batch is flushed when it reaches maxBatch events or when its oldest event has waited maxLagMillis,
+// which bounds how far the database trails matching. When the queue is full, producers block until the writer
+// catches up; how often and for how long that happens is exposed along with queue depth and lag.
+// A batch that fails because the connection was lost is retried with backoff on a reopened connection until it
+// goes through; one that fails on a healthy connection is written one event at a time, and only the events that
+// still fail are logged and dropped. The Orderbooks table holds open orders only: each batch deletes the rows of
+// the orders it touches and inserts those still open, so the SQL is plain enough for any JDBC database.
+public class PersistenceWriter implements Runnable {
+
+    private final static LoggerFactory logger = new LoggerFactory("PersistenceWriter");
+
+    private final static String INSERT_ORDER_UPDATE = "INSERT INTO OrderUpdates(Id, Username, Symbol, Type, Price, "
+            + "Amount, OrderTime) VALUES(?, ?, ?, ?, ?, ?, ?)";
+    private final static String DELETE_ORDERBOOK = "DELETE FROM Orderbooks WHERE Id=?";
+    private final static String INSERT_ORDERBOOK = "INSERT INTO Orderbooks(Id, Username, Symbol, Price, Amount) "
+            + "VALUES(?, ?, ?, ?, ?)";
+    private final static String INSERT_TRADE = "INSERT INTO Trades(Id, Maker, Taker, Price, Amount, Fee, TradeTime) "
+            + "VALUES(?, ?, ?, ?, ?, ?, ?)";
+
+    private final static long MIN_RETRY_MILLIS = 100;
+    private final static long MAX_RETRY_MILLIS = 10000;
+
+    public enum EventType {
+        ORDER_UPDATE, TRADE
+    }
+
+    // Copies the fields it needs when it is created, so the order or trade can keep changing afterwards
+    public static class Event {
+
+        private final EventType type;
+        private final long id;
+        // Order owner, or trade maker
+        private final String username;
+        // Order symbol, or trade taker
+        private final String symbolOrTaker;
+        private final String orderType;
+        private final long price;
+        private final long amount;
+        private final long fee;
+        private final long timestamp;
+        private final long enqueueNanos = System.nanoTime();
+
+        private Event(EventType type, long id, String username, String symbolOrTaker, String orderType, long price,
+                      long amount, long fee, long timestamp) {
+            this.type = type;
+            this.id = id;
+            this.username = username;
+            this.symbolOrTaker = symbolOrTaker;
+            this.orderType = orderType;
+            this.price = price;
+            this.amount = amount;
+            this.fee = fee;
+            this.timestamp = timestamp;
+        }
+
+        // Amount is signed by side
+        public static Event orderUpdate(long id, String username, String symbol, String orderType, long price,
+                                        long signedAmount, long timestamp) {
+            return new Event(EventType.ORDER_UPDATE, id, username, symbol, orderType, price, signedAmount, 0, timestamp);
+        }
+
+        public static Event trade(long id, String maker, String taker, long price, long amount, long fee, long timestamp) {
+            return new Event(EventType.TRADE, id, maker, taker, null, price, amount, fee, timestamp);
+        }
+
+        @Override
+        public String toString() {
+            if (type == EventType.ORDER_UPDATE) {
+                return "order update " + id + " (" + username + ", " + symbolOrTaker + ", " + orderType + ", "
+                        + FixedPoint.fromPrice(price) + ", " + FixedPoint.fromLots(amount) + ")";
+            }
+            return "trade " + id + " (" + username + ", " + symbolOrTaker + ", " + FixedPoint.fromPrice(price) + ", "
+                    + FixedPoint.fromLots(amount) + ")";
+        }
+
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final BlockingQueue<Event> queue;
+    private final int maxBatch;
+    private final long maxLagNanos;
+    private Connection connection;
+    private PreparedStatement insertOrderUpdate;
+    private PreparedStatement deleteOrderbook;
+    private PreparedStatement insertOrderbook;
+    private PreparedStatement insertTrade;
+    private final List<Event> batch;
+    private volatile boolean running = false;
+    private Thread writerThread;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile long lastLagNanos = 0;
+    private volatile long maxObservedLagNanos = 0;
+
+    public PersistenceWriter(String url, String user, String password, int capacity, int maxBatch, long maxLagMillis)
+            throws SQLException {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.batch = new ArrayList<>(maxBatch);
+        open();
+    }
+
+    private void open() throws SQLException {
+        connection = DriverManager.getConnection(url, user, password);
+        connection.setAutoCommit(false);
+        insertOrderUpdate = connection.prepareStatement(INSERT_ORDER_UPDATE);
+        deleteOrderbook = connection.prepareStatement(DELETE_ORDERBOOK);
+        insertOrderbook = connection.prepareStatement(INSERT_ORDERBOOK);
+        insertTrade = connection.prepareStatement(INSERT_TRADE);
+    }
+
+    private void close() {
+        try {
+            insertOrderUpdate.close();
+            deleteOrderbook.close();
+            insertOrderbook.close();
+            insertTrade.close();
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Exception closing persistence connection: " + e.getMessage());
+        }
+    }
+
+    public void start() {
+        running = true;
+        writerThread = new Thread(this, "persistence-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Writes whatever is still queued, then closes the statements and the connection
+    public void stop() throws InterruptedException {
+        running = false;
+        if (writerThread != null) {
+            writerThread.join();
+        }
+        close();
+    }
+
+    // Blocks while the queue is full
+    public void enqueue(Event event) {
+        if (!queue.offer(event)) {
+            blockedCount.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                queue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while queueing persistence event " + event.id);
+                return;
+            } finally {
+                blockedNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        enqueued.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.enqueueNanos + maxLagNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    Event next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                logger.warn("Persistence writer interrupted");
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+        logger.info("Persistence writer stopped after " + written.get() + " events");
+    }
+
+    // Returns once the events are written or dropped; a lost connection is retried for as long as the writer runs
+    private void write(List<Event> events) throws InterruptedException {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (true) {
+            try {
+                writeBatch(events);
+                written.addAndGet(events.size());
+                break;
+            } catch (SQLException e) {
+                rollback();
+                if (isValid()) {
+                    if (events.size() == 1) {
+                        failed.incrementAndGet();
+                        logger.warn("Could not write " + events.get(0) + ", dropping it: " + e.getMessage());
+                    } else {
+                        logger.warn("Could not write batch of " + events.size() + " events, writing them one at a "
+                                + "time: " + e.getMessage());
+                        for (Event event : events) {
+                            write(Collections.singletonList(event));
+                        }
+                    }
+                    return;
+                }
+                if (!running) {
+                    failed.addAndGet(events.size());
+                    logger.warn("Could not write batch of " + events.size() + " events while stopping, dropping it: "
+                            + e.getMessage());
+                    return;
+                }
+                retries.incrementAndGet();
+                logger.warn("Lost persistence connection writing batch of " + events.size() + " events, retrying in "
+                        + retryMillis + "ms: " + e.getMessage());
+                Thread.sleep(retryMillis);
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                reopen();
+            }
+        }
+        batches.incrementAndGet();
+        long lag = System.nanoTime() - events.get(0).enqueueNanos;
+        lastLagNanos = lag;
+        if (lag > maxObservedLagNanos) {
+            maxObservedLagNanos = lag;
+        }
+    }
+
+    // One transaction; only the last update of each order in the batch decides its Orderbooks row
+    private void writeBatch(List<Event> events) throws SQLException {
+        Map<Long, Event> lastOrderUpdates = new LinkedHashMap<>();
+        boolean hasTrades = false;
+        for (Event event : events) {
+            if (event.type == EventType.ORDER_UPDATE) {
+                addOrderUpdate(event);
+                lastOrderUpdates.put(event.id, event);
+            } else {
+                addTrade(event);
+                hasTrades = true;
+            }
+        }
+        if (!lastOrderUpdates.isEmpty()) {
+            boolean hasOpenOrders = false;
+            for (Event event : lastOrderUpdates.values()) {
+                deleteOrderbook.setString(1, String.valueOf(event.id));
+                deleteOrderbook.addBatch();
+                if (event.amount != 0) {
+                    addOrderbook(event);
+                    hasOpenOrders = true;
+                }
+            }
+            insertOrderUpdate.executeBatch();
+            deleteOrderbook.executeBatch();
+            if (hasOpenOrders) {
+                insertOrderbook.executeBatch();
+            }
+        }
+        if (hasTrades) {
+            insertTrade.executeBatch();
+        }
+        connection.commit();
+    }
+
+    private void rollback() {
+        try {
+            insertOrderUpdate.clearBatch();
+            deleteOrderbook.clearBatch();
+            insertOrderbook.clearBatch();
+            insertTrade.clearBatch();
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.warn("Could not roll back batch: " + e.getMessage());
+        }
+    }
+
+    private boolean isValid() {
+        try {
+            return connection.isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // A connection that cannot be reopened yet is tried again on the next retry
+    private void reopen() {
+        close();
+        try {
+            open();
+            logger.info("Reopened persistence connection to " + url);
+        } catch (SQLException e) {
+            logger.warn("Could not reopen persistence connection: " + e.getMessage());
+        }
+    }
+
+    private void addOrderUpdate(Event event) throws SQLException {
+        insertOrderUpdate.setString(1, String.valueOf(event.id));
+        insertOrderUpdate.setString(2, event.username);
+        insertOrderUpdate.setString(3, event.symbolOrTaker);
+        insertOrderUpdate.setString(4, event.orderType);
+        insertOrderUpdate.setDouble(5, FixedPoint.fromPrice(event.price));
+        insertOrderUpdate.setDouble(6, FixedPoint.fromLots(event.amount));
+        insertOrderUpdate.setLong(7, event.timestamp);
+        insertOrderUpdate.addBatch();
+    }
+
+    private void addOrderbook(Event event) throws SQLException {
+        insertOrderbook.setString(1, String.valueOf(event.id));
+        insertOrderbook.setString(2, event.username);
+        insertOrderbook.setString(3, event.symbolOrTaker);
+        insertOrderbook.setDouble(4, FixedPoint.fromPrice(event.price));
+        insertOrderbook.setDouble(5, FixedPoint.fromLots(event.amount));
+        insertOrderbook.addBatch();
+    }
+
+    private void addTrade(Event event) throws SQLException {
+        insertTrade.setString(1, String.valueOf(event.id));
+        insertTrade.setString(2, event.username);
+        insertTrade.setString(3, event.symbolOrTaker);
+        insertTrade.setDouble(4, FixedPoint.fromPrice(event.price));
+        insertTrade.setDouble(5, FixedPoint.fromLots(event.amount));
+        insertTrade.setDouble(6, FixedPoint.fromMicros(event.fee));
+        insertTrade.setLong(7, event.timestamp);
+        insertTrade.addBatch();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    // Times a batch was retried after the connection was lost
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    // Times a producer found the queue full, and how long producers spent waiting in total
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    // Time from the oldest event of the last batch being queued to that batch being committed
+    public long getLastLagNanos() {
+        return lastLagNanos;
+    }
+
+    public long getMaxLagNanos() {
+        return maxObservedLagNanos;
+    }
+
+}
@@ -3,8 +3,12 @@ package com.airvoy;
 import com.airvoy.model.Account;
 import com.airvoy.model.Market;
 import com.airvoy.model.Order;
+import com.airvoy.model.utils.FixedPoint;
 import com.airvoy.model.utils.LoggerFactory;
 import com.airvoy.trading.ExchangeManager;
+import com.airvoy.trading.IdGenerator;
+import com.airvoy.trading.PnlPublisher;
+import com.airvoy.trading.Sequencer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.java_websocket.WebSocket;
@@ -12,11 +16,9 @@ import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 import org.json.simple.parser.JSONParser;
@@ -28,14 +30,36 @@ public class Server extends WebSocketServer {
 
     private DatabaseManager databaseManager;
     private ExchangeManager exchangeManager;
+    private Sequencer sequencer;
     private Set<WebSocket> connections;
+    private PnlPublisher pnlPublisher;
 
-    public Server(int port, DatabaseManager databaseManager, ExchangeManager exchangeManager) {
+    // Order commands are decoded here on the socket threads and handed to the sequencer; matching and
+    // broadcasting happen on its matching thread
+    public Server(int port, DatabaseManager databaseManager, ExchangeManager exchangeManager, Sequencer sequencer) {
 	    super(new InetSocketAddress(port));
 	    this.databaseManager = databaseManager;
 	    this.exchangeManager = exchangeManager;
-        connections = new HashSet<>();
-        exchangeManager.setConnections(connections);
+	    this.sequencer = sequencer;
+        connections = ConcurrentHashMap.newKeySet();
+    }
+
+    public void setPnlPublisher(PnlPublisher pnlPublisher) {
+        this.pnlPublisher = pnlPublisher;
+    }
+
+    // Same shape as the engine's orderRejected update, but only the submitter gets it
+    private void sendOrderReject(WebSocket conn, JSONObject orderObject, String reason) {
+        logger.warn("Rejecting order " + orderObject.toString() + ": " + reason);
+        JSONObject rejectJson = new JSONObject();
+        rejectJson.put("messageType", "orderRejected");
+        rejectJson.put("content", orderObject.toString());
+        rejectJson.put("reason", reason);
+        conn.send(rejectJson.toString());
+    }
+
+    private static boolean isNumberOrAbsent(JSONObject object, String key) {
+        return !object.containsKey(key) || object.get(key) instanceof Number;
     }
 
     @Override
@@ -49,6 +73,10 @@ public class Server extends WebSocketServer {
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         connections.remove(conn);
+        exchangeManager.getMarketDataPublisher().unsubscribeAll(conn);
+        if (pnlPublisher != null) {
+            pnlPublisher.unsubscribeAll(conn);
+        }
         logger.info("Connection closed");
     }
 
@@ -70,12 +98,8 @@ public class Server extends WebSocketServer {
             logger.info("Command: " + jsonObject.get("command").toString());
             switch (jsonObject.get("command").toString()) {
                 case "getMarkets":
-                    ResultSet resultSet = databaseManager.executeQuery("SELECT Name, Symbol, Expiry FROM Markets");
-                    JSONArray contentArray = new JSONArray();
-                    JSONObject responseObject = new JSONObject();
-                    responseObject.put("messageType", "getMarkets");
-                    responseObject.put("success", "true");
-                    try {
+                    JSONArray contentArray = databaseManager.query(DatabaseManager.Query.GET_MARKETS, resultSet -> {
+                        JSONArray markets = new JSONArray();
                         while (resultSet.next()) {
                             JSONObject contentObject = new JSONObject();
                             String marketName = resultSet.getString("Name");
@@ -85,14 +109,20 @@ public class Server extends WebSocketServer {
                             contentObject.put("marketName", marketName);
                             contentObject.put("symbol", symbol);
                             contentObject.put("expiry", expiry);
-                            contentArray.add(contentObject);
+                            markets.add(contentObject);
                         }
-                        responseObject.put("content", contentArray.toString());
-                        logger.info("Sending response: " + responseObject.toString());
-                        conn.send(responseObject.toString());
-                    } catch (SQLException e) {
-                        logger.warn("Error generating JSON response: " + e.getMessage());
+                        return markets;
+                    });
+                    if (contentArray == null) {
+                        logger.warn("Error generating JSON response for getMarkets");
+                        break;
                     }
+                    JSONObject responseObject = new JSONObject();
+                    responseObject.put("messageType", "getMarkets");
+                    responseObject.put("success", "true");
+                    responseObject.put("content", contentArray.toString());
+                    logger.info("Sending response: " + responseObject.toString());
+                    conn.send(responseObject.toString());
                     break;
                 case "getOrderbook":
                     String symbol = "";
@@ -101,32 +131,18 @@ public class Server extends WebSocketServer {
                     } else {
                         logger.warn("No symbol specified for getOrderbook command");
                     }
-                    logger.info("Processing getOrderbook command with symbol " + symbol);
-                    resultSet = databaseManager.executeQuery("SELECT Id, Price, Amount FROM Orderbooks WHERE Symbol= \"" + symbol + "\"");
-                    contentArray = new JSONArray();
-                    responseObject = new JSONObject();
-                    responseObject.put("messageType", "getOrderbook");
-                    responseObject.put("success", "true");
-                    try {
-                        while (resultSet.next()) {
-                            JSONObject contentObject = new JSONObject();
-                            String id = resultSet.getString("Id");
-                            double price = resultSet.getDouble("Price");
-                            double amount = resultSet.getDouble("Amount");
-                            logger.info("Got id: " + id + ", price: " + price + ", amount: " + amount);
-                            contentObject.put("id", id);
-                            contentObject.put("price", price);
-                            contentObject.put("amount", amount);
-                            contentArray.add(contentObject);
+                    // Optional number of levels per side; the full book when left out
+                    int depth = 0;
+                    if (jsonObject.containsKey("depth")) {
+                        try {
+                            depth = Integer.parseInt(jsonObject.get("depth").toString());
+                        } catch (NumberFormatException e) {
+                            logger.warn("Invalid depth for getOrderbook command: " + jsonObject.get("depth"));
                         }
-                        JSONObject contentObject = new JSONObject();
-                        contentObject.put("orders", contentArray.toString());
-                        contentObject.put("symbol", symbol);
-                        responseObject.put("content", contentObject);
-                        logger.info("Sending response: " + responseObject.toString());
-                        conn.send(responseObject.toString());
-                    } catch (Exception e) {
-                        logger.warn("Error processing message: " + e.getMessage());
+                    }
+                    logger.info("Processing getOrderbook command with symbol " + symbol + ", depth " + depth);
+                    if (!exchangeManager.sendOrderbook(symbol, depth, conn)) {
+                        logger.warn("Could not send orderbook for " + symbol);
                     }
                     break;
                     //TODO: account validation
@@ -152,25 +168,96 @@ public class Server extends WebSocketServer {
                                     && orderObject.containsKey("username")
                                     && orderObject.containsKey("side")) {
                                 symbol = orderObject.get("symbol").toString();
-                                price = (Double) orderObject.get("price");
-                                amount = (Double) orderObject.get("amount");
+                                if (!(orderObject.get("price") instanceof Number)
+                                        || !(orderObject.get("amount") instanceof Number)) {
+                                    sendOrderReject(conn, orderObject, "Price and amount must be numbers");
+                                    break;
+                                }
+                                price = ((Number) orderObject.get("price")).doubleValue();
+                                amount = ((Number) orderObject.get("amount")).doubleValue();
                                 sideString = orderObject.get("side").toString();
                                 if (sideString.equals("buy")) {
                                     side = 1;
                                 } else if (sideString.equals("sell")) {
                                     side = -1;
                                 } else {
-                                    logger.warn("Invalid side for order: " + sideString);
+                                    sendOrderReject(conn, orderObject, "Invalid side " + sideString);
                                     break;
                                 }
                                 username = orderObject.get("username").toString();
                                 type = orderObject.get("type").toString();
                                 logger.info("Processing submitOrder with symbol " + symbol + ", price " + String.valueOf(price)
                                         + ", amount " + String.valueOf(amount) + ", type " + type + ", side " + side);
-                                Market market = Market.fromSymbol(databaseManager, symbol);
-                                Account account = new Account(username);
-                                Order order = new Order(market, side, price, amount, account, Order.getOrderType(type));
-                                exchangeManager.submitOrder(order, true);
+                                Order.Type orderType = Order.getOrderType(type);
+                                if (orderType == null) {
+                                    sendOrderReject(conn, orderObject, "Invalid order type " + type);
+                                    break;
+                                }
+                                Market market = exchangeManager.getMarketRegistry().get(symbol);
+                                if (market == null) {
+                                    sendOrderReject(conn, orderObject, "Unknown market " + symbol);
+                                    break;
+                                }
+                                long fixedPrice = FixedPoint.toPrice(price);
+                                long fixedAmount = FixedPoint.toLots(amount);
+                                if (fixedAmount <= 0) {
+                                    sendOrderReject(conn, orderObject, "Amount must be positive");
+                                    break;
+                                }
+                                // Limit prices must be a level of the book; market orders ignore the price
+                                if (orderType == Order.Type.LIMIT && (fixedPrice < 0 || fixedPrice > FixedPoint.PRICE_SCALE
+                                        || fixedPrice % market.getTickSize() != 0)) {
+                                    sendOrderReject(conn, orderObject, "Invalid price " + price);
+                                    break;
+                                }
+                                Account account = exchangeManager.getAccountRegistry().get(username);
+                                if (account == null) {
+                                    sendOrderReject(conn, orderObject, "Unknown account " + username);
+                                    break;
+                                }
+                                Order order = new Order(market, side, fixedPrice, fixedAmount, account, orderType);
+                                if (orderObject.containsKey("timeInForce")) {
+                                    Order.TimeInForce timeInForce = Order.getTimeInForce(orderObject.get("timeInForce").toString());
+                                    if (timeInForce == null) {
+                                        sendOrderReject(conn, orderObject, "Invalid time in force " + orderObject.get("timeInForce"));
+                                        break;
+                                    }
+                                    order.setTimeInForce(timeInForce);
+                                }
+                                if (orderObject.containsKey("postOnly")) {
+                                    order.setPostOnly(Boolean.parseBoolean(orderObject.get("postOnly").toString()));
+                                }
+                                if (!isNumberOrAbsent(orderObject, "worstPrice")
+                                        || !isNumberOrAbsent(orderObject, "maxSlippage")
+                                        || !isNumberOrAbsent(orderObject, "maxLevels")) {
+                                    sendOrderReject(conn, orderObject, "worstPrice, maxSlippage and maxLevels must be numbers");
+                                    break;
+                                }
+                                if (orderObject.containsKey("worstPrice")) {
+                                    long worstPrice = FixedPoint.toPrice(((Number) orderObject.get("worstPrice")).doubleValue());
+                                    if (worstPrice < 0 || worstPrice > FixedPoint.PRICE_SCALE) {
+                                        sendOrderReject(conn, orderObject, "Invalid worstPrice " + orderObject.get("worstPrice"));
+                                        break;
+                                    }
+                                    order.setProtectionPrice(worstPrice);
+                                }
+                                if (orderObject.containsKey("maxSlippage")) {
+                                    long maxSlippage = FixedPoint.toPrice(((Number) orderObject.get("maxSlippage")).doubleValue());
+                                    if (maxSlippage < 0) {
+                                        sendOrderReject(conn, orderObject, "Invalid maxSlippage " + orderObject.get("maxSlippage"));
+                                        break;
+                                    }
+                                    order.setMaxSlippage(maxSlippage);
+                                }
+                                if (orderObject.containsKey("maxLevels")) {
+                                    long maxLevels = ((Number) orderObject.get("maxLevels")).longValue();
+                                    if (maxLevels < 0 || maxLevels > Integer.MAX_VALUE) {
+                                        sendOrderReject(conn, orderObject, "Invalid maxLevels " + orderObject.get("maxLevels"));
+                                        break;
+                                    }
+                                    order.setMaxLevels((int) maxLevels);
+                                }
+                                sequencer.publishSubmit(order, true);
                             } else {
                                 logger.warn("Malformed order submission: " + orderObject.toString());
                             }
@@ -180,6 +267,87 @@ public class Server extends WebSocketServer {
                     } else {
                         logger.warn("Malformed order submission: " + jsonObject.toString());
                     }
+                    break;
+                // Market data for one symbol: the book snapshot, then order updates, trades and l2Update deltas.
+                // Each delta covers book sequences firstSequence to sequence (more than one when a slow
+                // connection's deltas were merged); those at or below the snapshot's sequence are already in it. A
+                // connection that falls too far behind is sent a new snapshot instead.
+                case "subscribe":
+                case "unsubscribe":
+                    if (!jsonObject.containsKey("symbol")
+                            || exchangeManager.getMatchingEngine(jsonObject.get("symbol").toString()) == null) {
+                        logger.warn("Malformed " + jsonObject.get("command") + ": " + jsonObject.toString());
+                        break;
+                    }
+                    String subscriptionSymbol = jsonObject.get("symbol").toString();
+                    if (jsonObject.get("command").toString().equals("subscribe")) {
+                        exchangeManager.getMarketDataPublisher().subscribe(subscriptionSymbol, conn);
+                    } else {
+                        exchangeManager.getMarketDataPublisher().unsubscribe(subscriptionSymbol, conn);
+                    }
+                    break;
+                case "getMarketDataStats":
+                    conn.send(exchangeManager.getMarketDataPublisher().getStatsJson().toString());
+                    break;
+                case "subscribePnl":
+                case "unsubscribePnl":
+                    if (!jsonObject.containsKey("username") || pnlPublisher == null) {
+                        logger.warn("Malformed " + jsonObject.get("command") + ": " + jsonObject.toString());
+                        break;
+                    }
+                    Account pnlAccount = exchangeManager.getAccountRegistry().get(jsonObject.get("username").toString());
+                    if (pnlAccount == null) {
+                        logger.warn("Unknown user for " + jsonObject.get("command") + ": " + jsonObject.get("username"));
+                        break;
+                    }
+                    if (jsonObject.get("command").toString().equals("subscribePnl")) {
+                        pnlPublisher.subscribe(pnlAccount, conn);
+                    } else {
+                        pnlPublisher.unsubscribe(pnlAccount, conn);
+                    }
+                    break;
+                case "cancelOrder":
+                case "amendOrder":
+                    String command = jsonObject.get("command").toString();
+                    if (jsonObject.containsKey("order")) {
+                        JSONParser parser = new JSONParser();
+                        try {
+                            JSONObject orderObject = (JSONObject) parser.parse(jsonObject.get("order").toString());
+                            if (orderObject.containsKey("id") && orderObject.containsKey("username")) {
+                                long id;
+                                try {
+                                    id = IdGenerator.fromString(orderObject.get("id").toString());
+                                } catch (NumberFormatException e) {
+                                    sendOrderReject(conn, orderObject, "Invalid order id " + orderObject.get("id"));
+                                    break;
+                                }
+                                username = orderObject.get("username").toString();
+                                if (command.equals("cancelOrder")) {
+                                    sequencer.publishCancel(id, username, true);
+                                } else if (orderObject.containsKey("amount")) {
+                                    if (!(orderObject.get("amount") instanceof Number)
+                                            || !isNumberOrAbsent(orderObject, "price")) {
+                                        sendOrderReject(conn, orderObject, "Price and amount must be numbers");
+                                        break;
+                                    }
+                                    // Price is optional; leaving it out resizes the order at its current price
+                                    long newPrice = orderObject.containsKey("price")
+                                            ? FixedPoint.toPrice(((Number) orderObject.get("price")).doubleValue()) : 0;
+                                    long newAmount = FixedPoint.toLots(((Number) orderObject.get("amount")).doubleValue());
+                                    sequencer.publishAmend(id, newPrice, newAmount, username, true);
+                                } else {
+                                    logger.warn("Malformed " + command + ": " + orderObject.toString());
+                                }
+                            } else {
+                                logger.warn("Malformed " + command + ": " + orderObject.toString());
+                            }
+                        } catch (ParseException e) {
+                            logger.warn("Error parsing " + command + " object: " + jsonObject.toString());
+                        }
+                    } else {
+                        logger.warn("Malformed " + command + ": " + jsonObject.toString());
+                    }
+                    break;
             }
         }
     }
@@ -1,38 +1,181 @@
 package com.airvoy.model;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import com.airvoy.model.utils.FixedPoint;
+
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class Account {
 
+    private final static AtomicLongFieldUpdater<Account> BALANCE =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+    private final static AtomicLongFieldUpdater<Account> RESERVED =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "reserved");
+    private final static AtomicLongFieldUpdater<Account> AVAILABLE =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "available");
+
     private String username;
-    private double balance = 0;
-    private Map<String, Double> positions = new HashMap<>();
+    // Interned by AccountRegistry; -1 for accounts created outside it
+    private final int handle;
+    // Balance the account was loaded with; snapshots only record accounts that have moved away from it
+    private final long seedBalance;
+    // A registered account is shared by every market the user trades, so it is updated from several partitions.
+    // All amounts are micro-units.
+    private volatile long balance = 0;
+    // Collateral held for open orders
+    private volatile long reserved = 0;
+    // Balance less reserved collateral and what short positions would owe if they resolved against the user;
+    // kept up to date with every change so a pre-trade check is a single compare-and-set
+    private volatile long available = 0;
+    // Each market's position is only changed by the partition that matches it
+    private Map<Market, Position> positions = new ConcurrentHashMap<>();
+    // Set by the P&L publisher while someone is subscribed, so engines only flag changes that will be sent
+    private volatile boolean pnlSubscribed = false;
+    private volatile boolean pnlChanged = false;
 
     public Account(String username) {
+        this(username, -1, 0);
+    }
+
+    public Account(String username, int handle, long seedBalance) {
         this.username = username;
+        this.handle = handle;
+        this.seedBalance = seedBalance;
+        this.balance = seedBalance;
+        this.available = seedBalance;
     }
 
     public String getUsername() {
         return username;
     }
 
-    public double getBalance() {
+    public int getHandle() {
+        return handle;
+    }
+
+    public long getBalance() {
         return balance;
     }
 
-    public double getPosition(Market market) {
-        return positions.getOrDefault(market.getId(), (double) 0);
+    public long getSeedBalance() {
+        return seedBalance;
+    }
+
+    public long getRealizedPnl() {
+        long realizedPnl = 0;
+        for (Position position : positions.values()) {
+            realizedPnl += position.getRealizedPnl();
+        }
+        return realizedPnl;
+    }
+
+    public long getReserved() {
+        return reserved;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    // Lots
+    public long getPosition(Market market) {
+        Position position = positions.get(market);
+        return position == null ? 0 : position.getQuantity();
+    }
+
+    // Null if the account has never traded the market
+    public Position findPosition(Market market) {
+        return positions.get(market);
+    }
+
+    public Collection<Position> getPositions() {
+        return Collections.unmodifiableCollection(positions.values());
+    }
+
+    // Settles a fill: a buy pays the price and adds to the position, a sell receives it and subtracts
+    public Position applyFill(Market market, long signedAmount, long price) {
+        Position position = positions.computeIfAbsent(market, key -> new Position(this, key));
+        long previous = position.getQuantity();
+        position.applyFill(signedAmount, price);
+        updateShortExposure(previous, position.getQuantity());
+        updateBalance(-signedAmount * price);
+        return position;
+    }
+
+    public Position restorePosition(Market market, long quantity, long cost, long realizedPnl) {
+        Position position = positions.computeIfAbsent(market, key -> new Position(this, key));
+        long previous = position.getQuantity();
+        position.restore(quantity, cost, realizedPnl);
+        updateShortExposure(previous, quantity);
+        return position;
+    }
+
+    // A short binary position owes the full payout per lot if the outcome resolves against it
+    private void updateShortExposure(long previous, long position) {
+        long change = Math.max(0, -position) - Math.max(0, -previous);
+        if (change != 0) {
+            AVAILABLE.addAndGet(this, -change * FixedPoint.PRICE_SCALE);
+        }
+    }
+
+    public void updateBalance(long balanceChange) {
+        BALANCE.addAndGet(this, balanceChange);
+        AVAILABLE.addAndGet(this, balanceChange);
+    }
+
+    public boolean isPnlSubscribed() {
+        return pnlSubscribed;
+    }
+
+    public void setPnlSubscribed(boolean subscribed) {
+        pnlSubscribed = subscribed;
+    }
+
+    public void markPnlChanged() {
+        if (pnlSubscribed) {
+            pnlChanged = true;
+        }
+    }
+
+    // Clears the flag before the publisher reads the positions, so a change made meanwhile flags again
+    public boolean takePnlChanged() {
+        if (!pnlChanged) {
+            return false;
+        }
+        pnlChanged = false;
+        return true;
+    }
+
+    public void setBalance(long newBalance) {
+        updateBalance(newBalance - BALANCE.get(this));
+    }
+
+    // Holds collateral if enough is available; false leaves the account untouched
+    public boolean reserve(long collateral) {
+        while (true) {
+            long current = available;
+            if (current < collateral) {
+                return false;
+            }
+            if (AVAILABLE.compareAndSet(this, current, current - collateral)) {
+                RESERVED.addAndGet(this, collateral);
+                return true;
+            }
+        }
     }
 
-    public void updatePosition(Market market, double positionChange) {
-        positions.put(market.getId(), positionChange);
+    // Holds collateral without checking, for orders that were accepted before a restart
+    public void forceReserve(long collateral) {
+        AVAILABLE.addAndGet(this, -collateral);
+        RESERVED.addAndGet(this, collateral);
     }
 
-    public void updateBalance(double balanceChange) {
-        balance = balanceChange;
+    public void release(long collateral) {
+        RESERVED.addAndGet(this, -collateral);
+        AVAILABLE.addAndGet(this, collateral);
     }
 
 }
@@ -0,0 +1,120 @@
+package com.airvoy.model;
+
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.model.utils.Frames;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// New totals of the price levels that changed between two book sequences, ascending by price, with 0 for a level
+// that emptied. Never changed after it is built, so a connection that falls behind can merge a newer delta into one
+// it has not sent yet and keep only the latest total per level; the merged delta spans both sequence ranges.
+public class L2Delta {
+
+    private final String symbol;
+    // A client that has applied firstSequence - 1 can apply this delta
+    private final long firstSequence;
+    private final long sequence;
+    private final long[] bidPrices;
+    private final long[] bidAmounts;
+    private final long[] askPrices;
+    private final long[] askAmounts;
+    // Encoded on first send and shared by every connection the delta goes to
+    private volatile ByteBuffer frame;
+
+    public L2Delta(String symbol, long firstSequence, long sequence, long[] bidPrices, long[] bidAmounts,
+                   long[] askPrices, long[] askAmounts) {
+        this.symbol = symbol;
+        this.firstSequence = firstSequence;
+        this.sequence = sequence;
+        this.bidPrices = bidPrices;
+        this.bidAmounts = bidAmounts;
+        this.askPrices = askPrices;
+        this.askAmounts = askAmounts;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getNumLevels() {
+        return bidPrices.length + askPrices.length;
+    }
+
+    // This delta followed by a newer one of the same book
+    public L2Delta merge(L2Delta newer) {
+        long[][] bids = merge(bidPrices, bidAmounts, newer.bidPrices, newer.bidAmounts);
+        long[][] asks = merge(askPrices, askAmounts, newer.askPrices, newer.askAmounts);
+        return new L2Delta(symbol, firstSequence, newer.sequence, bids[0], bids[1], asks[0], asks[1]);
+    }
+
+    // Both sides are sorted by price, so one pass merges them; the newer total wins where both have a level
+    private static long[][] merge(long[] olderPrices, long[] olderAmounts, long[] newerPrices, long[] newerAmounts) {
+        long[] prices = new long[olderPrices.length + newerPrices.length];
+        long[] amounts = new long[prices.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < olderPrices.length || j < newerPrices.length) {
+            if (j == newerPrices.length || (i < olderPrices.length && olderPrices[i] < newerPrices[j])) {
+                prices[count] = olderPrices[i];
+                amounts[count++] = olderAmounts[i++];
+            } else {
+                if (i < olderPrices.length && olderPrices[i] == newerPrices[j]) {
+                    i++;
+                }
+                prices[count] = newerPrices[j];
+                amounts[count++] = newerAmounts[j++];
+            }
+        }
+        if (count < prices.length) {
+            prices = Arrays.copyOf(prices, count);
+            amounts = Arrays.copyOf(amounts, count);
+        }
+        return new long[][]{prices, amounts};
+    }
+
+    public ByteBuffer toFrame() {
+        ByteBuffer deltaFrame = frame;
+        if (deltaFrame == null) {
+            deltaFrame = Frames.encode(toJsonString());
+            frame = deltaFrame;
+        }
+        return deltaFrame;
+    }
+
+    public String toJsonString() {
+        JSONObject contentObject = new JSONObject();
+        contentObject.put("symbol", symbol);
+        contentObject.put("firstSequence", firstSequence);
+        contentObject.put("sequence", sequence);
+        contentObject.put("bids", toJsonArray(bidPrices, bidAmounts));
+        contentObject.put("asks", toJsonArray(askPrices, askAmounts));
+        JSONObject deltaJson = new JSONObject();
+        deltaJson.put("messageType", "l2Update");
+        deltaJson.put("content", contentObject);
+        return deltaJson.toString();
+    }
+
+    private static JSONArray toJsonArray(long[] prices, long[] amounts) {
+        JSONArray levels = new JSONArray();
+        for (int i = 0; i < prices.length; i++) {
+            JSONObject levelObject = new JSONObject();
+            levelObject.put("price", FixedPoint.fromPrice(prices[i]));
+            levelObject.put("amount", FixedPoint.fromLots(amounts[i]));
+            levels.add(levelObject);
+        }
+        return levels;
+    }
+
+}
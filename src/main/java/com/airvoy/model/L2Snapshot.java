@@ -0,0 +1,108 @@
+package com.airvoy.model;
+
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.model.utils.Frames;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Aggregated price levels of one version of a book, best price first. Built on the partition thread and never
+// changed afterwards, so any thread can serialise it; each depth is encoded once and the frame is shared by every
+// request until the book moves to a new version.
+public class L2Snapshot {
+
+    private final String symbol;
+    private final long version;
+    // Sequence of the last incremental delta this snapshot includes
+    private final long sequence;
+    private final long[] bidPrices;
+    private final long[] bidAmounts;
+    private final long[] askPrices;
+    private final long[] askAmounts;
+    // Keyed by depth, with 0 for the full book
+    private final ConcurrentHashMap<Integer, ByteBuffer> frames = new ConcurrentHashMap<>();
+
+    public L2Snapshot(String symbol, long version, long sequence, long[] bidPrices, long[] bidAmounts,
+                      long[] askPrices, long[] askAmounts) {
+        this.symbol = symbol;
+        this.version = version;
+        this.sequence = sequence;
+        this.bidPrices = bidPrices;
+        this.bidAmounts = bidAmounts;
+        this.askPrices = askPrices;
+        this.askAmounts = askAmounts;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getNumBids() {
+        return bidPrices.length;
+    }
+
+    public int getNumAsks() {
+        return askPrices.length;
+    }
+
+    public long getBidPrice(int i) {
+        return bidPrices[i];
+    }
+
+    public long getBidAmount(int i) {
+        return bidAmounts[i];
+    }
+
+    public long getAskPrice(int i) {
+        return askPrices[i];
+    }
+
+    public long getAskAmount(int i) {
+        return askAmounts[i];
+    }
+
+    // getOrderbook response with at most depth levels per side; 0 or less is the full book
+    public ByteBuffer toFrame(int depth) {
+        int maxDepth = Math.max(bidPrices.length, askPrices.length);
+        // Every depth that covers the whole book shares the full-book frame
+        int key = depth <= 0 || depth >= maxDepth ? 0 : depth;
+        return frames.computeIfAbsent(key, key1 -> Frames.encode(serialise(key1)));
+    }
+
+    private String serialise(int depth) {
+        JSONObject contentObject = new JSONObject();
+        contentObject.put("symbol", symbol);
+        contentObject.put("version", version);
+        contentObject.put("sequence", sequence);
+        contentObject.put("bids", toJsonArray(bidPrices, bidAmounts, depth));
+        contentObject.put("asks", toJsonArray(askPrices, askAmounts, depth));
+        JSONObject responseObject = new JSONObject();
+        responseObject.put("messageType", "getOrderbook");
+        responseObject.put("success", "true");
+        responseObject.put("content", contentObject);
+        return responseObject.toString();
+    }
+
+    private static JSONArray toJsonArray(long[] prices, long[] amounts, int depth) {
+        int count = depth == 0 ? prices.length : Math.min(depth, prices.length);
+        JSONArray levels = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject levelObject = new JSONObject();
+            levelObject.put("price", FixedPoint.fromPrice(prices[i]));
+            levelObject.put("amount", FixedPoint.fromLots(amounts[i]));
+            levels.add(levelObject);
+        }
+        return levels;
+    }
+
+}
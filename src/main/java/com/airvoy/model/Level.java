@@ -1,27 +1,32 @@
 package com.airvoy.model;
 
-import java.util.HashSet;
-
+// Price level of resting orders, referred to by OrderStore slot
 public interface Level {
 
-    HashSet<Order> getOrders();
+    void forEachOrder(OrderVisitor visitor) throws Exception;
 
-    Integer getSide();
+    int getSide();
 
     Orderbook.QueuePriority getPriority();
 
-    int getPrice();
+    long getPrice();
 
     int getNumOrders();
 
-    Order getFirstOrder();
+    // OrderStore.NONE if the level has no time priority or is empty
+    int getFirstOrder();
+
+    long getTotalAmount();
+
+    void setSide(int newSide);
 
-    double getTotalAmount();
+    void addOrder(int slot) throws Exception;
 
-    void setSide(Integer newSide);
+    void fillOrder(int slot, long fillAmount);
 
-    void addOrder(Order order) throws Exception;
+    // Changes the open amount in place without touching queue position
+    void amendOrder(int slot, long newAmount);
 
-    void removeOrder(String id) throws Exception;
+    void removeOrder(int slot) throws Exception;
 
 }
@@ -2,31 +2,27 @@ package com.airvoy.model;
 
 import com.airvoy.model.utils.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.PriorityQueue;
-
 public class LevelFIFO implements Level {
 
     private final static LoggerFactory logger = new LoggerFactory("LevelFIFO");
 
-    private Map<String, Order> orders = new HashMap<>();
-    private PriorityQueue<Order> orderQueue = new PriorityQueue<>((a,b) -> (int) (a.getTimestamp() - b.getTimestamp()));
-    private final int price;
-    private Integer side = null;
+    // Intrusive doubly-linked queue through the OrderStore prev/next columns, oldest order at the head
+    private final OrderStore store;
+    private int head = OrderStore.NONE;
+    private int tail = OrderStore.NONE;
+    private int numOrders = 0;
+    private long totalAmount = 0;
+    private final long price;
+    private int side = 0;
     private final Orderbook.QueuePriority queuePriority = Orderbook.QueuePriority.FIFO;
 
-    public LevelFIFO(int price) {
+    public LevelFIFO(long price, OrderStore store) {
         this.price = price;
+        this.store = store;
     }
 
-    public Order getFirstOrder() {
-        logger.info("Getting first order with order queue: " + orderQueue.toString());
-        if (orderQueue.size() > 0) {
-            return orderQueue.peek();
-        }
-        return null;
+    public int getFirstOrder() {
+        return head;
     }
 
     @Override
@@ -38,54 +34,89 @@ public class LevelFIFO implements Level {
         return queuePriority;
     }
 
-    public int getPrice() {
+    public long getPrice() {
         return price;
     }
 
-    public HashSet<Order> getOrders() {
-        return new HashSet<>(orders.values());
+    // Visits in queue order; the visitor may remove the order it is visiting
+    public void forEachOrder(OrderVisitor visitor) throws Exception {
+        int slot = head;
+        while (slot != OrderStore.NONE) {
+            int next = store.getNext(slot);
+            visitor.visit(slot);
+            slot = next;
+        }
     }
 
-    public Integer getSide() {
+    public int getSide() {
         return side;
     }
 
     public int getNumOrders() {
-        return orders.size();
+        return numOrders;
     }
 
-    public double getTotalAmount() {
-        double totalAmount = 0;
-        for (Order order : orders.values()) {
-            totalAmount += order.getAmount();
-        }
+    public long getTotalAmount() {
         return totalAmount;
     }
 
-    public void setSide(Integer newSide) {
+    public void setSide(int newSide) {
         side = newSide;
     }
 
-    public void addOrder(Order order) throws Exception {
-        orders.put(order.getId(), order);
-        orderQueue.add(order);
-        if (side == null) {
-            setSide(order.getSide());
+    public void addOrder(int slot) throws Exception {
+        if (tail != OrderStore.NONE && store.getSequence(slot) < store.getSequence(tail)) {
+            throw new Exception("Order " + store.getId(slot) + " with sequence " + store.getSequence(slot)
+                    + " is older than the back of level " + price);
+        }
+        store.setPrev(slot, tail);
+        store.setNext(slot, OrderStore.NONE);
+        if (tail == OrderStore.NONE) {
+            head = slot;
+        } else {
+            store.setNext(tail, slot);
+        }
+        tail = slot;
+        numOrders++;
+        totalAmount += store.getAmount(slot);
+        if (side == 0) {
+            setSide(store.getSide(slot));
         }
     }
 
-    public void removeOrder(String id) throws Exception {
-        logger.info("Removing order " + id + " from level " + price);
-        logger.info("Number of orders in queue before remove: " + orderQueue.size());
-        if (orders.containsKey(id)) {
-            orders.remove(id);
-            orderQueue.removeIf(o -> o.getId().equals(id));
+    public void fillOrder(int slot, long fillAmount) {
+        store.fill(slot, fillAmount);
+        totalAmount -= fillAmount;
+    }
+
+    public void amendOrder(int slot, long newAmount) {
+        totalAmount += newAmount - store.getAmount(slot);
+        store.setAmount(slot, newAmount);
+    }
+
+    public void removeOrder(int slot) throws Exception {
+        int prev = store.getPrev(slot);
+        int next = store.getNext(slot);
+        if (prev == OrderStore.NONE && head != slot) {
+            throw new Exception("Id " + store.getId(slot) + " not found in level " + price);
+        }
+        if (prev == OrderStore.NONE) {
+            head = next;
+        } else {
+            store.setNext(prev, next);
+        }
+        if (next == OrderStore.NONE) {
+            tail = prev;
         } else {
-            throw new Exception("Id " + id + " not found in level " + price);
+            store.setPrev(next, prev);
         }
-        logger.info("Number of orders in queue after remove: " + orderQueue.size());
+        store.setPrev(slot, OrderStore.NONE);
+        store.setNext(slot, OrderStore.NONE);
+        numOrders--;
+        totalAmount -= store.getAmount(slot);
         if (getNumOrders() == 0) {
-            setSide(null);
+            totalAmount = 0;
+            setSide(0);
         }
     }
 
@@ -4,60 +4,91 @@ import java.util.*;
 
 public class LevelProRata implements Level {
 
-    private Map<String, Order> orders = new HashMap<>();
-    private final int price;
-    private Integer side;
+    // Unordered slots; the OrderStore levelIndex column records each order's position so removal is a swap
+    // with the last position
+    private final OrderStore store;
+    private int[] orders = new int[16];
+    private int numOrders = 0;
+    private long totalAmount = 0;
+    private final long price;
+    private int side = 0;
     private final Orderbook.QueuePriority queuePriority = Orderbook.QueuePriority.PRO_RATA;
 
-    public LevelProRata(int price) {
+    public LevelProRata(long price, OrderStore store) {
         this.price = price;
+        this.store = store;
     }
 
-    public HashSet<Order> getOrders() {
-        return new HashSet<>(orders.values());
+    // The visitor may remove the order it is visiting
+    public void forEachOrder(OrderVisitor visitor) throws Exception {
+        for (int i = numOrders - 1; i >= 0; i--) {
+            visitor.visit(orders[i]);
+        }
     }
 
-    public int getPrice() {
+    public long getPrice() {
         return price;
     }
 
-    public Order getFirstOrder() {
-        return null;
+    public int getFirstOrder() {
+        return OrderStore.NONE;
     }
 
     public Orderbook.QueuePriority getPriority() {
         return queuePriority;
     }
 
-    public Integer getSide() {
+    public int getSide() {
         return side;
     }
 
     public int getNumOrders() {
-        return orders.size();
+        return numOrders;
     }
 
-    public double getTotalAmount() {
-        double totalAmount = 0;
-        for (Order order : orders.values()) {
-            totalAmount += order.getAmount();
-        }
+    public long getTotalAmount() {
         return totalAmount;
     }
 
-    public void setSide(Integer newSide) {
+    public void setSide(int newSide) {
         side = newSide;
     }
 
-    public void addOrder(Order order) throws Exception {
-        orders.put(order.getId(), order);
+    public void addOrder(int slot) throws Exception {
+        if (numOrders == orders.length) {
+            orders = Arrays.copyOf(orders, numOrders * 2);
+        }
+        store.setLevelIndex(slot, numOrders);
+        orders[numOrders++] = slot;
+        totalAmount += store.getAmount(slot);
+        if (side == 0) {
+            setSide(store.getSide(slot));
+        }
     }
 
-    public void removeOrder(String id) throws Exception {
-        if (orders.containsKey(id)) {
-            orders.remove(id);
-        } else {
-            throw new Exception("Id " + id + " not found in level " + price);
+    public void fillOrder(int slot, long fillAmount) {
+        store.fill(slot, fillAmount);
+        totalAmount -= fillAmount;
+    }
+
+    public void amendOrder(int slot, long newAmount) {
+        totalAmount += newAmount - store.getAmount(slot);
+        store.setAmount(slot, newAmount);
+    }
+
+    public void removeOrder(int slot) throws Exception {
+        int index = store.getLevelIndex(slot);
+        if (index < 0 || index >= numOrders || orders[index] != slot) {
+            throw new Exception("Id " + store.getId(slot) + " not found in level " + price);
+        }
+        int last = orders[--numOrders];
+        orders[index] = last;
+        store.setLevelIndex(last, index);
+        store.setLevelIndex(slot, OrderStore.NONE);
+        totalAmount -= store.getAmount(slot);
+        if (numOrders == 0) {
+            totalAmount = 0;
+            setSide(0);
         }
     }
 
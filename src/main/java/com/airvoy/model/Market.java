@@ -27,6 +27,16 @@ public class Market {
     private final int tickSize = 5; // Basis points
     private final double makerFee = -.005;
     private final double takerFee = .01;
+    private Orderbook.QueuePriority queuePriority = Orderbook.QueuePriority.FIFO;
+    // Pro-rata only: fill the oldest order at a level before splitting the rest
+    private boolean topOrderPriority = false;
+    // Batch auction interval in milliseconds; 0 means continuous matching
+    private long auctionInterval = 0;
+    // Which side of the event this book trades, and the symbol of the book trading the other side, if any
+    private Outcomes outcome = Outcomes.LONG;
+    private String complementSymbol = null;
+    // Interned by MarketRegistry; -1 until registered
+    private int handle = -1;
 
     // Just binary markets for now
 
@@ -46,17 +56,46 @@ public class Market {
     }
 
     public static Market fromSymbol(DatabaseManager databaseManager, String symbol) {
-        ResultSet resultSet = databaseManager.executeQuery("SELECT Id, Name, Expiry FROM Markets WHERE Symbol= \"" + symbol + "\"");
-        try {
-            resultSet.next();
-            String id = resultSet.getString("Id");
-            String name = resultSet.getString("Name");
-            long expiry = resultSet.getLong("Expiry");
-            return new Market(name, symbol, expiry);
-        } catch (SQLException e) {
-            logger.warn("Exception querying for market info: " + e.getMessage());
+        Market market = databaseManager.query(DatabaseManager.Query.GET_MARKET,
+                resultSet -> resultSet.next() ? fromResultSet(resultSet) : null, symbol);
+        if (market == null) {
+            logger.warn("No market found for symbol " + symbol);
         }
-        return null;
+        return market;
+    }
+
+    // Reads the market columns of the current row
+    public static Market fromResultSet(ResultSet resultSet) throws SQLException {
+        Market market = new Market(resultSet.getString("Name"), resultSet.getString("Symbol"),
+                resultSet.getLong("Expiry"));
+        market.setQueuePriority(getQueuePriority(resultSet.getString("QueuePriority")));
+        market.setTopOrderPriority(resultSet.getBoolean("TopOrderPriority"));
+        market.setAuctionInterval(resultSet.getLong("AuctionInterval"));
+        market.setOutcome(getOutcome(resultSet.getString("Outcome")));
+        market.setComplementSymbol(resultSet.getString("ComplementSymbol"));
+        return market;
+    }
+
+    public static Orderbook.QueuePriority getQueuePriority(String queuePriorityString) {
+        if (queuePriorityString != null && queuePriorityString.equals("pro_rata")) {
+            return Orderbook.QueuePriority.PRO_RATA;
+        }
+        return Orderbook.QueuePriority.FIFO;
+    }
+
+    public static Outcomes getOutcome(String outcomeString) {
+        if (outcomeString != null && outcomeString.equals("short")) {
+            return Outcomes.SHORT;
+        }
+        return Outcomes.LONG;
+    }
+
+    public String getOutcomeString() {
+        return outcome == Outcomes.SHORT ? "short" : "long";
+    }
+
+    public String getQueuePriorityString() {
+        return queuePriority == Orderbook.QueuePriority.PRO_RATA ? "pro_rata" : "fifo";
     }
 
     public String getName() {
@@ -91,4 +130,60 @@ public class Market {
         return takerFee;
     }
 
+    public Orderbook.QueuePriority getQueuePriority() {
+        return queuePriority;
+    }
+
+    public boolean isTopOrderPriority() {
+        return topOrderPriority;
+    }
+
+    public Outcomes getOutcome() {
+        return outcome;
+    }
+
+    public String getComplementSymbol() {
+        return complementSymbol;
+    }
+
+    // Both outcomes of an event share a group, so they are matched on the same partition
+    public String getOutcomeGroup() {
+        if (complementSymbol != null && complementSymbol.compareTo(symbol) < 0) {
+            return complementSymbol;
+        }
+        return symbol;
+    }
+
+    public void setOutcome(Outcomes newOutcome) {
+        outcome = newOutcome;
+    }
+
+    public void setComplementSymbol(String newComplementSymbol) {
+        complementSymbol = newComplementSymbol;
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int newHandle) {
+        handle = newHandle;
+    }
+
+    public long getAuctionInterval() {
+        return auctionInterval;
+    }
+
+    public void setAuctionInterval(long newAuctionInterval) {
+        auctionInterval = newAuctionInterval;
+    }
+
+    public void setQueuePriority(Orderbook.QueuePriority newQueuePriority) {
+        queuePriority = newQueuePriority;
+    }
+
+    public void setTopOrderPriority(boolean newTopOrderPriority) {
+        topOrderPriority = newTopOrderPriority;
+    }
+
 }
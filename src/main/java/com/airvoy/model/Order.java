@@ -1,15 +1,13 @@
 package com.airvoy.model;
 
 import com.airvoy.DatabaseManager;
+import com.airvoy.model.utils.FixedPoint;
 import com.airvoy.model.utils.LoggerFactory;
-import com.airvoy.trading.MatchingEngine;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import com.airvoy.trading.AccountRegistry;
+import com.airvoy.trading.IdGenerator;
+import com.airvoy.trading.MarketRegistry;
 import org.json.simple.JSONObject;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.UUID;
 
 public class Order {
 
@@ -19,32 +17,45 @@ public class Order {
         LIMIT, MARKET
     }
 
-    public static Integer BUY = 1;
-    public static Integer SELL = -1;
+    public enum TimeInForce {
+        GTC, IOC, FOK
+    }
+
+    public final static int BUY = 1;
+    public final static int SELL = -1;
 
     private final Market market;
-    private final Integer side;
+    private final int side;
     private final Account account;
-    private double price;
-    private double amount;
-    private double filledAmount = 0;
+    private long price;
+    private long amount;
+    private long filledAmount = 0;
     private Type type;
-    private String id;
+    private TimeInForce timeInForce = TimeInForce.GTC;
+    // Rejected instead of matched if it would take liquidity on arrival
+    private boolean postOnly = false;
+    // Assigned by the matching engine on submission; 0 until then
+    private long id = 0;
     private long timestamp;
     private boolean filled = false;
+    private long sequence = 0;
+    // Market order protection: worst acceptable price, distance from the opposite best at arrival, and the
+    // number of price levels the sweep may touch. 0 means no limit.
+    private long protectionPrice = 0;
+    private long maxSlippage = 0;
+    private int maxLevels = 0;
 
-    public Order(Market market, int side, double price, double amount, Account account, Type type) {
+    public Order(Market market, int side, long price, long amount, Account account, Type type) {
         this.market = market;
         this.side = side;
         this.price = price;
         this.amount = amount;
         this.account = account;
         this.type = type;
-        this.id = UUID.randomUUID().toString();
         this.timestamp = System.currentTimeMillis();
     }
 
-    public Order(String id, Market market, int side, double price, double amount, Account account, Type type) {
+    public Order(long id, Market market, int side, long price, long amount, Account account, Type type) {
         this.market = market;
         this.side = side;
         this.price = price;
@@ -55,18 +66,38 @@ public class Order {
         this.timestamp = System.currentTimeMillis();
     }
 
-    public static Order fromId(DatabaseManager databaseManager, String id) {
-        ResultSet resultSet = databaseManager.executeQuery("SELECT Symbol, Price, Amount, Username, Type FROM Orderbooks WHERE Id= \"" + id + "\"");
-        try {
-            resultSet.next();
-            Market market = Market.fromSymbol(databaseManager, resultSet.getString("Symbol"));
-            double price = resultSet.getDouble("Price");
-            double amount = resultSet.getDouble("Amount");
-            Account account = new Account(resultSet.getString("Username"));
+    // The market and account are the live ones from the registries, so the order shares their state
+    public static Order fromId(DatabaseManager databaseManager, MarketRegistry marketRegistry,
+                               AccountRegistry accountRegistry, long id) {
+        Order order = databaseManager.query(DatabaseManager.Query.GET_ORDER, resultSet -> {
+            if (!resultSet.next()) {
+                return null;
+            }
+            Market market = marketRegistry.get(resultSet.getString("Symbol"));
+            Account account = accountRegistry.get(resultSet.getString("Username"));
+            if (market == null || account == null) {
+                logger.warn("Order " + id + " refers to an unknown market or account");
+                return null;
+            }
+            long price = FixedPoint.toPrice(resultSet.getDouble("Price"));
+            long amount = FixedPoint.toLots(resultSet.getDouble("Amount"));
             Type type = getOrderType(resultSet.getString("Type"));
             return new Order(id, market, (int) Math.signum(amount), price, Math.abs(amount), account, type);
-        } catch (SQLException e) {
-            logger.warn("Exception querying for market info: " + e.getMessage());
+        }, String.valueOf(id));
+        if (order == null) {
+            logger.warn("No order found for id " + id);
+        }
+        return order;
+    }
+
+    public static TimeInForce getTimeInForce(String timeInForceString) {
+        switch (timeInForceString) {
+            case "gtc":
+                return TimeInForce.GTC;
+            case "ioc":
+                return TimeInForce.IOC;
+            case "fok":
+                return TimeInForce.FOK;
         }
         return null;
     }
@@ -81,16 +112,20 @@ public class Order {
         return null;
     }
 
+    public static JSONObject toJson(String symbol, long price, long signedAmount, Type type, long timestamp, long id) {
+        JSONObject orderJson = new JSONObject();
+        orderJson.put("symbol", symbol);
+        orderJson.put("price", FixedPoint.fromPrice(price));
+        orderJson.put("amount", FixedPoint.fromLots(signedAmount));
+        orderJson.put("type", getTypeString(type));
+        orderJson.put("timestamp", timestamp);
+        orderJson.put("id", IdGenerator.toString(id));
+        return orderJson;
+    }
+
     @Override
     public String toString() {
-        JSONObject orderJson = new JSONObject();
-        orderJson.put("symbol", getSymbol());
-        orderJson.put("price", getPrice());
-        orderJson.put("amount", getSide() * getAmount());
-        orderJson.put("type", getTypeString());
-        orderJson.put("timestamp", getTimestamp());
-        orderJson.put("id", getId());
-        return orderJson.toString();
+        return toJson(getSymbol(), getPrice(), getSide() * getAmount(), getType(), getTimestamp(), getId()).toString();
     }
 
     @Override
@@ -102,7 +137,12 @@ public class Order {
             return false;
         }
         final Order other = (Order) obj;
-        return this.id.equals(other.id);
+        return this.id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
     }
 
     public Market getMarket() {
@@ -117,15 +157,15 @@ public class Order {
         return side;
     }
 
-    public double getPrice() {
+    public long getPrice() {
         return price;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public double getFilledAmount() {
+    public long getFilledAmount() {
         return filledAmount;
     }
 
@@ -138,7 +178,14 @@ public class Order {
     }
 
     public String getTypeString() {
-        switch (getType()) {
+        return getTypeString(getType());
+    }
+
+    public static String getTypeString(Type type) {
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
             case LIMIT:
                 return "limit";
             case MARKET:
@@ -147,22 +194,82 @@ public class Order {
         return null;
     }
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
+    public void setId(long newId) {
+        id = newId;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
 
-    public void setAmount(double newAmount) {
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long newSequence) {
+        sequence = newSequence;
+    }
+
+    public TimeInForce getTimeInForce() {
+        return timeInForce;
+    }
+
+    public boolean isPostOnly() {
+        return postOnly;
+    }
+
+    public void setTimeInForce(TimeInForce newTimeInForce) {
+        timeInForce = newTimeInForce;
+    }
+
+    public void setPostOnly(boolean isPostOnly) {
+        postOnly = isPostOnly;
+    }
+
+    public long getProtectionPrice() {
+        return protectionPrice;
+    }
+
+    public long getMaxSlippage() {
+        return maxSlippage;
+    }
+
+    public int getMaxLevels() {
+        return maxLevels;
+    }
+
+    public void setProtectionPrice(long newProtectionPrice) {
+        protectionPrice = newProtectionPrice;
+    }
+
+    public void setMaxSlippage(long newMaxSlippage) {
+        maxSlippage = newMaxSlippage;
+    }
+
+    public void setMaxLevels(int newMaxLevels) {
+        maxLevels = newMaxLevels;
+    }
+
+    public void setTimestamp(long newTimestamp) {
+        timestamp = newTimestamp;
+    }
+
+    public void setFilledAmount(long newFilledAmount) {
+        filledAmount = newFilledAmount;
+    }
+
+    public void setAmount(long newAmount) {
         amount = newAmount;
     }
 
-    public void fill(double fillAmount) {
+    public void fill(long fillAmount) {
         filledAmount += fillAmount;
         amount -= fillAmount;
-        if (amount < MatchingEngine.MIN_TRADE_AMOUNT) {
+        if (amount == 0) {
             setFilled(true);
         }
     }
@@ -171,7 +278,7 @@ public class Order {
         filled = isFilled;
     }
 
-    public void setPrice(double newPrice) {
+    public void setPrice(long newPrice) {
         logger.info("Setting price " + price + " to new price " + newPrice);
         price = newPrice;
     }
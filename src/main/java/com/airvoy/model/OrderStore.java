@@ -0,0 +1,199 @@
+package com.airvoy.model;
+
+import java.util.Arrays;
+
+// Columnar storage for resting orders. Levels and the Orderbook refer to a resting order by its int slot, so
+// resting orders are not individual heap objects and matching mutates primitive arrays only. Released slots
+// are chained into a free list through the next column and reused before the store grows.
+public class OrderStore {
+
+    public final static int NONE = -1;
+
+    private final static Order.Type[] TYPES = Order.Type.values();
+
+    private long[] ids;
+    private long[] prices;
+    private long[] amounts;
+    private long[] filledAmounts;
+    private long[] sequences;
+    private long[] timestamps;
+    private byte[] sides;
+    private byte[] types;
+    private boolean[] postOnly;
+    private Account[] accounts;
+    // Links for the intrusive FIFO queue of a LevelFIFO
+    private int[] prev;
+    private int[] next;
+    // Position within a LevelProRata
+    private int[] levelIndex;
+
+    private int capacity;
+    private int highWater = 0;
+    private int freeHead = NONE;
+    private int size = 0;
+
+    public OrderStore(int initialCapacity) {
+        capacity = Math.max(16, initialCapacity);
+        ids = new long[capacity];
+        prices = new long[capacity];
+        amounts = new long[capacity];
+        filledAmounts = new long[capacity];
+        sequences = new long[capacity];
+        timestamps = new long[capacity];
+        sides = new byte[capacity];
+        types = new byte[capacity];
+        postOnly = new boolean[capacity];
+        accounts = new Account[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        levelIndex = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int allocate(Order order) {
+        int slot;
+        if (freeHead != NONE) {
+            slot = freeHead;
+            freeHead = next[slot];
+        } else {
+            if (highWater == capacity) {
+                grow();
+            }
+            slot = highWater++;
+        }
+        ids[slot] = order.getId();
+        prices[slot] = order.getPrice();
+        amounts[slot] = order.getAmount();
+        filledAmounts[slot] = order.getFilledAmount();
+        sequences[slot] = order.getSequence();
+        timestamps[slot] = order.getTimestamp();
+        sides[slot] = (byte) order.getSide();
+        types[slot] = (byte) order.getType().ordinal();
+        postOnly[slot] = order.isPostOnly();
+        accounts[slot] = order.getAccount();
+        prev[slot] = NONE;
+        next[slot] = NONE;
+        levelIndex[slot] = NONE;
+        size++;
+        return slot;
+    }
+
+    public void release(int slot) {
+        ids[slot] = 0;
+        accounts[slot] = null;
+        prev[slot] = NONE;
+        next[slot] = freeHead;
+        freeHead = slot;
+        size--;
+    }
+
+    // Builds a standalone Order with the slot's current state, for messages and callers outside the book
+    public Order toOrder(int slot, Market market) {
+        Order order = new Order(ids[slot], market, sides[slot], prices[slot], amounts[slot], accounts[slot],
+                TYPES[types[slot]]);
+        order.setSequence(sequences[slot]);
+        order.setTimestamp(timestamps[slot]);
+        order.setFilledAmount(filledAmounts[slot]);
+        order.setPostOnly(postOnly[slot]);
+        return order;
+    }
+
+    public String toJsonString(int slot, String symbol) {
+        return Order.toJson(symbol, prices[slot], sides[slot] * amounts[slot], TYPES[types[slot]], timestamps[slot],
+                ids[slot]).toString();
+    }
+
+    public void fill(int slot, long fillAmount) {
+        amounts[slot] -= fillAmount;
+        filledAmounts[slot] += fillAmount;
+    }
+
+    public void setAmount(int slot, long newAmount) {
+        amounts[slot] = newAmount;
+    }
+
+    public long getId(int slot) {
+        return ids[slot];
+    }
+
+    public long getPrice(int slot) {
+        return prices[slot];
+    }
+
+    public long getAmount(int slot) {
+        return amounts[slot];
+    }
+
+    public long getFilledAmount(int slot) {
+        return filledAmounts[slot];
+    }
+
+    public long getSequence(int slot) {
+        return sequences[slot];
+    }
+
+    public long getTimestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    public int getSide(int slot) {
+        return sides[slot];
+    }
+
+    public Order.Type getType(int slot) {
+        return TYPES[types[slot]];
+    }
+
+    public boolean isPostOnly(int slot) {
+        return postOnly[slot];
+    }
+
+    public Account getAccount(int slot) {
+        return accounts[slot];
+    }
+
+    int getPrev(int slot) {
+        return prev[slot];
+    }
+
+    int getNext(int slot) {
+        return next[slot];
+    }
+
+    void setPrev(int slot, int prevSlot) {
+        prev[slot] = prevSlot;
+    }
+
+    void setNext(int slot, int nextSlot) {
+        next[slot] = nextSlot;
+    }
+
+    int getLevelIndex(int slot) {
+        return levelIndex[slot];
+    }
+
+    void setLevelIndex(int slot, int index) {
+        levelIndex[slot] = index;
+    }
+
+    private void grow() {
+        capacity *= 2;
+        ids = Arrays.copyOf(ids, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        filledAmounts = Arrays.copyOf(filledAmounts, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        sides = Arrays.copyOf(sides, capacity);
+        types = Arrays.copyOf(types, capacity);
+        postOnly = Arrays.copyOf(postOnly, capacity);
+        accounts = Arrays.copyOf(accounts, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        next = Arrays.copyOf(next, capacity);
+        levelIndex = Arrays.copyOf(levelIndex, capacity);
+    }
+
+}
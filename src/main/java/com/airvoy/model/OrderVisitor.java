@@ -0,0 +1,8 @@
+package com.airvoy.model;
+
+// Callback for walking the orders resting in a Level by OrderStore slot, without copying them
+public interface OrderVisitor {
+
+    void visit(int slot) throws Exception;
+
+}
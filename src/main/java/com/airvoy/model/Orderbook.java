@@ -1,6 +1,8 @@
 package com.airvoy.model;
 
+import com.airvoy.model.utils.FixedPoint;
 import com.airvoy.model.utils.LoggerFactory;
+import com.airvoy.model.utils.LongIntMap;
 
 import java.util.*;
 
@@ -13,201 +15,285 @@ public class Orderbook {
     private final static LoggerFactory logger = new LoggerFactory("Orderbook");
 
     private Market market;
-    private SortedMap<Integer, Level> levels = new TreeMap<>();
-    private TreeSet<Integer> activeBids = new TreeSet<>(new Comparator<Integer>() {
-        @Override
-        public int compare(Integer o1, Integer o2) {
-            return o2.compareTo(o1);
-        }
-    });
-    private TreeSet<Integer> activeAsks = new TreeSet<>(new Comparator<Integer>() {
-        @Override
-        public int compare(Integer o1, Integer o2) {
-            return o1.compareTo(o2);
-        }
-    });
+    // Price ladder: levels[price / tickSize], with one occupancy bit per level for each side
+    private final Level[] levels;
+    private final BitSet activeBids;
+    private final BitSet activeAsks;
+    // Resting order fields live in the store; restingOrders maps order id to store slot
+    private final OrderStore store;
+    private final LongIntMap restingOrders;
     private QueuePriority queuePriority;
     private int tickSize;
-    private int bestBid = 0;
-    private int bestAsk = 1000;
-    private double doublePrecision = .000001;
-    private final int MAX_PRICE = 1000;
-    private final int MIN_PRICE = 0;
+    // Bumped on every change to the resting orders. Only the partition thread writes it; other threads read it to
+    // tell whether a view of the book they hold is still current.
+    private volatile long version = 0;
+    // Levels touched since the incremental feed last drained them, by the side they were touched on, and the
+    // sequence number of the last delta drained. Partition thread only.
+    private final BitSet changedBids;
+    private final BitSet changedAsks;
+    private long sequence = 0;
+    private final long MAX_PRICE = FixedPoint.PRICE_SCALE;
+    private final long MIN_PRICE = 0;
 
-    //Represent levels as basis points
+    // Prices are fixed-point thousandths (see FixedPoint); levels sit on multiples of the tick size
     public Orderbook(Market market, QueuePriority queuePriority) {
+        this(market, queuePriority, 1024);
+    }
+
+    public Orderbook(Market market, QueuePriority queuePriority, int expectedOrders) {
         this.market = market;
+        this.store = new OrderStore(expectedOrders);
+        this.restingOrders = new LongIntMap(expectedOrders);
         this.queuePriority = queuePriority;
         this.tickSize = market.getTickSize();
-        int currentLevel = 0;
-        while (currentLevel < MAX_PRICE) {
-            currentLevel += tickSize;
+        int numLevels = (int) (MAX_PRICE / tickSize) + 1;
+        levels = new Level[numLevels];
+        activeBids = new BitSet(numLevels);
+        activeAsks = new BitSet(numLevels);
+        changedBids = new BitSet(numLevels);
+        changedAsks = new BitSet(numLevels);
+        for (int i = 1; i < numLevels; i++) {
+            long currentLevel = (long) i * tickSize;
             if (queuePriority.equals(QueuePriority.PRO_RATA)) {
-                levels.put(currentLevel, new LevelProRata(currentLevel));
+                levels[i] = new LevelProRata(currentLevel, store);
             } else if (queuePriority.equals(QueuePriority.FIFO)) {
-                levels.put(currentLevel, new LevelFIFO(currentLevel));
+                levels[i] = new LevelFIFO(currentLevel, store);
             }
         }
-        logger.info("Initialized orderbook with levels: " + levels.keySet().toString());
+        logger.info("Initialized orderbook with " + (numLevels - 1) + " levels of tick size " + tickSize);
     }
 
     @Override
     public String toString() {
         String orderString = "";
-        int currentPrice = MAX_PRICE;
-        while (currentPrice > MIN_PRICE) {
-            currentPrice -= tickSize;
-            Level currentLevel = levels.get(currentPrice);
+        for (int i = levels.length - 1; i >= 0; i--) {
+            Level currentLevel = levels[i];
             if (currentLevel != null) {
                 if (currentLevel.getNumOrders() > 0) {
-                    orderString += getDoublePrice(currentPrice) + "  " + (currentLevel.getSide() * currentLevel.getTotalAmount()) + "\n";
+                    orderString += FixedPoint.fromPrice(currentLevel.getPrice()) + "  "
+                            + FixedPoint.fromLots(currentLevel.getSide() * currentLevel.getTotalAmount()) + "\n";
                 }
             }
         }
         return orderString;
     }
 
-    public int getBestBid() {
-        if (activeBids.size() > 0) {
-            logger.info("Got best bid: " + activeBids.first());
-            return activeBids.first();
+    public long getBestBid() {
+        int index = activeBids.previousSetBit(levels.length - 1);
+        if (index >= 0) {
+            return (long) index * tickSize;
         }
-        logger.info("Could not find any bids");
         return MIN_PRICE;
     }
 
-    public int getBestAsk() {
-        if (activeAsks.size() > 0) {
-            logger.info("Got best ask: " + activeAsks.first());
-            return activeAsks.first();
+    public long getBestAsk() {
+        int index = activeAsks.nextSetBit(0);
+        if (index >= 0) {
+            return (long) index * tickSize;
         }
-        logger.info("Could not find any asks");
         return MAX_PRICE;
     }
 
-//    public int getBestBid() {
-//        return bestBid;
-//    }
-//
-//    public int getBestAsk() {
-//        return bestAsk;
-//    }
+    public OrderStore getStore() {
+        return store;
+    }
 
-    public Level getLevel(double price) {
-        return levels.get(getIntPrice(price));
+    public long getVersion() {
+        return version;
     }
 
-    public Level getLevel(int price) {
-        logger.info("Getting level for price " + price);
-        return levels.get(price);
+    // Aggregated levels as of the current version; partition thread only
+    public L2Snapshot getL2Snapshot() {
+        int numBids = activeBids.cardinality();
+        int numAsks = activeAsks.cardinality();
+        long[] bidPrices = new long[numBids];
+        long[] bidAmounts = new long[numBids];
+        long[] askPrices = new long[numAsks];
+        long[] askAmounts = new long[numAsks];
+        int index = activeBids.previousSetBit(levels.length - 1);
+        for (int i = 0; i < numBids; i++) {
+            bidPrices[i] = levels[index].getPrice();
+            bidAmounts[i] = levels[index].getTotalAmount();
+            index = activeBids.previousSetBit(index - 1);
+        }
+        index = activeAsks.nextSetBit(0);
+        for (int i = 0; i < numAsks; i++) {
+            askPrices[i] = levels[index].getPrice();
+            askAmounts[i] = levels[index].getTotalAmount();
+            index = activeAsks.nextSetBit(index + 1);
+        }
+        return new L2Snapshot(market.getSymbol(), version, sequence, bidPrices, bidAmounts, askPrices, askAmounts);
     }
 
-    public static int getIntPrice(double price) {
-        //TODO: validate to doublePrecision
-        return (int) (price * 1000);
+    // Sequence of the last delta drained; a snapshot built now is current as of this delta
+    public long getSequence() {
+        return sequence;
     }
 
-    public static double getDoublePrice(int price) {
-        return ((double) price) / 1000;
+    public boolean hasLevelChanges() {
+        return !changedBids.isEmpty() || !changedAsks.isEmpty();
     }
 
-    // Only add limit orders; do not match here
-    public void addOrder(Order order) throws Exception {
-        double price = order.getPrice();
-        int intPrice = getIntPrice(price);
-//        order.setPrice(((double) intPrice) / 1000);
-        if (!levels.containsKey(intPrice)) {
-            throw new Exception("Price " + price + " is not a valid level [tickSize = .00" + tickSize + "]");
+    // Delta of every level touched since the last drain, with its new total (0 once empty), under the next
+    // sequence number; null if nothing changed. Each level appears once however many orders touched it.
+    public L2Delta drainLevelChanges() {
+        if (!hasLevelChanges()) {
+            return null;
         }
-        Level level = levels.get(intPrice);
-        if (level.getSide() == null || level.getSide() == order.getSide()) {
-            logger.info("Adding order " + order.toString() + " to level " + intPrice);
-            logger.info("Active asks: " + activeAsks.toString() + ", active bids:"  + activeBids.toString());
-            level.addOrder(order);
-            if (order.getSide() == Order.BUY && !activeBids.contains(intPrice)) {
-                logger.info("Adding price " + intPrice + " to active bids: " + activeBids.toString());
-                activeBids.add(intPrice);
-            } else if (order.getSide() == Order.SELL && !activeAsks.contains(intPrice)) {
-                logger.info("Adding price " + intPrice + " to active asks: " + activeAsks.toString());
-                activeAsks.add(intPrice);
-            }
-            if (order.getSide() == Order.BUY && (bestBid == MIN_PRICE || intPrice > bestBid)) {
-                logger.info("Changing best bid from " + bestBid + " to " + intPrice);
-                bestBid = intPrice;
-                logger.info("Added new best bid: " + bestBid);
-            } else if (order.getSide() == Order.SELL && (bestAsk == MAX_PRICE || intPrice < bestAsk)) {
-                logger.info("Changing best ask from " + bestAsk + " to " + intPrice);
-                bestAsk = intPrice;
-                logger.info("Added new best ask: " + bestAsk);
+        long[] bidPrices = new long[changedBids.cardinality()];
+        long[] bidAmounts = new long[bidPrices.length];
+        long[] askPrices = new long[changedAsks.cardinality()];
+        long[] askAmounts = new long[askPrices.length];
+        drainLevelChanges(changedBids, activeBids, bidPrices, bidAmounts);
+        drainLevelChanges(changedAsks, activeAsks, askPrices, askAmounts);
+        sequence++;
+        return new L2Delta(market.getSymbol(), sequence, sequence, bidPrices, bidAmounts, askPrices, askAmounts);
+    }
+
+    private void drainLevelChanges(BitSet changed, BitSet active, long[] prices, long[] amounts) {
+        int count = 0;
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            prices[count] = levels[i].getPrice();
+            amounts[count++] = active.get(i) ? levels[i].getTotalAmount() : 0;
+        }
+        changed.clear();
+    }
+
+    // Drops pending changes without building a delta, when nobody is subscribed; the sequence still advances
+    public void skipLevelChanges() {
+        if (hasLevelChanges()) {
+            sequence++;
+            changedBids.clear();
+            changedAsks.clear();
+        }
+    }
+
+    private void markChanged(int side, long price) {
+        (side == Order.BUY ? changedBids : changedAsks).set((int) (price / tickSize));
+    }
+
+    // OrderStore slot of a resting order, or OrderStore.NONE
+    public int getSlot(long id) {
+        int slot = restingOrders.get(id);
+        return slot == LongIntMap.NO_VALUE ? OrderStore.NONE : slot;
+    }
+
+    // Copy of a resting order's current state, or null
+    public Order getOrder(long id) {
+        int slot = getSlot(id);
+        return slot == OrderStore.NONE ? null : store.toOrder(slot, market);
+    }
+
+    public int getNumRestingOrders() {
+        return restingOrders.size();
+    }
+
+    // Lowest occupied ask at or above price, or -1
+    public long getNextAsk(long price) {
+        int index = activeAsks.nextSetBit((int) Math.max(0, (price + tickSize - 1) / tickSize));
+        return index >= 0 ? (long) index * tickSize : -1;
+    }
+
+    // Highest occupied bid at or below price, or -1
+    public long getNextBid(long price) {
+        if (price < MIN_PRICE) {
+            return -1;
+        }
+        int index = activeBids.previousSetBit((int) Math.min(levels.length - 1, price / tickSize));
+        return index >= 0 ? (long) index * tickSize : -1;
+    }
+
+    public boolean hasBids() {
+        return !activeBids.isEmpty();
+    }
+
+    public boolean hasAsks() {
+        return !activeAsks.isEmpty();
+    }
+
+    public int getTickSize() {
+        return tickSize;
+    }
+
+    public Level getLevel(long price) {
+        if (price < MIN_PRICE || price > MAX_PRICE || price % tickSize != 0) {
+            return null;
+        }
+        return levels[(int) (price / tickSize)];
+    }
+
+    // Only add limit orders; do not match here. Returns the OrderStore slot the order now rests in.
+    public int addOrder(Order order) throws Exception {
+        long price = order.getPrice();
+        Level level = getLevel(price);
+        if (level == null) {
+            throw new Exception("Price " + FixedPoint.fromPrice(price) + " is not a valid level [tickSize = "
+                    + FixedPoint.fromPrice(tickSize) + "]");
+        }
+        if (restingOrders.containsKey(order.getId())) {
+            throw new Exception("Order " + order.getId() + " is already resting");
+        }
+        if (level.getSide() == 0 || level.getSide() == order.getSide()) {
+            int slot = store.allocate(order);
+            level.addOrder(slot);
+            restingOrders.put(order.getId(), slot);
+            version++;
+            markChanged(order.getSide(), price);
+            if (order.getSide() == Order.BUY) {
+                activeBids.set((int) (price / tickSize));
+            } else if (order.getSide() == Order.SELL) {
+                activeAsks.set((int) (price / tickSize));
             }
+            return slot;
         } else {
             throw new Exception("Cannot add order to level if sides do not match");
         }
     }
 
-    public void removeOrder(String id, double price, int side) throws Exception {
-        logger.info("Removing order " + id + " from orderbook with price " + price + " and side " + side);
-        int intPrice = getIntPrice(price);
-        if (levels.containsKey(intPrice)) {
-            Level level = levels.get(intPrice);
-//            int side = level.getSide();
-            level.removeOrder(id);
-            if (level.getNumOrders() == 0) {
-                if (side == Order.BUY) {
-                    logger.info("Removing price " + intPrice + " from active bids: " + activeBids.toString());
-                    activeBids.remove(intPrice);
-                } else if (side == Order.SELL) {
-                    logger.info("Removing price " + intPrice + " from active asks: " + activeAsks.toString());
-                    activeAsks.remove(intPrice);
-                }
-                logger.info("Active asks: " + activeAsks.toString() + ", active bids:"  + activeBids.toString());
-
-                // Need to reset best bid/ask
-                if (side == Order.BUY && level.getPrice() == bestBid) {
-                    logger.info("Resetting best bid");
-                    int currentPrice = MAX_PRICE - tickSize;
-                    Level currentLevel;
-                    while (currentPrice > MIN_PRICE) {
-                        currentPrice -= tickSize;
-                        currentLevel = levels.get(currentPrice);
-//                        logger.info("Inspecting price for best bid reset: " + currentPrice);
-                        if (currentLevel != null) {
-//                            logger.info("Current level: " + currentLevel.toString());
-                            if (currentLevel.getSide() != null) {
-                                if (currentLevel.getSide() == side && currentLevel.getNumOrders() > 0) {
-                                    bestBid = currentPrice;
-                                    logger.info("Updated best bid to " + bestBid);
-                                    return;
-                                }
-                            }
-                        }
-                        bestBid = MIN_PRICE;
-                    }
-                } else if (side == Order.SELL && level.getPrice() == bestAsk) {
-                    logger.info("Resetting best ask");
-                    //TODO: dont need to iterate through all prices
-                    int currentPrice = MIN_PRICE + tickSize;
-                    Level currentLevel;
-                    while (currentPrice < MAX_PRICE) {
-                        currentPrice += tickSize;
-                        currentLevel = levels.get(currentPrice);
-//                        logger.info("Inspecting price for best ask reset: " + currentPrice);
-                        if (currentLevel != null) {
-//                            logger.info("Current level: " + currentLevel.toString());
-                            if (currentLevel.getSide() != null) {
-                                if (currentLevel.getSide() == side && currentLevel.getNumOrders() > 0) {
-                                    bestAsk = currentPrice;
-                                    logger.info("Updated best ask to " + bestAsk);
-                                    return;
-                                }
-                            }
-                        }
-                        bestAsk = MAX_PRICE;
-                    }
-                }
+    // Fills a resting order in place; the caller removes it once its amount reaches zero
+    public void fillOrder(int slot, long fillAmount) {
+        levels[(int) (store.getPrice(slot) / tickSize)].fillOrder(slot, fillAmount);
+        version++;
+        markChanged(store.getSide(slot), store.getPrice(slot));
+    }
+
+    // Resizes a resting order in place, keeping its queue priority
+    public void amendOrder(int slot, long newAmount) {
+        levels[(int) (store.getPrice(slot) / tickSize)].amendOrder(slot, newAmount);
+        version++;
+        markChanged(store.getSide(slot), store.getPrice(slot));
+    }
+
+    public Order removeOrder(long id) throws Exception {
+        int slot = restingOrders.get(id);
+        if (slot == LongIntMap.NO_VALUE) {
+            throw new Exception("Order " + id + " is not resting");
+        }
+        Order order = store.toOrder(slot, market);
+        removeOrder(slot);
+        return order;
+    }
+
+    // Removes the order from its level and releases its slot
+    public void removeOrder(int slot) throws Exception {
+        long price = store.getPrice(slot);
+        int side = store.getSide(slot);
+        Level level = getLevel(price);
+        if (level == null) {
+            throw new Exception("Price " + FixedPoint.fromPrice(price) + " is not a valid level");
+        }
+        level.removeOrder(slot);
+        restingOrders.remove(store.getId(slot));
+        store.release(slot);
+        version++;
+        markChanged(side, price);
+        if (level.getNumOrders() == 0) {
+            // Clearing the occupancy bit is all that is needed to reset best bid/ask
+            if (side == Order.BUY) {
+                activeBids.clear((int) (price / tickSize));
+            } else if (side == Order.SELL) {
+                activeAsks.clear((int) (price / tickSize));
             }
-        } else {
-            throw new Exception("Price " + price + " is not a valid level");
         }
     }
 
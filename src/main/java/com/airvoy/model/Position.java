@@ -0,0 +1,129 @@
+package com.airvoy.model;
+
+import com.airvoy.model.utils.FixedPoint;
+import org.json.simple.JSONObject;
+
+// One account's holding in one market with its running P&L, updated in constant time per fill and per mark. Only
+// the partition that matches the market writes it; the P&L publisher reads it from its own thread.
+// Cost is the signed amount paid for the open quantity (negative for a short), so unrealised P&L is
+// quantity x mark - cost and the average entry price is cost / quantity. Money is in micro-units.
+public class Position {
+
+    private final Account account;
+    private final Market market;
+    // Lots, negative when short
+    private volatile long quantity = 0;
+    private volatile long cost = 0;
+    private volatile long realizedPnl = 0;
+    // Price the open quantity is valued at; -1 until the market has one
+    private volatile long mark = -1;
+    // Index in the owning engine's list of accounts holding the market; -1 while flat
+    private int holderIndex = -1;
+    // Set once the owning engine lists it among the positions its snapshots walk
+    private boolean tracked = false;
+
+    public Position(Account account, Market market) {
+        this.account = account;
+        this.market = market;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public Market getMarket() {
+        return market;
+    }
+
+    public long getQuantity() {
+        return quantity;
+    }
+
+    public long getCost() {
+        return cost;
+    }
+
+    public long getRealizedPnl() {
+        return realizedPnl;
+    }
+
+    public long getMark() {
+        return mark;
+    }
+
+    public void setMark(long newMark) {
+        mark = newMark;
+    }
+
+    public long getUnrealizedPnl() {
+        long currentMark = mark;
+        return currentMark < 0 ? 0 : quantity * currentMark - cost;
+    }
+
+    // Thousandths; 0 while flat
+    public double getAverageEntryPrice() {
+        long currentQuantity = quantity;
+        return currentQuantity == 0 ? 0 : (double) cost / currentQuantity;
+    }
+
+    public int getHolderIndex() {
+        return holderIndex;
+    }
+
+    public void setHolderIndex(int newHolderIndex) {
+        holderIndex = newHolderIndex;
+    }
+
+    public boolean isTracked() {
+        return tracked;
+    }
+
+    public void setTracked(boolean newTracked) {
+        tracked = newTracked;
+    }
+
+    // A fill that reduces the position realises P&L against the average entry of the part it closes; whatever
+    // goes beyond flat opens a new position at the fill price
+    public void applyFill(long signedAmount, long price) {
+        long currentQuantity = quantity;
+        long currentCost = cost;
+        if (currentQuantity == 0 || Long.signum(currentQuantity) == Long.signum(signedAmount)) {
+            quantity = currentQuantity + signedAmount;
+            cost = currentCost + signedAmount * price;
+            return;
+        }
+        long held = Math.abs(currentQuantity);
+        long closed = Math.min(Math.abs(signedAmount), held);
+        // Split so the multiplication cannot overflow
+        long closedCost = closed == held ? currentCost
+                : currentCost / held * closed + currentCost % held * closed / held;
+        realizedPnl += Long.signum(currentQuantity) * closed * price - closedCost;
+        long opened = Math.abs(signedAmount) - closed;
+        if (opened > 0) {
+            quantity = Long.signum(signedAmount) * opened;
+            cost = Long.signum(signedAmount) * opened * price;
+        } else {
+            quantity = currentQuantity + signedAmount;
+            cost = currentCost - closedCost;
+        }
+    }
+
+    // State restored from a snapshot
+    public void restore(long restoredQuantity, long restoredCost, long restoredRealizedPnl) {
+        quantity = restoredQuantity;
+        cost = restoredCost;
+        realizedPnl = restoredRealizedPnl;
+    }
+
+    public JSONObject toJson() {
+        JSONObject positionJson = new JSONObject();
+        positionJson.put("symbol", market.getSymbol());
+        positionJson.put("position", FixedPoint.fromLots(quantity));
+        positionJson.put("averageEntryPrice", getAverageEntryPrice() / FixedPoint.PRICE_SCALE);
+        positionJson.put("mark", mark < 0 ? null : FixedPoint.fromPrice(mark));
+        positionJson.put("realizedPnl", FixedPoint.fromMicros(realizedPnl));
+        positionJson.put("unrealizedPnl", FixedPoint.fromMicros(getUnrealizedPnl()));
+        return positionJson;
+    }
+
+}
@@ -1,30 +1,35 @@
 package com.airvoy.model;
 
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.trading.IdGenerator;
 import org.json.simple.JSONObject;
 
-import java.util.UUID;
-
 public class Trade {
 
     private final Market market;
     private final int side;
-    private final Order makerOrder;
-    private final Order takerOrder;
-    private double price;
-    private double amount;
+    private final long makerOrderId;
+    private final Account makerAccount;
+    private final long takerOrderId;
+    private final Account takerAccount;
+    private long price;
+    private long amount;
     private long timestamp;
-    private double fee;
-    private String id;
+    private long fee;
+    private long id;
 
-    public Trade(Market market, int side, double price, double amount, Order makerOrder, Order takerOrder) {
+    public Trade(long id, Market market, int side, long price, long amount, long makerOrderId, Account makerAccount,
+                 long takerOrderId, Account takerAccount) {
         this.market = market;
         this.side = side;
         this.price = price;
         this.amount = amount;
-        this.makerOrder = makerOrder;
-        this.takerOrder = takerOrder;
+        this.makerOrderId = makerOrderId;
+        this.makerAccount = makerAccount;
+        this.takerOrderId = takerOrderId;
+        this.takerAccount = takerAccount;
         this.timestamp = System.currentTimeMillis();
-        this.id = UUID.randomUUID().toString();
+        this.id = id;
         this.fee = 0; // TODO: implement
     }
 
@@ -32,37 +37,46 @@ public class Trade {
     public String toString() {
         JSONObject tradeJson = new JSONObject();
         tradeJson.put("timestamp", getTimestamp());
-        tradeJson.put("price", getPrice());
-        tradeJson.put("amount", getSide() * getAmount());
-        tradeJson.put("id", getId());
+        tradeJson.put("price", FixedPoint.fromPrice(getPrice()));
+        tradeJson.put("amount", FixedPoint.fromLots(getSide() * getAmount()));
+        tradeJson.put("id", IdGenerator.toString(getId()));
         return tradeJson.toString();
     }
 
     public Account getMakerAccount() {
-        return makerOrder.getAccount();
+        return makerAccount;
     }
     
     public Account getTakerAccount() {
-        return takerOrder.getAccount();
+        return takerAccount;
+    }
+
+    public long getMakerOrderId() {
+        return makerOrderId;
+    }
+
+    public long getTakerOrderId() {
+        return takerOrderId;
     }
 
     public int getSide() {
         return side;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public double getPrice() {
+    public long getPrice() {
         return price;
     }
 
-    public double getFee() {
+    // Micro-units
+    public long getFee() {
         return fee;
     }
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
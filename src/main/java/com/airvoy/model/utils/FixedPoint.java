@@ -0,0 +1,37 @@
+package com.airvoy.model.utils;
+
+// Fixed-point units used by the trading model. Doubles only appear at the JSON and database boundaries.
+public class FixedPoint {
+
+    // Prices are longs in thousandths (market tick sizes are multiples of this)
+    public static final long PRICE_SCALE = 1000;
+    // Amounts are longs in lots of one thousandth of a contract
+    public static final long AMOUNT_SCALE = 1000;
+    // Balances are longs in micro-units, so price * amount is already a balance
+    public static final long BALANCE_SCALE = PRICE_SCALE * AMOUNT_SCALE;
+
+    public static long toPrice(double price) {
+        return Math.round(price * PRICE_SCALE);
+    }
+
+    public static double fromPrice(long price) {
+        return ((double) price) / PRICE_SCALE;
+    }
+
+    public static long toLots(double amount) {
+        return Math.round(amount * AMOUNT_SCALE);
+    }
+
+    public static double fromLots(long amount) {
+        return ((double) amount) / AMOUNT_SCALE;
+    }
+
+    public static long toMicros(double balance) {
+        return Math.round(balance * BALANCE_SCALE);
+    }
+
+    public static double fromMicros(long balance) {
+        return ((double) balance) / BALANCE_SCALE;
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.airvoy.model.utils;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Messages encoded once to UTF-8 and shared by every connection they go to. The buffer is read-only and each send
+// works on its own view of it, so any number of threads can send the same frame; connections still receive a text
+// frame, as they did from WebSocket.send(String).
+public class Frames {
+
+    private final static LoggerFactory logger = new LoggerFactory("Frames");
+
+    public static ByteBuffer encode(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    public static String decode(ByteBuffer frame) {
+        return StandardCharsets.UTF_8.decode(frame.duplicate()).toString();
+    }
+
+    public static void send(WebSocket connection, ByteBuffer frame) {
+        FramedataImpl1 framedata = new FramedataImpl1(Framedata.Opcode.TEXT);
+        framedata.setFin(true);
+        try {
+            framedata.setPayload(frame.duplicate());
+        } catch (InvalidDataException e) {
+            logger.warn("Could not frame message: " + e.getMessage());
+            return;
+        }
+        connection.sendFrame(framedata);
+    }
+
+}
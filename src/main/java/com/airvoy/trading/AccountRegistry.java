@@ -0,0 +1,89 @@
+package com.airvoy.trading;
+
+import com.airvoy.DatabaseManager;
+import com.airvoy.model.Account;
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One Account per user for the life of the process, loaded from the Users table at startup. Usernames are
+// interned to int handles, so the order path resolves an account with a map lookup and no database call, and every
+// order of a user updates the same balance and positions. Orders of users that are not in the table are rejected.
+public class AccountRegistry {
+
+    private final static LoggerFactory logger = new LoggerFactory("AccountRegistry");
+
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+    // Indexed by handle; an entry is written before its handle is published in the map
+    private volatile Account[] accounts = new Account[64];
+    private int size = 0;
+
+    public int load(DatabaseManager databaseManager) {
+        Integer loaded = databaseManager.query(DatabaseManager.Query.GET_USERS, resultSet -> {
+            int count = 0;
+            while (resultSet.next()) {
+                register(resultSet.getString("Username"), FixedPoint.toMicros(resultSet.getDouble("Balance")));
+                count++;
+            }
+            return count;
+        });
+        if (loaded == null) {
+            logger.warn("Could not load accounts");
+            return 0;
+        }
+        logger.info("Loaded " + loaded + " accounts");
+        return loaded;
+    }
+
+    // Returns the existing account if the username is already registered
+    public synchronized Account register(String username, long balance) {
+        Integer existing = handles.get(username);
+        if (existing != null) {
+            return accounts[existing];
+        }
+        int handle = size;
+        Account[] current = accounts;
+        if (handle == current.length) {
+            current = Arrays.copyOf(current, handle * 2);
+        }
+        Account account = new Account(username, handle, balance);
+        current[handle] = account;
+        accounts = current;
+        size++;
+        handles.put(username, handle);
+        return account;
+    }
+
+    public Account get(String username) {
+        Integer handle = handles.get(username);
+        return handle == null ? null : accounts[handle];
+    }
+
+    // Accounts named in a snapshot existed when it was taken; one no longer in the Users table is registered with
+    // a zero seed, and the snapshot sets its balance
+    public Account restore(String username) {
+        Account account = get(username);
+        if (account != null) {
+            return account;
+        }
+        logger.warn("Restoring account " + username + ", which is not in the Users table");
+        return register(username, 0);
+    }
+
+    // -1 if the username is not registered
+    public int getHandle(String username) {
+        Integer handle = handles.get(username);
+        return handle == null ? -1 : handle;
+    }
+
+    public Account get(int handle) {
+        return accounts[handle];
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Closes the batch of every auction market at the end of its interval. The timer only publishes an auction
+// command; the uncross itself runs on the market's partition thread in sequence with its orders.
+public class AuctionScheduler {
+
+    private final static LoggerFactory logger = new LoggerFactory("AuctionScheduler");
+
+    private final ExchangeManager exchangeManager;
+    private final Sequencer sequencer;
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "auction-timer"));
+
+    public AuctionScheduler(ExchangeManager exchangeManager, Sequencer sequencer) {
+        this.exchangeManager = exchangeManager;
+        this.sequencer = sequencer;
+    }
+
+    public void start() {
+        for (MatchingEngine matchingEngine : exchangeManager.getMatchingEngines()) {
+            if (matchingEngine.isAuctionMode()) {
+                schedule(matchingEngine);
+            }
+        }
+    }
+
+    // Also used for auction markets added while trading is live
+    public void schedule(MatchingEngine matchingEngine) {
+        String symbol = matchingEngine.getMarket().getSymbol();
+        long interval = matchingEngine.getMarket().getAuctionInterval();
+        timer.scheduleAtFixedRate(() -> sequencer.publishAuction(symbol, true), interval, interval,
+                TimeUnit.MILLISECONDS);
+        logger.info("Scheduled batch auctions for " + symbol + " every " + interval + "ms");
+    }
+
+    public void stop() {
+        timer.shutdown();
+    }
+
+}
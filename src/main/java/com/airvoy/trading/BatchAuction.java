@@ -0,0 +1,308 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.*;
+import com.airvoy.model.utils.FixedPoint;
+
+import java.util.Arrays;
+
+// Periodic call auction for one market. Orders arriving during an interval are held here instead of matching;
+// at the end of the interval the resting book and the batch are priced together at the single price that
+// maximises executed volume (ties go to the smallest imbalance, then to the middle of the tied range). Each side
+// is then allocated in price priority, with resting orders ahead of the batch at the same price: the marginal
+// resting level follows the market's queue priority and batch orders follow arrival order. The book is left
+// uncrossed afterwards, so it keeps using single-sided levels. Scratch arrays are reused between batches.
+public class BatchAuction implements OrderVisitor {
+
+    private final Orderbook orderbook;
+    private final OrderStore store;
+    private final ProRataAllocator proRataAllocator;
+    private final long tickSize;
+    private final long[] bidAmounts;
+    private final long[] askAmounts;
+    // Demand at or above each tick
+    private final long[] demand;
+    private Order[] orders = new Order[64];
+    // Price each batch order is willing to trade at; market orders get their protection bound or the ladder end
+    private long[] limitPrices = new long[64];
+    private int count = 0;
+    private long clearingPrice = -1;
+    private long volume = 0;
+    private final Fills buyFills = new Fills();
+    private final Fills sellFills = new Fills();
+    // Visitor state while collecting resting orders at one level
+    private Fills visitFills;
+    private long visitRemaining;
+
+    public BatchAuction(Orderbook orderbook, ProRataAllocator proRataAllocator) {
+        this.orderbook = orderbook;
+        this.store = orderbook.getStore();
+        this.proRataAllocator = proRataAllocator;
+        this.tickSize = orderbook.getTickSize();
+        int numLevels = (int) (FixedPoint.PRICE_SCALE / tickSize) + 1;
+        this.bidAmounts = new long[numLevels];
+        this.askAmounts = new long[numLevels];
+        this.demand = new long[numLevels];
+    }
+
+    public void add(Order order, long limitPrice) {
+        if (count == orders.length) {
+            orders = Arrays.copyOf(orders, count * 2);
+            limitPrices = Arrays.copyOf(limitPrices, count * 2);
+        }
+        orders[count] = order;
+        limitPrices[count] = limitPrice;
+        count++;
+    }
+
+    // Returns the pending order, or null if the id is not in this batch
+    public Order get(long id) {
+        int index = indexOf(id);
+        return index < 0 ? null : orders[index];
+    }
+
+    public Order remove(long id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return null;
+        }
+        Order order = orders[index];
+        System.arraycopy(orders, index + 1, orders, index, count - index - 1);
+        System.arraycopy(limitPrices, index + 1, limitPrices, index, count - index - 1);
+        orders[--count] = null;
+        return order;
+    }
+
+    // Limit of a pending order, or -1 if the id is not in this batch
+    public long getLimitPrice(long id) {
+        int index = indexOf(id);
+        return index < 0 ? -1 : limitPrices[index];
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < count; i++) {
+            if (orders[i].getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Order getOrder(int i) {
+        return orders[i];
+    }
+
+    public long getLimitPrice(int i) {
+        return limitPrices[i];
+    }
+
+    public void clear() {
+        Arrays.fill(orders, 0, count, null);
+        count = 0;
+        clearingPrice = -1;
+        volume = 0;
+        buyFills.clear();
+        sellFills.clear();
+    }
+
+    public long getClearingPrice() {
+        return clearingPrice;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public Fills getFills(int side) {
+        return side == Order.BUY ? buyFills : sellFills;
+    }
+
+    // Prices the batch and allocates both sides; returns false if nothing crosses
+    public boolean uncross() throws Exception {
+        Arrays.fill(bidAmounts, 0);
+        Arrays.fill(askAmounts, 0);
+        for (long price = orderbook.getNextBid(Long.MAX_VALUE); price >= 0; price = orderbook.getNextBid(price - 1)) {
+            bidAmounts[(int) (price / tickSize)] += orderbook.getLevel(price).getTotalAmount();
+        }
+        for (long price = orderbook.getNextAsk(0); price >= 0; price = orderbook.getNextAsk(price + 1)) {
+            askAmounts[(int) (price / tickSize)] += orderbook.getLevel(price).getTotalAmount();
+        }
+        for (int i = 0; i < count; i++) {
+            int tick = (int) (limitPrices[i] / tickSize);
+            if (orders[i].getSide() == Order.BUY) {
+                bidAmounts[tick] += orders[i].getAmount();
+            } else {
+                askAmounts[tick] += orders[i].getAmount();
+            }
+        }
+        int clearingTick = getClearingTick();
+        if (clearingTick < 0) {
+            return false;
+        }
+        clearingPrice = clearingTick * tickSize;
+        allocate(Order.BUY, buyFills);
+        allocate(Order.SELL, sellFills);
+        return true;
+    }
+
+    private int getClearingTick() {
+        int numTicks = bidAmounts.length;
+        // Supply is accumulated upwards in the scan below
+        long cumulative = 0;
+        for (int tick = numTicks - 1; tick >= 0; tick--) {
+            cumulative += bidAmounts[tick];
+            demand[tick] = cumulative;
+        }
+        long supply = 0;
+        long bestVolume = 0;
+        long bestImbalance = Long.MAX_VALUE;
+        int lowTick = -1;
+        int highTick = -1;
+        for (int tick = 0; tick < numTicks; tick++) {
+            supply += askAmounts[tick];
+            long executable = Math.min(demand[tick], supply);
+            long imbalance = Math.abs(demand[tick] - supply);
+            if (executable > bestVolume || (executable == bestVolume && executable > 0 && imbalance < bestImbalance)) {
+                bestVolume = executable;
+                bestImbalance = imbalance;
+                lowTick = tick;
+                highTick = tick;
+            } else if (executable == bestVolume && executable > 0 && imbalance == bestImbalance) {
+                highTick = tick;
+            }
+        }
+        volume = bestVolume;
+        if (bestVolume == 0) {
+            return -1;
+        }
+        // Executable volume is unimodal in price, so ticks with the same volume and imbalance are contiguous
+        return (lowTick + highTick) / 2;
+    }
+
+    // Fills volume on one side, best price first
+    private void allocate(int side, Fills fills) throws Exception {
+        fills.clear();
+        long[] amounts = side == Order.BUY ? bidAmounts : askAmounts;
+        int step = side == Order.BUY ? -1 : 1;
+        // Find the marginal tick and what is left for it once every better price is filled
+        int marginalTick = side == Order.BUY ? amounts.length - 1 : 0;
+        long remaining = volume;
+        while (remaining > amounts[marginalTick]) {
+            remaining -= amounts[marginalTick];
+            marginalTick += step;
+        }
+        int bestTick = side == Order.BUY ? amounts.length - 1 : 0;
+        for (int tick = bestTick; tick != marginalTick + step; tick += step) {
+            Level level = orderbook.getLevel(tick * tickSize);
+            if (level == null || level.getSide() != side || level.getNumOrders() == 0) {
+                continue;
+            }
+            if (tick != marginalTick || remaining >= level.getTotalAmount()) {
+                collect(level, Long.MAX_VALUE, fills);
+                if (tick == marginalTick) {
+                    remaining -= level.getTotalAmount();
+                }
+            } else if (level.getPriority() == Orderbook.QueuePriority.PRO_RATA) {
+                int numMakers = proRataAllocator.allocate(level, remaining);
+                for (int i = 0; i < numMakers; i++) {
+                    if (proRataAllocator.getAllocation(i) > 0) {
+                        fills.add(proRataAllocator.getSlot(i), null, proRataAllocator.getAllocation(i));
+                    }
+                }
+                remaining = 0;
+            } else {
+                collect(level, remaining, fills);
+                remaining = 0;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (orders[i].getSide() != side) {
+                continue;
+            }
+            int tick = (int) (limitPrices[i] / tickSize);
+            boolean better = side == Order.BUY ? tick > marginalTick : tick < marginalTick;
+            if (better) {
+                fills.add(OrderStore.NONE, orders[i], orders[i].getAmount());
+            } else if (tick == marginalTick && remaining > 0) {
+                long amount = Math.min(remaining, orders[i].getAmount());
+                fills.add(OrderStore.NONE, orders[i], amount);
+                remaining -= amount;
+            }
+        }
+    }
+
+    private void collect(Level level, long limit, Fills fills) throws Exception {
+        visitFills = fills;
+        visitRemaining = limit;
+        level.forEachOrder(this);
+        visitFills = null;
+    }
+
+    @Override
+    public void visit(int slot) {
+        long amount = Math.min(store.getAmount(slot), visitRemaining);
+        if (amount > 0) {
+            visitFills.add(slot, null, amount);
+            visitRemaining -= amount;
+        }
+    }
+
+    // One side's allocation: each entry is either a resting slot or a batch order, never both
+    public class Fills {
+
+        private int[] slots = new int[64];
+        private Order[] fillOrders = new Order[64];
+        private long[] amounts = new long[64];
+        private int count = 0;
+
+        private void add(int slot, Order order, long amount) {
+            if (count == slots.length) {
+                slots = Arrays.copyOf(slots, count * 2);
+                fillOrders = Arrays.copyOf(fillOrders, count * 2);
+                amounts = Arrays.copyOf(amounts, count * 2);
+            }
+            slots[count] = slot;
+            fillOrders[count] = order;
+            amounts[count] = amount;
+            count++;
+        }
+
+        private void clear() {
+            Arrays.fill(fillOrders, 0, count, null);
+            count = 0;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public int getSlot(int i) {
+            return slots[i];
+        }
+
+        public Order getOrder(int i) {
+            return fillOrders[i];
+        }
+
+        public long getAmount(int i) {
+            return amounts[i];
+        }
+
+        public long getId(int i) {
+            return slots[i] == OrderStore.NONE ? fillOrders[i].getId() : store.getId(slots[i]);
+        }
+
+        public Account getAccount(int i) {
+            return slots[i] == OrderStore.NONE ? fillOrders[i].getAccount() : store.getAccount(slots[i]);
+        }
+
+        public long getSequence(int i) {
+            return slots[i] == OrderStore.NONE ? fillOrders[i].getSequence() : store.getSequence(slots[i]);
+        }
+
+    }
+
+}
@@ -0,0 +1,341 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Append-only binary journal of every sequenced command, written by the sequencer thread through a memory-mapped
+// file. The file is mapped in fixed-size regions and a record never spans two; a length of -1 marks the unused
+// end of a region and a length of 0 marks the end of the journal. Appending is a copy into the mapped region;
+// the region is forced to disk every syncBatch records and whenever the sequencer runs out of work.
+//
+// Record: int length, long sequence, byte type, byte broadcast, then by type
+//   SUBMIT:  symbol, username, byte side, byte orderType, byte timeInForce, byte postOnly, long price,
+//            long amount, long protectionPrice, long maxSlippage, int maxLevels, long timestamp
+//   CANCEL:  long orderId, username
+//   AMEND:   long orderId, long price, long amount, username
+//   AUCTION: symbol
+//   SNAPSHOT: nothing; replay starts after the sequence of the snapshot it resumes from
+//   RISK:    long commandSequence, byte accepted; the outcome of an earlier command's collateral check, appended
+//            once its partition has made it. Its own sequence repeats the last command's.
+// Strings are a short byte length followed by UTF-8 bytes; a length of -1 is null.
+public class CommandJournal {
+
+    private final static LoggerFactory logger = new LoggerFactory("CommandJournal");
+
+    private final static int END_OF_REGION = -1;
+    private final static int MAX_STRING_BYTES = 1024;
+    // Fixed part of the largest record, plus two strings
+    private final static int MAX_RECORD_SIZE = 4 + 8 + 2 + 4 + 5 * 8 + 4 + 8 + 2 * (2 + MAX_STRING_BYTES);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long regionSize;
+    private final int syncBatch;
+    private MappedByteBuffer region;
+    private long regionStart = 0;
+    private long lastSequence = 0;
+    private long numRecords = 0;
+    private int unsynced = 0;
+
+    // syncBatch is the most records appended between forces; 0 leaves flushing to the OS
+    public CommandJournal(String path, long regionSize, int syncBatch) throws IOException {
+        if (regionSize < MAX_RECORD_SIZE || regionSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid journal region size: " + regionSize);
+        }
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.regionSize = regionSize;
+        this.syncBatch = syncBatch;
+        scan();
+    }
+
+    // Positions the journal after its last complete record, reading only record headers
+    private void scan() throws IOException {
+        numRecords = 0;
+        region = map(0);
+        while (true) {
+            int start = region.position();
+            int length = region.remaining() >= 4 ? region.getInt(start) : END_OF_REGION;
+            if (length == END_OF_REGION) {
+                region = map(regionStart + regionSize);
+                continue;
+            }
+            if (length == 0) {
+                break;
+            }
+            lastSequence = region.getLong(start + 4);
+            numRecords++;
+            region.position(start + length);
+        }
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    public boolean isEmpty() {
+        return numRecords == 0;
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        regionStart = start;
+        return channel.map(FileChannel.MapMode.READ_WRITE, start, regionSize);
+    }
+
+    // Called by the sequencer thread for every command before it is dispatched
+    public void append(OrderCommand command) throws IOException {
+        if (region.remaining() < MAX_RECORD_SIZE + 4) {
+            nextRegion();
+        }
+        int start = region.position();
+        region.position(start + 4);
+        region.putLong(command.getSequence());
+        region.put((byte) command.getType().ordinal());
+        region.put((byte) (command.isBroadcast() ? 1 : 0));
+        switch (command.getType()) {
+            case SUBMIT:
+                Order order = command.getOrder();
+                putString(order.getSymbol());
+                putString(order.getAccount().getUsername());
+                region.put((byte) order.getSide());
+                region.put((byte) order.getType().ordinal());
+                region.put((byte) order.getTimeInForce().ordinal());
+                region.put((byte) (order.isPostOnly() ? 1 : 0));
+                region.putLong(order.getPrice());
+                region.putLong(order.getAmount());
+                region.putLong(order.getProtectionPrice());
+                region.putLong(order.getMaxSlippage());
+                region.putInt(order.getMaxLevels());
+                region.putLong(order.getTimestamp());
+                break;
+            case CANCEL:
+                region.putLong(command.getOrderId());
+                putString(command.getUsername());
+                break;
+            case AMEND:
+                region.putLong(command.getOrderId());
+                region.putLong(command.getPrice());
+                region.putLong(command.getAmount());
+                putString(command.getUsername());
+                break;
+            case AUCTION:
+                putString(command.getSymbol());
+                break;
+        }
+        // The length goes in last, so a record is only visible to replay once it is complete
+        region.putInt(start, region.position() - start);
+        lastSequence = command.getSequence();
+        numRecords++;
+        if (syncBatch > 0 && ++unsynced >= syncBatch) {
+            sync();
+        }
+    }
+
+    // Called by the sequencer thread for each decision a partition has queued
+    public void appendRisk(long commandSequence, boolean accepted) throws IOException {
+        if (region.remaining() < MAX_RECORD_SIZE + 4) {
+            nextRegion();
+        }
+        int start = region.position();
+        region.position(start + 4);
+        region.putLong(lastSequence);
+        region.put((byte) OrderCommand.Type.RISK.ordinal());
+        region.put((byte) 0);
+        region.putLong(commandSequence);
+        region.put((byte) (accepted ? 1 : 0));
+        region.putInt(start, region.position() - start);
+        numRecords++;
+        if (syncBatch > 0 && ++unsynced >= syncBatch) {
+            sync();
+        }
+    }
+
+    // For commands executed directly before the sequencer starts, such as seed orders, so replay sees them too
+    public long appendSubmit(Order order, boolean broadcast) throws IOException {
+        OrderCommand command = new OrderCommand();
+        command.setSubmit(order, broadcast);
+        command.setSequence(lastSequence + 1);
+        append(command);
+        return command.getSequence();
+    }
+
+    public void sync() {
+        if (unsynced > 0) {
+            region.force();
+            unsynced = 0;
+        }
+    }
+
+    private void nextRegion() throws IOException {
+        if (region.remaining() >= 4) {
+            region.putInt(region.position(), END_OF_REGION);
+        }
+        region.force();
+        unsynced = 0;
+        region = map(regionStart + regionSize);
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            region.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        region.putShort((short) length);
+        region.put(bytes, 0, length);
+    }
+
+    private String getString() {
+        int length = region.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        region.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Feeds every journaled command with a sequence above fromSequence straight through the ExchangeManager on the
+    // calling thread, without broadcasting, and leaves the journal positioned for appending after the last record.
+    // Collateral checks take the outcome journaled for their command. Must run before the sequencer starts.
+    public long replay(ExchangeManager exchangeManager, long fromSequence) throws IOException {
+        loadRiskDecisions(exchangeManager.getRiskDecisions(), fromSequence);
+        long replayed = 0;
+        numRecords = 0;
+        region = map(0);
+        while (true) {
+            int start = region.position();
+            int length = region.remaining() >= 4 ? region.getInt(start) : END_OF_REGION;
+            if (length == END_OF_REGION) {
+                region = map(regionStart + regionSize);
+                continue;
+            }
+            if (length == 0) {
+                break;
+            }
+            region.position(start + 4);
+            long sequence = region.getLong();
+            OrderCommand.Type type = OrderCommand.Type.values()[region.get()];
+            region.get();
+            numRecords++;
+            lastSequence = sequence;
+            switch (type) {
+                case SUBMIT:
+                    String symbol = getString();
+                    String username = getString();
+                    int side = region.get();
+                    Order.Type orderType = Order.Type.values()[region.get()];
+                    Order.TimeInForce timeInForce = Order.TimeInForce.values()[region.get()];
+                    boolean postOnly = region.get() == 1;
+                    long price = region.getLong();
+                    long amount = region.getLong();
+                    long protectionPrice = region.getLong();
+                    long maxSlippage = region.getLong();
+                    int maxLevels = region.getInt();
+                    long timestamp = region.getLong();
+                    if (sequence > fromSequence) {
+                        MatchingEngine matchingEngine = exchangeManager.getMatchingEngine(symbol);
+                        if (matchingEngine == null) {
+                            break;
+                        }
+                        Market market = matchingEngine.getMarket();
+                        Account account = exchangeManager.getAccountRegistry().get(username);
+                        if (account == null) {
+                            logger.warn("Skipping journaled order " + sequence + " of unknown account " + username);
+                            break;
+                        }
+                        Order order = new Order(market, side, price, amount, account, orderType);
+                        order.setTimeInForce(timeInForce);
+                        order.setPostOnly(postOnly);
+                        order.setProtectionPrice(protectionPrice);
+                        order.setMaxSlippage(maxSlippage);
+                        order.setMaxLevels(maxLevels);
+                        order.setTimestamp(timestamp);
+                        exchangeManager.submitOrder(order, sequence, false);
+                    }
+                    break;
+                case CANCEL: {
+                    long orderId = region.getLong();
+                    String cancelUsername = getString();
+                    if (sequence > fromSequence) {
+                        exchangeManager.cancelOrder(orderId, cancelUsername, false);
+                    }
+                    break;
+                }
+                case AMEND: {
+                    long orderId = region.getLong();
+                    long newPrice = region.getLong();
+                    long newAmount = region.getLong();
+                    String amendUsername = getString();
+                    if (sequence > fromSequence) {
+                        exchangeManager.amendOrder(orderId, newPrice, newAmount, amendUsername, sequence, false);
+                    }
+                    break;
+                }
+                case AUCTION:
+                    String auctionSymbol = getString();
+                    if (sequence > fromSequence) {
+                        exchangeManager.runAuction(auctionSymbol, false);
+                    }
+                    break;
+                case RISK:
+                    // Loaded before the replay
+                    break;
+            }
+            if (sequence > fromSequence && type != OrderCommand.Type.RISK) {
+                replayed++;
+            }
+            region.position(start + length);
+        }
+        // Decisions of commands that never needed a check on replay
+        exchangeManager.getRiskDecisions().clearRecorded();
+        logger.info("Replayed " + replayed + " of " + numRecords + " journaled commands up to sequence " + lastSequence);
+        return replayed;
+    }
+
+    // First pass over the journal, so every decision is known before the command that made it is replayed
+    private void loadRiskDecisions(RiskDecisions riskDecisions, long fromSequence) throws IOException {
+        int loaded = 0;
+        region = map(0);
+        while (true) {
+            int start = region.position();
+            int length = region.remaining() >= 4 ? region.getInt(start) : END_OF_REGION;
+            if (length == END_OF_REGION) {
+                region = map(regionStart + regionSize);
+                continue;
+            }
+            if (length == 0) {
+                break;
+            }
+            if (region.get(start + 12) == OrderCommand.Type.RISK.ordinal()) {
+                long commandSequence = region.getLong(start + 14);
+                if (commandSequence > fromSequence) {
+                    riskDecisions.putRecorded(commandSequence, region.get(start + 22) == 1);
+                    loaded++;
+                }
+            }
+            region.position(start + length);
+        }
+        logger.info("Loaded " + loaded + " journaled risk decisions");
+    }
+
+    public void close() throws IOException {
+        region.force();
+        channel.close();
+        file.close();
+    }
+
+}
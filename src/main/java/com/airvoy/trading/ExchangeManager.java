@@ -1,61 +1,174 @@
 package com.airvoy.trading;
 
 import com.airvoy.DatabaseManager;
+import com.airvoy.model.L2Snapshot;
 import com.airvoy.model.Market;
 import com.airvoy.model.Order;
+import com.airvoy.model.utils.Frames;
 import com.airvoy.model.utils.LoggerFactory;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.java_websocket.WebSocket;
 import org.json.simple.JSONObject;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class ExchangeManager {
 
     private final static LoggerFactory logger = new LoggerFactory("ExchangeManager");
 
+    private final static int DEFAULT_PARTITION_CAPACITY = 1 << 14;
+
     private DatabaseManager databaseManager;
-    private Map<String, MatchingEngine> matchingEngineMap = new HashMap<>();
-    private Set<WebSocket> connections = new HashSet<>();
+    // Both are read from the sequencer and partition threads while engines may still be added
+    private Map<String, MatchingEngine> matchingEngineMap = new ConcurrentHashMap<>();
+    // Indexed by engine index, which is also encoded in the high bits of every order id
+    private List<MatchingEngine> matchingEngines = new CopyOnWriteArrayList<>();
+    // Order updates, trades and book deltas go only to connections subscribed to the market
+    private final MarketDataPublisher marketDataPublisher = new MarketDataPublisher(this);
+    // One single-threaded executor per partition; markets are hashed onto partitions by symbol
+    private final ExecutorService[] partitions;
+    private SnapshotManager snapshotManager;
+    // Resolve symbols and usernames on the order path without going to the database
+    private final MarketRegistry marketRegistry = new MarketRegistry();
+    private final AccountRegistry accountRegistry = new AccountRegistry();
+    private final RiskDecisions riskDecisions = new RiskDecisions();
 
     public ExchangeManager(DatabaseManager databaseManager) {
+        this(databaseManager, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExchangeManager(DatabaseManager databaseManager, int numPartitions) {
+        this(databaseManager, numPartitions, DEFAULT_PARTITION_CAPACITY);
+    }
+
+    public ExchangeManager(DatabaseManager databaseManager, int numPartitions, int partitionCapacity) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("Need at least one matching partition: " + numPartitions);
+        }
         this.databaseManager = databaseManager;
+        this.partitions = new ExecutorService[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = newPartition("matching-partition-" + i, partitionCapacity);
+        }
+        logger.info("Created " + numPartitions + " matching partitions of " + partitionCapacity + " commands");
+        accountRegistry.load(databaseManager);
         generateMatchingEngines();
     }
 
-    public void setConnections(Set<WebSocket> connections) {
-        this.connections = connections;
+    // Bounded, so a partition that falls behind blocks the sequencer; the sequencer's ring then fills and the
+    // socket threads wait, instead of commands queueing here without limit. Only the sequencer and non-matching
+    // threads may submit, since a partition blocking on its own full queue would never drain it.
+    private static ExecutorService newPartition(String threadName, int capacity) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity),
+                runnable -> new Thread(runnable, threadName), (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException(threadName + " is shut down");
+                    }
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted waiting for " + threadName);
+                    }
+                });
+    }
+
+    public void setSnapshotManager(SnapshotManager snapshotManager) {
+        this.snapshotManager = snapshotManager;
+    }
+
+    public MarketDataPublisher getMarketDataPublisher() {
+        return marketDataPublisher;
+    }
+
+    public MarketRegistry getMarketRegistry() {
+        return marketRegistry;
+    }
+
+    public RiskDecisions getRiskDecisions() {
+        return riskDecisions;
+    }
+
+    public AccountRegistry getAccountRegistry() {
+        return accountRegistry;
     }
 
     private void generateMatchingEngines() {
-        ResultSet resultSet = databaseManager.executeQuery("SELECT Name, Symbol, Expiry FROM Markets");
-        try {
-            while (resultSet.next()) {
-                String marketName = resultSet.getString("Name");
-                String symbol = resultSet.getString("Symbol");
-                long expiry = resultSet.getLong("Expiry");
-                matchingEngineMap.put(symbol, new MatchingEngine(new Market(marketName, symbol, expiry), databaseManager));
-            }
-        } catch (SQLException e) {
-            logger.warn("Error generating JSON response: " + e.getMessage());
-        }
-        for (MatchingEngine matchingEngine: matchingEngineMap.values()) {
-            matchingEngine.setMatchingEnginePointers(matchingEngineMap);
+        for (Market market : marketRegistry.load(databaseManager)) {
+            addMatchingEngine(market);
         }
     }
 
+    // Safe while trading is live: the engine is fully built before it is published to the lookup structures,
+    // and commands for it can only arrive once it is visible there
     public void generateMatchingEngine(String symbol) {
         if (!matchingEngineMap.containsKey(symbol)) {
             Market market = Market.fromSymbol(databaseManager, symbol);
-            matchingEngineMap.put(symbol, new MatchingEngine(market, databaseManager));
+            if (market == null) {
+                return;
+            }
+            addMatchingEngine(marketRegistry.register(market));
         } else {
             logger.warn("Matching engine already present for symbol " + symbol);
         }
     }
 
+    private synchronized MatchingEngine addMatchingEngine(Market market) {
+        MatchingEngine existing = matchingEngineMap.get(market.getSymbol());
+        if (existing != null) {
+            return existing;
+        }
+        MatchingEngine matchingEngine = new MatchingEngine(market, databaseManager, matchingEngines.size());
+        int partition = getPartition(market.getOutcomeGroup());
+        matchingEngine.setExecutor(partitions[partition], partition);
+        matchingEngine.setMatchingEnginePointers(matchingEngineMap);
+        matchingEngine.setAccountRegistry(accountRegistry);
+        matchingEngine.setRiskDecisions(riskDecisions);
+        matchingEngine.setMarketDataPublisher(marketDataPublisher);
+        matchingEngines.add(matchingEngine);
+        matchingEngineMap.put(market.getSymbol(), matchingEngine);
+        logger.info("Added matching engine for " + market.getSymbol() + " on partition " + partition);
+        return matchingEngine;
+    }
+
+    public List<MatchingEngine> getMatchingEngines() {
+        return Collections.unmodifiableList(matchingEngines);
+    }
+
+    // Markets are hashed by outcome group so complementary books always share a partition
+    public int getPartition(String outcomeGroup) {
+        return Math.floorMod(outcomeGroup.hashCode(), partitions.length);
+    }
+
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    public MatchingEngine getMatchingEngine(long orderId) {
+        int engineIndex = IdGenerator.getEngineIndex(orderId);
+        if (engineIndex < matchingEngines.size()) {
+            return matchingEngines.get(engineIndex);
+        }
+        logger.warn("No matching engine for order id " + orderId);
+        return null;
+    }
+
+    public Order getOrder(long orderId) {
+        MatchingEngine matchingEngine = getMatchingEngine(orderId);
+        if (matchingEngine == null) {
+            return null;
+        }
+        return matchingEngine.getOrderbook().getOrder(orderId);
+    }
+
     public MatchingEngine getMatchingEngine(String symbol) {
         if (matchingEngineMap.containsKey(symbol)) {
             return matchingEngineMap.get(symbol);
@@ -64,14 +177,15 @@ public class ExchangeManager {
         return null;
     }
 
-    public boolean submitOrder(Order order, boolean broadcast) {
+    // sequence is the command's global sequence, which keys its journaled risk decision; 0 if it has none
+    public boolean submitOrder(Order order, long sequence, boolean broadcast) {
         logger.info("Getting matching engine for " + order.getSymbol());
         MatchingEngine matchingEngine = getMatchingEngine(order.getSymbol());
         logger.info("Got matching engine for " + order.getSymbol());
         try {
-            Set<JSONObject> updates = matchingEngine.processOrder(order);
+            Set<JSONObject> updates = matchingEngine.processOrder(order, sequence);
             if (broadcast && updates.size() > 0) {
-                broadcastUpdates(updates);
+                broadcastUpdates(matchingEngine, updates);
             }
         } catch (Exception e) {
             logger.warn("Could not process order " + order.toString() + ": " + e.getMessage()
@@ -81,20 +195,154 @@ public class ExchangeManager {
         return true;
     }
 
-    // Broadcast new order to websocket connections
-    public void broadcastUpdates(Set<JSONObject> updates) {
-        logger.info("Broadcasting updates: " + updates.toString());
-        if (connections.size() > 0) {
-            for (WebSocket connection : connections) {
-                for (JSONObject update : updates) {
-                    connection.send(update.toString());
-                    logger.info("Broadcasting update to " + connection.getRemoteSocketAddress().getHostString() + ": " + update.toString());
-                }
+    public boolean cancelOrder(long orderId, String username, boolean broadcast) {
+        MatchingEngine matchingEngine = getMatchingEngine(orderId);
+        if (matchingEngine == null) {
+            return false;
+        }
+        try {
+            Set<JSONObject> updates = matchingEngine.cancelOrder(orderId, username);
+            if (broadcast && updates.size() > 0) {
+                broadcastUpdates(matchingEngine, updates);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not cancel order " + orderId + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    public boolean amendOrder(long orderId, long newPrice, long newAmount, String username, long sequence,
+                              boolean broadcast) {
+        MatchingEngine matchingEngine = getMatchingEngine(orderId);
+        if (matchingEngine == null) {
+            return false;
+        }
+        try {
+            Set<JSONObject> updates = matchingEngine.amendOrder(orderId, newPrice, newAmount, username, sequence);
+            if (broadcast && updates.size() > 0) {
+                broadcastUpdates(matchingEngine, updates);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not amend order " + orderId + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    public boolean runAuction(String symbol, boolean broadcast) {
+        MatchingEngine matchingEngine = getMatchingEngine(symbol);
+        if (matchingEngine == null) {
+            return false;
+        }
+        try {
+            Set<JSONObject> updates = matchingEngine.runAuction();
+            if (broadcast && updates.size() > 0) {
+                broadcastUpdates(matchingEngine, updates);
             }
+        } catch (Exception e) {
+            logger.warn("Could not run auction for " + symbol + ": " + e.getMessage()
+                    + ", stack trace: " + Arrays.toString(e.getStackTrace()));
+            return false;
+        }
+        return true;
+    }
+
+    // Answers from the cached snapshot when the book has not changed since it was built; otherwise the snapshot is
+    // rebuilt on the market's partition, in between its commands, and sent from there
+    // The partition only builds the frame when the snapshot is stale; the connection's outbound queue sends it
+    public boolean sendOrderbook(String symbol, int depth, WebSocket connection) {
+        return sendOrderbook(symbol, depth, frame -> marketDataPublisher.send(connection, frame));
+    }
+
+    public boolean sendOrderbook(String symbol, int depth, Consumer<ByteBuffer> sink) {
+        MatchingEngine matchingEngine = getMatchingEngine(symbol);
+        if (matchingEngine == null) {
+            return false;
+        }
+        L2Snapshot snapshot = matchingEngine.getCachedL2Snapshot();
+        if (snapshot != null) {
+            sink.accept(snapshot.toFrame(depth));
         } else {
-            logger.info("No connections found!");
+            matchingEngine.execute(() -> sink.accept(matchingEngine.getL2Snapshot().toFrame(depth)));
+        }
+        return true;
+    }
+
+    // Called from the sequencer thread in sequence order. Each command is handed to the single-threaded partition
+    // that owns its market, so commands for one market still execute in sequence order while different partitions
+    // match in parallel. The command slot is reused by the sequencer, so its fields are copied out here.
+    public void dispatch(OrderCommand command) {
+        final boolean broadcast = command.isBroadcast();
+        final long sequence = command.getSequence();
+        switch (command.getType()) {
+            case SUBMIT: {
+                final Order order = command.getOrder();
+                MatchingEngine matchingEngine = getMatchingEngine(order.getSymbol());
+                if (matchingEngine != null) {
+                    matchingEngine.execute(() -> submitOrder(order, sequence, broadcast));
+                }
+                break;
+            }
+            case CANCEL: {
+                final long orderId = command.getOrderId();
+                final String username = command.getUsername();
+                MatchingEngine matchingEngine = getMatchingEngine(orderId);
+                if (matchingEngine != null) {
+                    matchingEngine.execute(() -> cancelOrder(orderId, username, broadcast));
+                }
+                break;
+            }
+            case AMEND: {
+                final long orderId = command.getOrderId();
+                final long price = command.getPrice();
+                final long amount = command.getAmount();
+                final String username = command.getUsername();
+                MatchingEngine matchingEngine = getMatchingEngine(orderId);
+                if (matchingEngine != null) {
+                    matchingEngine.execute(() -> amendOrder(orderId, price, amount, username, sequence, broadcast));
+                }
+                break;
+            }
+            case AUCTION: {
+                final String symbol = command.getSymbol();
+                MatchingEngine matchingEngine = getMatchingEngine(symbol);
+                if (matchingEngine != null) {
+                    matchingEngine.execute(() -> runAuction(symbol, broadcast));
+                }
+                break;
+            }
+            case SNAPSHOT:
+                if (snapshotManager != null) {
+                    snapshotManager.takeSnapshot(command.getSequence());
+                }
+                break;
+        }
+    }
+
+    // Lets every partition finish the commands already handed to it
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService partition : partitions) {
+            partition.shutdown();
+        }
+        for (ExecutorService partition : partitions) {
+            partition.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Broadcast order updates and trades to the connections subscribed to the market or to its complement. Each
+    // update is encoded once into a frame shared by every connection; nothing is written to a socket on the matching
+    // thread.
+    public void broadcastUpdates(MatchingEngine matchingEngine, Set<JSONObject> updates) {
+        Market market = matchingEngine.getMarket();
+        if (marketDataPublisher.getNumSubscribers(market.getSymbol()) == 0
+                && marketDataPublisher.getNumSubscribers(market.getComplementSymbol()) == 0) {
+            return;
+        }
+        for (JSONObject update : updates) {
+            marketDataPublisher.publish(market.getSymbol(), market.getComplementSymbol(),
+                    Frames.encode(update.toString()));
         }
-        logger.info("Done broadcasting.");
     }
 
 }
@@ -0,0 +1,56 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Order;
+import com.airvoy.model.utils.FixedPoint;
+
+// One account's open orders in one market, summed by side, and the collateral held for them. The hold is the worst
+// case over any of the orders filling at their prices, netted against the account's position in the market: sells
+// of lots the account already holds can only bring cash in, and buys that cover a short free the payout it owes.
+// Only the partition thread of the market's engine touches it.
+public class Exposure {
+
+    // Lots, and lots x the price each is held at
+    private long buyAmount = 0;
+    private long buyValue = 0;
+    private long sellAmount = 0;
+    private long sellValue = 0;
+    // Micro-units currently held against the account
+    private long held = 0;
+
+    public void add(int side, long price, long amount) {
+        price = Math.max(0, Math.min(price, FixedPoint.PRICE_SCALE));
+        if (side == Order.BUY) {
+            buyAmount += amount;
+            buyValue += price * amount;
+        } else {
+            sellAmount += amount;
+            sellValue += price * amount;
+        }
+    }
+
+    public void remove(int side, long price, long amount) {
+        add(side, price, -amount);
+    }
+
+    // Filling every order is the worst case once sells exceed a long position (each further lot owes its payout less
+    // its price) or buys exceed a short one (each further lot costs its price and frees nothing)
+    public long getRequired(long position) {
+        long uncoveredSells = Math.max(0, sellAmount - Math.max(0, position));
+        long coveringBuys = Math.min(buyAmount, Math.max(0, -position));
+        return Math.max(0, uncoveredSells * FixedPoint.PRICE_SCALE - sellValue)
+                + Math.max(0, buyValue - coveringBuys * FixedPoint.PRICE_SCALE);
+    }
+
+    public long getHeld() {
+        return held;
+    }
+
+    public void setHeld(long newHeld) {
+        held = newHeld;
+    }
+
+    public boolean isEmpty() {
+        return buyAmount == 0 && sellAmount == 0 && held == 0;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.airvoy.trading;
+
+// Monotonic 64-bit order/trade ids for one matching engine. The engine index sits in the high bits so any id
+// can be routed back to the engine that issued it; ids are only turned into strings on the wire.
+public class IdGenerator {
+
+    private final static int SEQUENCE_BITS = 47;
+    public final static int MAX_ENGINES = 1 << 16;
+
+    private final long prefix;
+    private long lastId;
+
+    public IdGenerator(int engineIndex) {
+        if (engineIndex < 0 || engineIndex >= MAX_ENGINES) {
+            throw new IllegalArgumentException("Engine index " + engineIndex + " out of range");
+        }
+        this.prefix = ((long) engineIndex) << SEQUENCE_BITS;
+        this.lastId = prefix;
+    }
+
+    public long next() {
+        return ++lastId;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    // Restores the counter from a snapshot
+    public void setLastId(long lastId) {
+        if (getEngineIndex(lastId) != getEngineIndex(prefix)) {
+            throw new IllegalArgumentException("Id " + lastId + " was not issued by engine " + getEngineIndex(prefix));
+        }
+        this.lastId = lastId;
+    }
+
+    public static int getEngineIndex(long id) {
+        return (int) (id >>> SEQUENCE_BITS);
+    }
+
+    public static String toString(long id) {
+        return Long.toString(id);
+    }
+
+    public static long fromString(String id) {
+        return Long.parseLong(id);
+    }
+
+}
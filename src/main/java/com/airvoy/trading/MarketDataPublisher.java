@@ -0,0 +1,293 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.L2Delta;
+import com.airvoy.model.utils.Frames;
+import com.airvoy.model.utils.LoggerFactory;
+import org.java_websocket.WebSocket;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-symbol fan-out of market data. Each message is encoded once into a frame that is queued, and later written,
+// for every connection subscribed to its symbol, so encoding does not depend on the audience at all. Matching
+// threads never write to a socket: every connection has a bounded OutboundQueue that one sender thread writes out
+// while the socket keeps up, so a slow client can neither stall matching nor grow the server's send buffers.
+public class MarketDataPublisher {
+
+    private final static LoggerFactory logger = new LoggerFactory("MarketDataPublisher");
+
+    private final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final ExchangeManager exchangeManager;
+    private PnlPublisher pnlPublisher;
+    private final ConcurrentHashMap<WebSocket, OutboundQueue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<OutboundQueue>> subscribers = new ConcurrentHashMap<>();
+    // Queues with something to write, in the order they got it
+    private final BlockingQueue<OutboundQueue> ready = new LinkedBlockingQueue<>();
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile boolean running = false;
+    private Thread senderThread;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+
+    public MarketDataPublisher(ExchangeManager exchangeManager) {
+        this.exchangeManager = exchangeManager;
+    }
+
+    // Resent its current P&L when a connection is resynced
+    public void setPnlPublisher(PnlPublisher pnlPublisher) {
+        this.pnlPublisher = pnlPublisher;
+    }
+
+    // Messages a connection may have waiting before it is resynced; applies to connections subscribed afterwards
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    // Queues whose socket was still busy are retried every retryMillis
+    public void start(long retryMillis) {
+        running = true;
+        senderThread = new Thread(() -> run(retryMillis), "market-data-sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        logger.info("Sending market data with " + queueCapacity + " messages queued per connection at most");
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (senderThread != null) {
+            senderThread.join();
+        }
+    }
+
+    // Queues the book snapshot behind any deltas published meanwhile; those at or below the snapshot's sequence
+    // are already in it
+    public void subscribe(String symbol, WebSocket connection) {
+        OutboundQueue queue = getQueue(connection);
+        queue.getSymbols().add(symbol);
+        subscribers.computeIfAbsent(symbol, key -> ConcurrentHashMap.newKeySet()).add(queue);
+        exchangeManager.sendOrderbook(symbol, 0, frame -> enqueue(queue, frame));
+        logger.info("Subscribed " + connection.getRemoteSocketAddress() + " to " + symbol);
+    }
+
+    // Replies to one connection, such as getOrderbook, go through its queue as well, so only the sender thread
+    // writes to sockets
+    public void send(WebSocket connection, ByteBuffer frame) {
+        if (connection.isOpen()) {
+            enqueue(getQueue(connection), frame);
+        }
+    }
+
+    // Replaces a frame with the same key that the connection has not been sent yet
+    public void send(WebSocket connection, String key, ByteBuffer frame) {
+        if (connection.isOpen()) {
+            OutboundQueue queue = getQueue(connection);
+            count(queue, queue.offer(key, frame));
+        }
+    }
+
+    private OutboundQueue getQueue(WebSocket connection) {
+        return queues.computeIfAbsent(connection, key -> new OutboundQueue(key, queueCapacity));
+    }
+
+    public void unsubscribe(String symbol, WebSocket connection) {
+        OutboundQueue queue = queues.get(connection);
+        if (queue != null) {
+            queue.getSymbols().remove(symbol);
+            getSubscribers(symbol).remove(queue);
+        }
+    }
+
+    // Called when a connection closes
+    public void unsubscribeAll(WebSocket connection) {
+        OutboundQueue queue = queues.remove(connection);
+        if (queue != null) {
+            for (String symbol : queue.getSymbols()) {
+                getSubscribers(symbol).remove(queue);
+            }
+        }
+    }
+
+    private Set<OutboundQueue> getSubscribers(String symbol) {
+        Set<OutboundQueue> symbolQueues = symbol == null ? null : subscribers.get(symbol);
+        return symbolQueues == null ? Collections.emptySet() : symbolQueues;
+    }
+
+    public int getNumSubscribers(String symbol) {
+        return getSubscribers(symbol).size();
+    }
+
+    public void publish(String symbol, ByteBuffer frame) {
+        for (OutboundQueue queue : getSubscribers(symbol)) {
+            enqueue(queue, frame);
+        }
+    }
+
+    // Order updates and trades of a market also go to subscribers of its complement, since an implied fill
+    // changes both; a connection subscribed to both gets each message once
+    public void publish(String symbol, String complementSymbol, ByteBuffer frame) {
+        Set<OutboundQueue> symbolQueues = getSubscribers(symbol);
+        publish(symbol, frame);
+        for (OutboundQueue queue : getSubscribers(complementSymbol)) {
+            if (!symbolQueues.contains(queue)) {
+                enqueue(queue, frame);
+            }
+        }
+    }
+
+    public void publishDelta(L2Delta delta) {
+        for (OutboundQueue queue : getSubscribers(delta.getSymbol())) {
+            count(queue, queue.offer(delta));
+        }
+    }
+
+    private void enqueue(OutboundQueue queue, ByteBuffer frame) {
+        count(queue, queue.offer(frame));
+    }
+
+    private void count(OutboundQueue queue, OutboundQueue.Result result) {
+        switch (result) {
+            case CONFLATED:
+                conflated.incrementAndGet();
+                break;
+            case DROPPED:
+                dropped.incrementAndGet();
+                return;
+            case OVERFLOWED:
+                overflows.incrementAndGet();
+                logger.warn("Outbound queue overflowed for " + queue.getConnection().getRemoteSocketAddress()
+                        + ", resyncing once it catches up");
+                break;
+        }
+        if (queue.schedule()) {
+            ready.offer(queue);
+        }
+    }
+
+    private void run(long retryMillis) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        long retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+        long nextRetry = System.nanoTime() + retryNanos;
+        while (running) {
+            try {
+                OutboundQueue queue = ready.poll(retryMillis, TimeUnit.MILLISECONDS);
+                if (queue != null) {
+                    flush(queue, frames);
+                }
+                // Queues whose socket was busy when they were last flushed
+                if (System.nanoTime() - nextRetry >= 0) {
+                    for (OutboundQueue pendingQueue : queues.values()) {
+                        if (pendingQueue.hasPending()) {
+                            flush(pendingQueue, frames);
+                        }
+                    }
+                    nextRetry = System.nanoTime() + retryNanos;
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Market data sender interrupted");
+                running = false;
+            } catch (Exception e) {
+                logger.warn("Exception sending market data: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flush(OutboundQueue queue, List<ByteBuffer> frames) {
+        if (queue.takeResync()) {
+            resyncs.incrementAndGet();
+            for (String symbol : queue.getSymbols()) {
+                exchangeManager.sendOrderbook(symbol, 0, frame -> enqueue(queue, frame));
+            }
+            if (pnlPublisher != null) {
+                pnlPublisher.resync(queue.getConnection());
+            }
+            return;
+        }
+        frames.clear();
+        if (!queue.drainTo(frames)) {
+            return;
+        }
+        WebSocket connection = queue.getConnection();
+        if (!connection.isOpen()) {
+            // Closed before anything was queued for it after unsubscribeAll
+            queues.remove(connection, queue);
+            return;
+        }
+        for (ByteBuffer frame : frames) {
+            Frames.send(connection, frame);
+        }
+        sent.addAndGet(frames.size());
+    }
+
+    public int getNumConnections() {
+        return queues.size();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (OutboundQueue queue : queues.values()) {
+            depth += queue.getDepth();
+        }
+        return depth;
+    }
+
+    public int getMaxQueueDepth() {
+        int maxDepth = 0;
+        for (OutboundQueue queue : queues.values()) {
+            maxDepth = Math.max(maxDepth, queue.getDepth());
+        }
+        return maxDepth;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    // Deltas merged into one already queued for the same connection and symbol, and P&L updates replaced likewise
+    public long getConflated() {
+        return conflated.get();
+    }
+
+    // Messages discarded because their connection was stale
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public JSONObject getStatsJson() {
+        JSONObject contentObject = new JSONObject();
+        contentObject.put("connections", getNumConnections());
+        contentObject.put("queueDepth", getQueueDepth());
+        contentObject.put("maxQueueDepth", getMaxQueueDepth());
+        contentObject.put("sent", getSent());
+        contentObject.put("conflated", getConflated());
+        contentObject.put("dropped", getDropped());
+        contentObject.put("overflows", getOverflows());
+        contentObject.put("resyncs", getResyncs());
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("messageType", "marketDataStats");
+        statsJson.put("content", contentObject);
+        return statsJson;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.airvoy.trading;
+
+import com.airvoy.DatabaseManager;
+import com.airvoy.model.Market;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every tradable market, loaded from the Markets table at startup and kept in memory. Symbols are interned to int
+// handles so request threads resolve a market without touching the database.
+public class MarketRegistry {
+
+    private final static LoggerFactory logger = new LoggerFactory("MarketRegistry");
+
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+    // Indexed by handle; an entry is written before its handle is published in the map
+    private volatile Market[] markets = new Market[16];
+    private int size = 0;
+
+    // Registers every market in the table and returns them in table order
+    public List<Market> load(DatabaseManager databaseManager) {
+        List<Market> loaded = databaseManager.query(DatabaseManager.Query.GET_MARKET_CONFIGS, resultSet -> {
+            List<Market> result = new ArrayList<>();
+            while (resultSet.next()) {
+                result.add(register(Market.fromResultSet(resultSet)));
+            }
+            return result;
+        });
+        if (loaded == null) {
+            logger.warn("Could not load markets");
+            return new ArrayList<>();
+        }
+        logger.info("Loaded " + loaded.size() + " markets");
+        return loaded;
+    }
+
+    // Returns the already registered market if the symbol is taken
+    public synchronized Market register(Market market) {
+        Integer existing = handles.get(market.getSymbol());
+        if (existing != null) {
+            return markets[existing];
+        }
+        int handle = size;
+        Market[] current = markets;
+        if (handle == current.length) {
+            current = Arrays.copyOf(current, handle * 2);
+        }
+        market.setHandle(handle);
+        current[handle] = market;
+        markets = current;
+        size++;
+        handles.put(market.getSymbol(), handle);
+        return market;
+    }
+
+    public Market get(String symbol) {
+        Integer handle = handles.get(symbol);
+        return handle == null ? null : markets[handle];
+    }
+
+    // -1 if the symbol is not registered
+    public int getHandle(String symbol) {
+        Integer handle = handles.get(symbol);
+        return handle == null ? -1 : handle;
+    }
+
+    public Market get(int handle) {
+        return markets[handle];
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+}
@@ -2,13 +2,16 @@ package com.airvoy.trading;
 
 import com.airvoy.DatabaseManager;
 import com.airvoy.model.*;
+import com.airvoy.model.utils.FixedPoint;
 import com.airvoy.model.utils.LoggerFactory;
 import org.json.simple.JSONObject;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
 
 public class MatchingEngine {
 
@@ -17,87 +20,682 @@ public class MatchingEngine {
     private final Market market;
     private final DatabaseManager databaseManager;
     private final Orderbook orderbook;
-    private final Orderbook.QueuePriority queuePriority = Orderbook.QueuePriority.FIFO;
+    private final OrderStore store;
+    private final int engineIndex;
+    private final IdGenerator idGenerator;
+    private final Orderbook.QueuePriority queuePriority;
+    private final ProRataAllocator proRataAllocator;
+    // Only set for markets that match in periodic batch auctions instead of continuously
+    private final BatchAuction batchAuction;
     private Map<String, MatchingEngine> matchingEngineMap;
+    private AccountRegistry accountRegistry;
+    private MarketDataPublisher marketDataPublisher;
+    // Journaled outcomes of collateral checks; null checks every command live
+    private RiskDecisions riskDecisions;
+    // Book of the complementary outcome, resolved lazily through matchingEngineMap
+    private MatchingEngine complement;
+    // Top of book implied by the complement (1 - its best ask / best bid); -1 when there is none
+    private long impliedBid = -1;
+    private long impliedBidAmount = 0;
+    private long impliedAsk = -1;
+    private long impliedAskAmount = 0;
+    // Single-threaded partition this engine runs on; all book mutations happen on that thread
+    private Executor executor;
+    private int partition;
+    // Monotonic per-engine sequence number; defines exact queue priority within a level
+    private long sequenceNumber = 0;
+    // Accounts with an open position in this market, revalued when the mark moves
+    private Position[] holders = new Position[16];
+    private int numHolders = 0;
+    // Every position this market has opened, flat ones included, since their realised P&L is part of a snapshot
+    private final List<Position> positions = new ArrayList<>();
+    // Open orders of each account in this market and the collateral held for them
+    private final Map<Account, Exposure> exposures = new HashMap<>();
+    // Mid of the outright top of book; -1 until the book has had a price
+    private long markPrice = -1;
+    // Last L2 snapshot built; request threads reuse it for as long as the book version is unchanged
+    private volatile L2Snapshot l2Snapshot;
 
-    public static double MIN_TRADE_AMOUNT = .001;
-
-    public MatchingEngine(Market market, DatabaseManager databaseManager) {
+    public MatchingEngine(Market market, DatabaseManager databaseManager, int engineIndex) {
         this.market = market;
         this.databaseManager = databaseManager;
+        this.engineIndex = engineIndex;
+        this.idGenerator = new IdGenerator(engineIndex);
+        this.queuePriority = market.getQueuePriority();
         this.orderbook = new Orderbook(market, queuePriority);
+        this.store = orderbook.getStore();
+        this.proRataAllocator = new ProRataAllocator(store, market.isTopOrderPriority());
+        this.batchAuction = market.getAuctionInterval() > 0 ? new BatchAuction(orderbook, proRataAllocator) : null;
+    }
+
+    public Market getMarket() {
+        return market;
+    }
+
+    public Orderbook getOrderbook() {
+        return orderbook;
+    }
+
+    public int getEngineIndex() {
+        return engineIndex;
+    }
+
+    public boolean isAuctionMode() {
+        return batchAuction != null;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public void setExecutor(Executor executor, int partition) {
+        this.executor = executor;
+        this.partition = partition;
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public void setAccountRegistry(AccountRegistry accountRegistry) {
+        this.accountRegistry = accountRegistry;
+    }
+
+    public void setRiskDecisions(RiskDecisions riskDecisions) {
+        this.riskDecisions = riskDecisions;
+    }
+
+    public void setMarketDataPublisher(MarketDataPublisher marketDataPublisher) {
+        this.marketDataPublisher = marketDataPublisher;
+    }
+
+    // Safe from any thread; null when the book has changed since the last snapshot was built
+    public L2Snapshot getCachedL2Snapshot() {
+        L2Snapshot snapshot = l2Snapshot;
+        return snapshot != null && snapshot.getVersion() == orderbook.getVersion() ? snapshot : null;
+    }
+
+    // Partition thread only; rebuilds the snapshot if the book has changed
+    public L2Snapshot getL2Snapshot() {
+        L2Snapshot snapshot = l2Snapshot;
+        if (snapshot == null || snapshot.getVersion() != orderbook.getVersion()) {
+            snapshot = orderbook.getL2Snapshot();
+            l2Snapshot = snapshot;
+        }
+        return snapshot;
     }
 
     public void setMatchingEnginePointers(Map<String, MatchingEngine> matchingEngineMap) {
         this.matchingEngineMap = matchingEngineMap;
     }
 
+    // Serialises the book in queue order, any pending auction orders, this market's positions and the id and
+    // sequence counters. Balances are shared by every market and captured once by SnapshotManager. Runs on the
+    // partition thread, so it sees the book exactly as of the snapshot command.
+    public byte[] captureSnapshot() throws IOException {
+        ByteArrayOutputStream orderBytes = new ByteArrayOutputStream();
+        DataOutputStream orderOut = new DataOutputStream(orderBytes);
+        Map<Account, Integer> accountIndexes = new IdentityHashMap<>();
+        List<Account> accounts = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>(orderbook.getNumRestingOrders());
+        try {
+            for (long price = orderbook.getNextBid(Long.MAX_VALUE); price >= 0; price = orderbook.getNextBid(price - 1)) {
+                orderbook.getLevel(price).forEachOrder(slots::add);
+            }
+            for (long price = orderbook.getNextAsk(0); price >= 0; price = orderbook.getNextAsk(price + 1)) {
+                orderbook.getLevel(price).forEachOrder(slots::add);
+            }
+        } catch (Exception e) {
+            throw new IOException("Could not walk book for " + market.getSymbol() + ": " + e.getMessage());
+        }
+        orderOut.writeInt(slots.size());
+        for (int slot : slots) {
+            orderOut.writeLong(store.getId(slot));
+            orderOut.writeByte(store.getSide(slot));
+            orderOut.writeByte(store.getType(slot).ordinal());
+            orderOut.writeBoolean(store.isPostOnly(slot));
+            orderOut.writeLong(store.getPrice(slot));
+            orderOut.writeLong(store.getAmount(slot));
+            orderOut.writeLong(store.getFilledAmount(slot));
+            orderOut.writeLong(store.getSequence(slot));
+            orderOut.writeLong(store.getTimestamp(slot));
+            orderOut.writeInt(getAccountIndex(store.getAccount(slot), accountIndexes, accounts));
+        }
+        int numPending = batchAuction == null ? 0 : batchAuction.size();
+        orderOut.writeInt(numPending);
+        for (int i = 0; i < numPending; i++) {
+            Order order = batchAuction.getOrder(i);
+            orderOut.writeLong(order.getId());
+            orderOut.writeByte(order.getSide());
+            orderOut.writeByte(order.getType().ordinal());
+            orderOut.writeByte(order.getTimeInForce().ordinal());
+            orderOut.writeLong(order.getPrice());
+            orderOut.writeLong(order.getAmount());
+            orderOut.writeLong(order.getFilledAmount());
+            orderOut.writeLong(order.getSequence());
+            orderOut.writeLong(order.getTimestamp());
+            orderOut.writeLong(batchAuction.getLimitPrice(i));
+            orderOut.writeInt(getAccountIndex(order.getAccount(), accountIndexes, accounts));
+        }
+        orderOut.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(orderBytes.size() + 64 * accounts.size() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(engineIndex);
+        out.writeLong(idGenerator.getLastId());
+        out.writeLong(sequenceNumber);
+        // Positions without open orders still need restoring, flat ones too while they carry realised P&L
+        for (Position position : positions) {
+            if (position.getQuantity() != 0 || position.getRealizedPnl() != 0) {
+                getAccountIndex(position.getAccount(), accountIndexes, accounts);
+            }
+        }
+        out.writeInt(accounts.size());
+        for (Account account : accounts) {
+            out.writeUTF(account.getUsername());
+            // Only this market's position; other markets are captured by their own engines
+            Position position = account.findPosition(market);
+            out.writeLong(position == null ? 0 : position.getQuantity());
+            out.writeLong(position == null ? 0 : position.getCost());
+            out.writeLong(position == null ? 0 : position.getRealizedPnl());
+        }
+        orderBytes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int getAccountIndex(Account account, Map<Account, Integer> accountIndexes, List<Account> accounts) {
+        Integer index = accountIndexes.get(account);
+        if (index == null) {
+            index = accounts.size();
+            accountIndexes.put(account, index);
+            accounts.add(account);
+        }
+        return index;
+    }
+
+    // One engine's block of a snapshot file, decoded in full before any engine is restored from it
+    public static class Snapshot {
+
+        private final int engineIndex;
+        private final long lastId;
+        private final long sequenceNumber;
+        private final SnapshotPosition[] positions;
+        private final SnapshotOrder[] orders;
+        private final SnapshotOrder[] pendingOrders;
+
+        private Snapshot(int engineIndex, long lastId, long sequenceNumber, SnapshotPosition[] positions,
+                         SnapshotOrder[] orders, SnapshotOrder[] pendingOrders) {
+            this.engineIndex = engineIndex;
+            this.lastId = lastId;
+            this.sequenceNumber = sequenceNumber;
+            this.positions = positions;
+            this.orders = orders;
+            this.pendingOrders = pendingOrders;
+        }
+
+    }
+
+    private static class SnapshotPosition {
+
+        private final String username;
+        private final long quantity;
+        private final long cost;
+        private final long realizedPnl;
+
+        private SnapshotPosition(String username, long quantity, long cost, long realizedPnl) {
+            this.username = username;
+            this.quantity = quantity;
+            this.cost = cost;
+            this.realizedPnl = realizedPnl;
+        }
+
+    }
+
+    // Resting orders have no time in force and are held at their own price
+    private static class SnapshotOrder {
+
+        private final long id;
+        private final int side;
+        private final Order.Type type;
+        private final boolean postOnly;
+        private final Order.TimeInForce timeInForce;
+        private final long price;
+        private final long amount;
+        private final long filledAmount;
+        private final long sequence;
+        private final long timestamp;
+        private final long limitPrice;
+        // Into the snapshot's positions
+        private final int accountIndex;
+
+        private SnapshotOrder(long id, int side, Order.Type type, boolean postOnly, Order.TimeInForce timeInForce,
+                              long price, long amount, long filledAmount, long sequence, long timestamp,
+                              long limitPrice, int accountIndex) {
+            this.id = id;
+            this.side = side;
+            this.type = type;
+            this.postOnly = postOnly;
+            this.timeInForce = timeInForce;
+            this.price = price;
+            this.amount = amount;
+            this.filledAmount = filledAmount;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.limitPrice = limitPrice;
+            this.accountIndex = accountIndex;
+        }
+
+    }
+
+    // Reads a whole captureSnapshot block without touching any engine; a truncated or corrupt block throws
+    public static Snapshot decodeSnapshot(DataInputStream in) throws IOException {
+        int engineIndex = in.readInt();
+        long lastId = in.readLong();
+        long sequenceNumber = in.readLong();
+        SnapshotPosition[] positions = new SnapshotPosition[readCount(in)];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new SnapshotPosition(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+        }
+        SnapshotOrder[] orders = new SnapshotOrder[readCount(in)];
+        for (int i = 0; i < orders.length; i++) {
+            long id = in.readLong();
+            int side = in.readByte();
+            Order.Type type = readEnum(in, Order.Type.values());
+            boolean postOnly = in.readBoolean();
+            long price = in.readLong();
+            long amount = in.readLong();
+            long filledAmount = in.readLong();
+            long sequence = in.readLong();
+            long timestamp = in.readLong();
+            orders[i] = new SnapshotOrder(id, side, type, postOnly, null, price, amount, filledAmount, sequence,
+                    timestamp, price, readAccountIndex(in, positions.length));
+        }
+        SnapshotOrder[] pendingOrders = new SnapshotOrder[readCount(in)];
+        for (int i = 0; i < pendingOrders.length; i++) {
+            long id = in.readLong();
+            int side = in.readByte();
+            Order.Type type = readEnum(in, Order.Type.values());
+            Order.TimeInForce timeInForce = readEnum(in, Order.TimeInForce.values());
+            long price = in.readLong();
+            long amount = in.readLong();
+            long filledAmount = in.readLong();
+            long sequence = in.readLong();
+            long timestamp = in.readLong();
+            long limitPrice = in.readLong();
+            pendingOrders[i] = new SnapshotOrder(id, side, type, false, timeInForce, price, amount, filledAmount,
+                    sequence, timestamp, limitPrice, readAccountIndex(in, positions.length));
+        }
+        if (in.available() > 0) {
+            throw new IOException("Unexpected data after engine " + engineIndex);
+        }
+        return new Snapshot(engineIndex, lastId, sequenceNumber, positions, orders, pendingOrders);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static <T> T readEnum(DataInputStream in, T[] values) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Bad ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static int readAccountIndex(DataInputStream in, int numAccounts) throws IOException {
+        int index = in.readInt();
+        if (index < 0 || index >= numAccounts) {
+            throw new IOException("Bad account index " + index);
+        }
+        return index;
+    }
+
+    // Throws if restoreSnapshot would refuse the snapshot
+    public void checkSnapshot(Snapshot snapshot) throws Exception {
+        if (snapshot.engineIndex != engineIndex) {
+            throw new Exception("Snapshot of " + market.getSymbol() + " was taken as engine " + snapshot.engineIndex
+                    + ", now engine " + engineIndex);
+        }
+        if (orderbook.getNumRestingOrders() > 0) {
+            throw new Exception("Cannot restore snapshot into non-empty book " + market.getSymbol());
+        }
+        if (snapshot.pendingOrders.length > 0 && batchAuction == null) {
+            throw new Exception("Snapshot has pending auction orders but " + market.getSymbol() + " matches continuously");
+        }
+    }
+
+    // Rebuilds an empty engine from a decoded snapshot; must run before any command reaches the engine
+    public void restoreSnapshot(Snapshot snapshot) throws Exception {
+        checkSnapshot(snapshot);
+        idGenerator.setLastId(snapshot.lastId);
+        sequenceNumber = snapshot.sequenceNumber;
+        Account[] accounts = new Account[snapshot.positions.length];
+        for (int i = 0; i < accounts.length; i++) {
+            SnapshotPosition restored = snapshot.positions[i];
+            accounts[i] = accountRegistry != null ? accountRegistry.restore(restored.username)
+                    : new Account(restored.username);
+            if (restored.quantity != 0 || restored.realizedPnl != 0) {
+                Position position = accounts[i].restorePosition(market, restored.quantity, restored.cost,
+                        restored.realizedPnl);
+                trackPosition(position);
+                updateHolders(position);
+            }
+        }
+        for (SnapshotOrder restored : snapshot.orders) {
+            Order order = new Order(restored.id, market, restored.side, restored.price, restored.amount,
+                    accounts[restored.accountIndex], restored.type);
+            order.setPostOnly(restored.postOnly);
+            order.setFilledAmount(restored.filledAmount);
+            order.setSequence(restored.sequence);
+            order.setTimestamp(restored.timestamp);
+            orderbook.addOrder(order);
+            getExposure(order.getAccount()).add(restored.side, restored.price, restored.amount);
+        }
+        for (SnapshotOrder restored : snapshot.pendingOrders) {
+            Order order = new Order(restored.id, market, restored.side, restored.price, restored.amount,
+                    accounts[restored.accountIndex], restored.type);
+            order.setTimeInForce(restored.timeInForce);
+            order.setFilledAmount(restored.filledAmount);
+            order.setSequence(restored.sequence);
+            order.setTimestamp(restored.timestamp);
+            batchAuction.add(order, restored.limitPrice);
+            getExposure(order.getAccount()).add(restored.side, restored.limitPrice, restored.amount);
+        }
+        // The orders were accepted before the restart, so their collateral is held again without a check
+        for (Account account : new ArrayList<>(exposures.keySet())) {
+            refreshCollateral(account);
+        }
+        refreshMark();
+        // Restored levels are part of the snapshot clients start from, not a delta
+        orderbook.skipLevelChanges();
+        logger.info("Restored " + snapshot.orders.length + " resting and " + snapshot.pendingOrders.length
+                + " pending orders for " + market.getSymbol());
+    }
+
     public Set<JSONObject> processOrder(Order order) throws Exception {
-        Set<JSONObject> updates = new HashSet<>();
-        if (order.getType().equals(Order.Type.LIMIT)) {
-            updates.addAll(processLimitOrder(order));
-        } else if (order.getType().equals(Order.Type.MARKET)) {
-            updates.addAll(processMarketOrder(order));
-        } else {
-            throw new Exception("Invalid order type: " + order.getType());
+        return processOrder(order, 0);
+    }
+
+    // commandSequence is the global sequence of the command carrying the order, or 0 if it was not sequenced
+    public Set<JSONObject> processOrder(Order order, long commandSequence) throws Exception {
+        Set<JSONObject> updates = new LinkedHashSet<>();
+        if (order.getId() == 0) {
+            order.setId(idGenerator.next());
+        }
+        order.setSequence(++sequenceNumber);
+        String rejectReason = checkExecutionFlags(order);
+        if (rejectReason != null) {
+            updates.add(getOrderRejectJson(order, rejectReason));
+            return updates;
+        }
+        // Pre-trade risk: the order's worst case is held against the account before it can trade or rest
+        long collateralPrice = batchAuction != null ? getAuctionLimit(order) : getCollateralPrice(order);
+        if (!reserveOrder(order.getAccount(), order.getSide(), collateralPrice, order.getAmount(), commandSequence)) {
+            updates.add(getOrderRejectJson(order, "Insufficient collateral"));
+            return updates;
+        }
+        if (batchAuction != null) {
+            // Held until the next uncross; nothing is broadcast per order
+            batchAuction.add(order, collateralPrice);
+            return updates;
+        }
+        long amount = order.getAmount();
+        try {
+            if (order.getType().equals(Order.Type.LIMIT)) {
+                updates.addAll(processLimitOrder(order));
+            } else if (order.getType().equals(Order.Type.MARKET)) {
+                updates.addAll(processMarketOrder(order));
+            } else {
+                throw new Exception("Invalid order type: " + order.getType());
+            }
+        } finally {
+            releaseTakerCollateral(order, collateralPrice, amount);
         }
+        refreshTopOfBook(updates);
         return updates;
     }
 
-    public void fillLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
-        logger.info("Filling order " + order.toString());
-        logger.info("Orderbook: " + orderbook.toString());
-        if (level != null) {
-            logger.info( "Level " + level.getPrice());
+    // Limit orders are held at their limit, market orders at their protection bound or the end of the ladder
+    private long getCollateralPrice(Order order) {
+        return order.getType() == Order.Type.LIMIT ? order.getPrice() : getWorstPrice(order);
+    }
+
+    // The taker held collateral for its whole size; only what now rests on the book keeps it. Fills were settled
+    // against the balance as they happened.
+    private void releaseTakerCollateral(Order order, long collateralPrice, long amount) {
+        long resting = orderbook.getSlot(order.getId()) != OrderStore.NONE ? order.getAmount() : 0;
+        releaseOrder(order.getAccount(), order.getSide(), collateralPrice, amount - resting);
+    }
+
+    private Exposure getExposure(Account account) {
+        return exposures.computeIfAbsent(account, key -> new Exposure());
+    }
+
+    // Adds an order to the account's exposure and holds whatever more that needs; false leaves both untouched
+    private boolean reserveOrder(Account account, int side, long price, long amount, long commandSequence) {
+        Exposure exposure = getExposure(account);
+        exposure.add(side, price, amount);
+        long required = exposure.getRequired(account.getPosition(market));
+        long change = required - exposure.getHeld();
+        if (change > 0 && !reserve(account, change, commandSequence)) {
+            exposure.remove(side, price, amount);
+            if (exposure.isEmpty()) {
+                exposures.remove(account);
+            }
+            return false;
         }
-        Order makerOrder = level.getFirstOrder();
-        if (makerOrder == null) {
-            logger.warn("Maker order is null for level " + level.getPrice());
+        if (change < 0) {
+            account.release(-change);
+        }
+        exposure.setHeld(required);
+        return true;
+    }
+
+    // The one check whose outcome depends on other partitions; a sequenced command's outcome is journaled, and a
+    // replay holds or rejects as the journal says
+    private boolean reserve(Account account, long collateral, long commandSequence) {
+        if (riskDecisions == null || commandSequence <= 0) {
+            return account.reserve(collateral);
+        }
+        Boolean recorded = riskDecisions.takeRecorded(commandSequence);
+        if (recorded == null) {
+            boolean accepted = account.reserve(collateral);
+            riskDecisions.record(commandSequence, accepted);
+            return accepted;
+        }
+        if (recorded) {
+            account.forceReserve(collateral);
+        }
+        return recorded;
+    }
+
+    private void releaseOrder(Account account, int side, long price, long amount) {
+        getExposure(account).remove(side, price, amount);
+        refreshCollateral(account);
+    }
+
+    // Brings the hold in line with the account's open orders and position after a fill, cancel or expiry. A fill
+    // can raise it, by less than the fill paid the account, so the increase is held without a check.
+    private void refreshCollateral(Account account) {
+        Exposure exposure = exposures.get(account);
+        if (exposure == null) {
             return;
         }
-        logger.info("Maker order string type: " + makerOrder.getTypeString());
-        logger.info("Maker order type: " + makerOrder.getType());
-        logger.info("Filling maker order: " + makerOrder.toString());
-        if (Math.abs(order.getAmount()) >= Math.abs(makerOrder.getAmount())) {
-            orderbook.removeOrder(makerOrder.getId(), makerOrder.getPrice(), makerOrder.getSide());
-            logger.info("Fully removed maker order " + makerOrder.getId() + " from level " + level.getPrice());
-            updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                    makerOrder.getAmount(), makerOrder, order)));
-            order.fill(makerOrder.getAmount());
-            makerOrder.fill(makerOrder.getAmount());
-            updates.add(getOrderUpdateJson(makerOrder));
+        long required = exposure.getRequired(account.getPosition(market));
+        long change = required - exposure.getHeld();
+        if (change > 0) {
+            account.forceReserve(change);
+        } else if (change < 0) {
+            account.release(-change);
+        }
+        exposure.setHeld(required);
+        if (exposure.isEmpty()) {
+            exposures.remove(account);
+        }
+    }
+
+    // Post-only is a top-of-book check and fill-or-kill walks only as much depth as it needs, so a rejected
+    // order never mutates the book. Returns null if the order may proceed.
+    private String checkExecutionFlags(Order order) {
+        int side = order.getSide();
+        // Orders can also reach the engine without going through Server, so the basics are checked here too
+        if (order.getType() == null || (side != Order.BUY && side != Order.SELL) || order.getAmount() <= 0) {
+            return "Invalid order type, side or amount";
+        }
+        if (batchAuction != null) {
+            if (order.isPostOnly() || order.getTimeInForce() == Order.TimeInForce.FOK) {
+                return "Post-only and fill-or-kill orders are not supported in batch auctions";
+            }
+            if (order.getType() == Order.Type.LIMIT && orderbook.getLevel(order.getPrice()) == null) {
+                return "Price " + order.getPrice() + " is not a valid level";
+            }
+            return null;
+        }
+        if (order.isPostOnly() && order.getType() == Order.Type.LIMIT && wouldTakeLiquidity(side, order.getPrice())) {
+            return "Post-only order would take liquidity";
+        }
+        if (order.getTimeInForce() == Order.TimeInForce.FOK) {
+            long worstPrice = order.getType() == Order.Type.LIMIT ? order.getPrice() : getWorstPrice(order);
+            int maxLevels = order.getType() == Order.Type.MARKET && order.getMaxLevels() > 0
+                    ? order.getMaxLevels() : Integer.MAX_VALUE;
+            if (getAvailableAmount(side, worstPrice, maxLevels, order.getAmount()) < order.getAmount()) {
+                return "Fill-or-kill order cannot be filled completely";
+            }
+        }
+        return null;
+    }
+
+    private boolean wouldTakeLiquidity(int side, long price) {
+        long impliedPrice = getNextImplied(side, side == Order.BUY ? 0 : Long.MAX_VALUE);
+        if (side == Order.BUY) {
+            return (orderbook.hasAsks() && price >= orderbook.getBestAsk()) || (impliedPrice >= 0 && price >= impliedPrice);
+        }
+        return (orderbook.hasBids() && price <= orderbook.getBestBid()) || (impliedPrice >= 0 && price <= impliedPrice);
+    }
+
+    // Opposite-side depth within the price and level bounds, outright and implied, summed from level totals until
+    // needed is reached
+    private long getAvailableAmount(int side, long worstPrice, int maxLevels, long needed) {
+        long available = 0;
+        int numLevels = 0;
+        long price = getNextOutright(side, side == Order.BUY ? 0 : Long.MAX_VALUE);
+        long impliedPrice = getNextImplied(side, side == Order.BUY ? 0 : Long.MAX_VALUE);
+        while (available < needed && numLevels < maxLevels) {
+            boolean implied = impliedPrice >= 0 && (price < 0 || isBetter(side, impliedPrice, price));
+            long levelPrice = implied ? impliedPrice : price;
+            if (levelPrice < 0 || (side == Order.BUY ? levelPrice > worstPrice : levelPrice < worstPrice)) {
+                break;
+            }
+            if (implied) {
+                available += getImpliedLevel(levelPrice).getTotalAmount();
+                impliedPrice = getNextImplied(side, levelPrice + side);
+            } else {
+                available += orderbook.getLevel(levelPrice).getTotalAmount();
+                price = getNextOutright(side, levelPrice + side);
+            }
+            numLevels++;
+        }
+        return available;
+    }
+
+    // Best outright price a taker on side can trade against, at or beyond from; -1 if none
+    private long getNextOutright(int side, long from) {
+        return side == Order.BUY ? orderbook.getNextAsk(from) : orderbook.getNextBid(from);
+    }
+
+    // Same for liquidity implied by the complement: its bids imply asks here at 1 - price (mint), and its asks
+    // imply bids here at 1 - price (merge)
+    private long getNextImplied(int side, long from) {
+        MatchingEngine complement = getComplement();
+        if (complement == null) {
+            return -1;
+        }
+        long complementFrom = FixedPoint.PRICE_SCALE - Math.max(Math.min(from, FixedPoint.PRICE_SCALE), 0);
+        long complementPrice = side == Order.BUY ? complement.orderbook.getNextBid(complementFrom)
+                : complement.orderbook.getNextAsk(complementFrom);
+        return complementPrice < 0 ? -1 : FixedPoint.PRICE_SCALE - complementPrice;
+    }
+
+    private Level getImpliedLevel(long impliedPrice) {
+        return complement.orderbook.getLevel(FixedPoint.PRICE_SCALE - impliedPrice);
+    }
+
+    // Outright liquidity keeps priority over implied liquidity at the same price
+    private static boolean isBetter(int side, long impliedPrice, long outrightPrice) {
+        return side == Order.BUY ? impliedPrice < outrightPrice : impliedPrice > outrightPrice;
+    }
+
+    // The other outcome of the same event, when both books match continuously. Linked markets are placed on the
+    // same partition, so its book can be read and filled from here.
+    private MatchingEngine getComplement() {
+        if (complement == null && market.getComplementSymbol() != null && matchingEngineMap != null) {
+            complement = matchingEngineMap.get(market.getComplementSymbol());
+        }
+        if (complement == null || batchAuction != null || complement.batchAuction != null) {
+            return null;
+        }
+        return complement;
+    }
+
+    private void matchLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        if (level.getPriority() == Orderbook.QueuePriority.PRO_RATA) {
+            fillLevelProRata(order, updates, level);
+        } else {
+            fillLevel(order, updates, level);
+        }
+    }
+
+    public void fillLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        int makerSlot = level.getFirstOrder();
+        if (makerSlot == OrderStore.NONE) {
+            logger.warn("Maker order is null for level " + level.getPrice());
             return;
         }
-        logger.info("Partially filled maker order " + makerOrder.getId() + " from level " + level.getPrice());
-        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                order.getAmount(), makerOrder, order)));
-        makerOrder.fill(order.getAmount());
-        logger.info("Order amount before fill: " + order.getAmount());
-        order.fill(order.getAmount());
-        logger.info("Order amount after fill: " + order.getAmount());
-        logger.info("Maker order amount after fill: " + makerOrder.getAmount());
-        updates.add(getOrderUpdateJson(makerOrder));
+        long amount = Math.min(order.getAmount(), store.getAmount(makerSlot));
+        updates.addAll(processTrade(newTrade(order, makerSlot, amount)));
+        order.fill(amount);
+        fillMakerOrder(makerSlot, amount, updates);
+    }
+
+    // Splits the taker across every maker at the level in one allocation pass
+    public void fillLevelProRata(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        int numMakers = proRataAllocator.allocate(level, order.getAmount());
+        for (int i = 0; i < numMakers; i++) {
+            long amount = proRataAllocator.getAllocation(i);
+            if (amount > 0) {
+                int makerSlot = proRataAllocator.getSlot(i);
+                updates.addAll(processTrade(newTrade(order, makerSlot, amount)));
+                order.fill(amount);
+                fillMakerOrder(makerSlot, amount, updates);
+            }
+        }
     }
 
     public Set<JSONObject> processLimitOrder(Order order) {
-        logger.info("Processing FIFO limit order: " + order.toString());
-        Set<JSONObject> updates = new HashSet<>();
+        logger.info("Processing " + queuePriority + " limit order: " + order.toString());
+        Set<JSONObject> updates = new LinkedHashSet<>();
         if (order.getSide() == Order.BUY) {
             logger.info("Processing buy limit order " + order.getId() + ", best ask: " + orderbook.getBestAsk());
             // Match orders
             try {
-                while (Orderbook.getIntPrice(order.getPrice()) >= orderbook.getBestAsk()
-                        && order.getAmount() > MIN_TRADE_AMOUNT) {
-                    logger.info("Order price " + order.getPrice() + " to match against best ask price " + orderbook.getBestAsk());
-                    Level currentLevel = orderbook.getLevel(orderbook.getBestAsk());
-                    logger.info("Order amount before fillLevel:" + order.getAmount());
-                    fillLevel(order, updates, currentLevel);
-                    logger.info("Order amount after fillLevel:" + order.getAmount());
-                    Order firstOrder = currentLevel.getFirstOrder();
-                    if (firstOrder != null) {
-                        logger.info("Best order amount after fillLevel: " + currentLevel.getFirstOrder().getAmount());
+                while (order.getAmount() > 0) {
+                    long impliedAsk = getNextImplied(Order.BUY, 0);
+                    if (impliedAsk >= 0 && order.getPrice() >= impliedAsk
+                            && (!orderbook.hasAsks() || isBetter(Order.BUY, impliedAsk, orderbook.getBestAsk()))) {
+                        logger.info("Order price " + order.getPrice() + " to match against implied ask price " + impliedAsk);
+                        matchImpliedLevel(order, updates, getImpliedLevel(impliedAsk));
+                    } else if (orderbook.hasAsks() && order.getPrice() >= orderbook.getBestAsk()) {
+                        logger.info("Order price " + order.getPrice() + " to match against best ask price " + orderbook.getBestAsk());
+                        Level currentLevel = orderbook.getLevel(orderbook.getBestAsk());
+                        matchLevel(order, updates, currentLevel);
                     } else {
-                        logger.info("First order is null");
+                        break;
                     }
                 }
             } catch (Exception e) {
@@ -105,11 +703,11 @@ public class MatchingEngine {
                         + ", stack trace: " + Arrays.toString(e.getStackTrace()));
             }
             // Add remainder to book
-            if (order.getAmount() > MIN_TRADE_AMOUNT) {
+            if (order.getAmount() > 0 && order.getTimeInForce() == Order.TimeInForce.GTC) {
                 logger.info("Adding remainder " + order.getAmount());
                 try {
                     orderbook.addOrder(order);
-                    updates.add(getOrderUpdateJson(order));
+                    addOrderUpdate(updates, order);
                 } catch (Exception e) {
                     logger.warn("Exception adding order " + order.toString() + " to book: " + e.getMessage()
                             + ", stack trace: " + Arrays.toString(e.getStackTrace()));
@@ -119,21 +717,29 @@ public class MatchingEngine {
             logger.info("Processing sell limit order " + order.getId() + ", best bid: " + orderbook.getBestBid());
             // Match orders
             try {
-                while (Orderbook.getIntPrice(order.getPrice()) <= orderbook.getBestBid()
-                        && order.getAmount() > MIN_TRADE_AMOUNT) {
-                    logger.info("Order price " + order.getPrice() + " to match against best bid price " + orderbook.getBestBid());
-                    Level currentLevel = orderbook.getLevel(orderbook.getBestBid());
-                    fillLevel(order, updates, currentLevel);
+                while (order.getAmount() > 0) {
+                    long impliedBid = getNextImplied(Order.SELL, Long.MAX_VALUE);
+                    if (impliedBid >= 0 && order.getPrice() <= impliedBid
+                            && (!orderbook.hasBids() || isBetter(Order.SELL, impliedBid, orderbook.getBestBid()))) {
+                        logger.info("Order price " + order.getPrice() + " to match against implied bid price " + impliedBid);
+                        matchImpliedLevel(order, updates, getImpliedLevel(impliedBid));
+                    } else if (orderbook.hasBids() && order.getPrice() <= orderbook.getBestBid()) {
+                        logger.info("Order price " + order.getPrice() + " to match against best bid price " + orderbook.getBestBid());
+                        Level currentLevel = orderbook.getLevel(orderbook.getBestBid());
+                        matchLevel(order, updates, currentLevel);
+                    } else {
+                        break;
+                    }
                 }
             } catch (Exception e) {
                 logger.warn("Exception while filling order " + order.toString() + ": " + e.getMessage()
                         + ", stack trace: " + Arrays.toString(e.getStackTrace()));
             }
             // Add remainder to book
-            if (Math.abs(order.getAmount()) > MIN_TRADE_AMOUNT) {
+            if (order.getAmount() > 0 && order.getTimeInForce() == Order.TimeInForce.GTC) {
                 try {
                     orderbook.addOrder(order);
-                    updates.add(getOrderUpdateJson(order));
+                    addOrderUpdate(updates, order);
                 } catch (Exception e) {
                     logger.warn("Exception adding order " + order.toString() + " to book: " + e.getMessage()
                             + ", stack trace: " + Arrays.toString(e.getStackTrace()));
@@ -143,152 +749,392 @@ public class MatchingEngine {
         return updates;
     }
 
-    public Set<JSONObject> processLimitProRata(Order order) {
-        logger.info("Processing limit order: " + order.toString());
-        Set<JSONObject> updates = new HashSet<>();
-        if (order.getSide() == Order.BUY) {
-            logger.info("Processing buy limit order " + order.getId() + ", best ask: " + orderbook.getBestAsk());
-            // Match orders
-            while (order.getPrice() >= orderbook.getBestAsk() && order.getAmount() > 0) {
-                logger.info("Order price " + order.getPrice() + " to match against best ask price " + orderbook.getBestAsk());
-                Level currentLevel = orderbook.getLevel(orderbook.getBestAsk());
-                double totalAmount = currentLevel.getTotalAmount();
-                logger.info("Order amount: " + order.getAmount() + ", total amount: " + totalAmount);
-                if (order.getAmount() >= totalAmount) {
-                    // Match with entire level
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                                makerOrder.getAmount(), makerOrder, order)));
-                        makerOrder.fill(makerOrder.getAmount());
-                        order.fill(totalAmount);
-                        updates.add(getOrderUpdateJson(makerOrder));
+    // Sweeps the opposite side in one walk down the ladder. Levels the taker covers completely are consumed
+    // whole using their running totals; the first level it cannot cover is matched in queue order until the taker
+    // is filled, which ends the sweep. Whatever is left when the book, the protection price or the level bound
+    // runs out is not rested.
+    private Set<JSONObject> processMarketOrder(Order order) throws Exception {
+        Set<JSONObject> updates = new LinkedHashSet<>();
+        int side = order.getSide();
+        long worstPrice = getWorstPrice(order);
+        int maxLevels = order.getMaxLevels() > 0 ? order.getMaxLevels() : Integer.MAX_VALUE;
+        int numLevels = 0;
+        long price = getNextOutright(side, side == Order.BUY ? 0 : Long.MAX_VALUE);
+        long impliedPrice = getNextImplied(side, side == Order.BUY ? 0 : Long.MAX_VALUE);
+        while (order.getAmount() > 0 && numLevels < maxLevels) {
+            boolean implied = impliedPrice >= 0 && (price < 0 || isBetter(side, impliedPrice, price));
+            long levelPrice = implied ? impliedPrice : price;
+            if (levelPrice < 0 || (side == Order.BUY ? levelPrice > worstPrice : levelPrice < worstPrice)) {
+                break;
+            }
+            if (implied) {
+                Level level = getImpliedLevel(levelPrice);
+                if (order.getAmount() >= level.getTotalAmount()) {
+                    fillEntireImpliedLevel(order, updates, level);
+                } else {
+                    while (order.getAmount() > 0 && level.getFirstOrder() != OrderStore.NONE) {
+                        matchImpliedLevel(order, updates, level);
                     }
-                    order.setAmount(order.getAmount() - totalAmount);
+                }
+                impliedPrice = getNextImplied(side, levelPrice + side);
+            } else {
+                Level level = orderbook.getLevel(levelPrice);
+                if (order.getAmount() >= level.getTotalAmount()) {
+                    fillEntireLevel(order, updates, level);
                 } else {
-                    logger.info("Processing pro-rata matching");
-                    // Pro-rata matching
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        logger.info("Matching against maker order " + makerOrder.toString());
-                        double amount = order.getAmount() * (makerOrder.getAmount() / totalAmount);
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(), amount, makerOrder,
-                                order)));
-                        makerOrder.fill(amount);
-                        order.fill(amount);
-                        updates.add(getOrderUpdateJson(makerOrder));
+                    while (order.getAmount() > 0 && level.getFirstOrder() != OrderStore.NONE) {
+                        matchLevel(order, updates, level);
                     }
                 }
+                price = getNextOutright(side, levelPrice + side);
             }
-            // Add remainder to book
-            if (order.getAmount() > 0) {
-                logger.info("Adding remainder " + order.getAmount());
-                try {
-                    orderbook.addOrder(order);
-                } catch (Exception e) {
-                    logger.warn("Exception adding order to book: " + e.getMessage());
-                }
+            numLevels++;
+        }
+        if (order.getAmount() > 0) {
+            logger.info("Market order " + order.getId() + " left " + order.getAmount() + " unfilled after "
+                    + numLevels + " levels");
+        }
+        return updates;
+    }
 
+    // Tightest of the order's protection price and its slippage bound from the current opposite best
+    private long getWorstPrice(Order order) {
+        long worstPrice = order.getSide() == Order.BUY ? Long.MAX_VALUE : Long.MIN_VALUE;
+        if (order.getProtectionPrice() > 0) {
+            worstPrice = order.getProtectionPrice();
+        }
+        if (order.getMaxSlippage() > 0) {
+            if (order.getSide() == Order.BUY && orderbook.hasAsks()) {
+                worstPrice = Math.min(worstPrice, orderbook.getBestAsk() + order.getMaxSlippage());
+            } else if (order.getSide() == Order.SELL && orderbook.hasBids()) {
+                worstPrice = Math.max(worstPrice, orderbook.getBestBid() - order.getMaxSlippage());
             }
-        } else if (order.getSide() == Order.SELL) {
-            logger.info("Processing sell limit order " + order.getId() + ", best ask: " + orderbook.getBestAsk());
-            // Match orders
-            while (order.getPrice() <= orderbook.getBestBid() && order.getAmount() > 0) {
-                logger.info("Order price " + order.getPrice() + " to match against best ask price " + orderbook.getBestAsk());
-                Level currentLevel = orderbook.getLevel(orderbook.getBestBid());
-                double totalAmount = currentLevel.getTotalAmount();
-                logger.info("Order amount: " + order.getAmount() + ", total amount: " + totalAmount);
-                if (order.getAmount() >= totalAmount) {
-                    // Match with entire level
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                                makerOrder.getAmount(), makerOrder, order)));
-                        makerOrder.fill(makerOrder.getAmount());
-                        order.fill(totalAmount);
-                        updates.add(getOrderUpdateJson(makerOrder));
+        }
+        return worstPrice;
+    }
+
+    // Market orders join an auction at their protection bound, or at the end of the ladder without one
+    private long getAuctionLimit(Order order) {
+        if (order.getType() == Order.Type.LIMIT) {
+            return order.getPrice();
+        }
+        long maxPrice = FixedPoint.PRICE_SCALE;
+        long tickSize = orderbook.getTickSize();
+        long worstPrice = getWorstPrice(order);
+        if (order.getSide() == Order.BUY) {
+            return Math.min(worstPrice, maxPrice) / tickSize * tickSize;
+        }
+        return (Math.max(worstPrice, 0) + tickSize - 1) / tickSize * tickSize;
+    }
+
+    // End of an auction interval: one pricing pass, one pass of trades at the clearing price, one fill per order.
+    // Unfilled GTC limit orders from the batch then rest; IOC and market remainders expire.
+    public Set<JSONObject> runAuction() throws Exception {
+        Set<JSONObject> updates = new LinkedHashSet<>();
+        if (batchAuction == null) {
+            throw new Exception("Market " + market.getSymbol() + " does not run batch auctions");
+        }
+        // What each batch order holds, so the part that trades or expires can be released afterwards
+        long[] heldAmounts = new long[batchAuction.size()];
+        for (int i = 0; i < heldAmounts.length; i++) {
+            heldAmounts[i] = batchAuction.getOrder(i).getAmount();
+        }
+        // Batch orders whose hold has been settled below
+        int settled = 0;
+        try {
+            if (batchAuction.uncross()) {
+                long price = batchAuction.getClearingPrice();
+                logger.info("Uncrossing " + market.getSymbol() + " at " + price + " for " + batchAuction.getVolume());
+                BatchAuction.Fills buys = batchAuction.getFills(Order.BUY);
+                BatchAuction.Fills sells = batchAuction.getFills(Order.SELL);
+                int buyIndex = 0;
+                int sellIndex = 0;
+                long buyLeft = buys.getAmount(0);
+                long sellLeft = sells.getAmount(0);
+                while (buyIndex < buys.size() && sellIndex < sells.size()) {
+                    long amount = Math.min(buyLeft, sellLeft);
+                    updates.addAll(processTrade(newAuctionTrade(buys, buyIndex, sells, sellIndex, price, amount)));
+                    buyLeft -= amount;
+                    sellLeft -= amount;
+                    if (buyLeft == 0 && ++buyIndex < buys.size()) {
+                        buyLeft = buys.getAmount(buyIndex);
                     }
-                    order.setAmount(order.getAmount() - totalAmount);
-                } else {
-                    logger.info("Processing pro-rata matching");
-                    // Pro-rata matching
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        logger.info("Matching against maker order " + makerOrder.toString());
-                        double amount = order.getAmount() * (makerOrder.getAmount() / totalAmount);
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(), amount, makerOrder,
-                                order)));
-                        makerOrder.fill(amount);
-                        order.fill(amount);
-                        updates.add(getOrderUpdateJson(makerOrder));
+                    if (sellLeft == 0 && ++sellIndex < sells.size()) {
+                        sellLeft = sells.getAmount(sellIndex);
                     }
                 }
+                applyAuctionFills(buys, updates);
+                applyAuctionFills(sells, updates);
             }
-            // Add remainder to book
-            if (order.getAmount() > 0) {
-                try {
+            for (int i = 0; i < batchAuction.size(); i++) {
+                Order order = batchAuction.getOrder(i);
+                if (order.getAmount() > 0 && order.getType() == Order.Type.LIMIT
+                        && order.getTimeInForce() == Order.TimeInForce.GTC) {
                     orderbook.addOrder(order);
-                    updates.add(getOrderUpdateJson(order));
-                } catch (Exception e) {
-                    logger.warn("Exception adding order to book: " + e.getMessage());
+                } else if (order.getAmount() > 0) {
+                    order.setAmount(0);
                 }
+                releaseOrder(order.getAccount(), order.getSide(), batchAuction.getLimitPrice(i),
+                        heldAmounts[i] - order.getAmount());
+                settled = i + 1;
+                addOrderUpdate(updates, order);
+            }
+        } finally {
+            // If the uncross failed part way, the orders not settled yet leave with the batch: release all they hold
+            for (int i = settled; i < heldAmounts.length; i++) {
+                Order order = batchAuction.getOrder(i);
+                releaseOrder(order.getAccount(), order.getSide(), batchAuction.getLimitPrice(i), heldAmounts[i]);
+                order.setAmount(0);
+                addOrderUpdate(updates, order);
             }
+            batchAuction.clear();
         }
+        refreshMark();
+        publishLevelChanges();
         return updates;
     }
 
-    private Set<JSONObject> processMarketOrder(Order order) {
-        Set<JSONObject> updates = new HashSet<>();
-        if (order.getSide() == Order.BUY) {
-            // Match orders
-            while (order.getAmount() > 0) {
-                Level currentLevel = orderbook.getLevel(orderbook.getBestAsk());
-                double totalAmount = currentLevel.getTotalAmount();
-                if (totalAmount == 0) {
-                    break;
-                }
-                if (order.getAmount() >= totalAmount) {
-                    // Match with entire level
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                                makerOrder.getAmount(), makerOrder, order)));
-                        makerOrder.fill(makerOrder.getAmount());
-                    }
-                    order.setAmount(order.getAmount() - totalAmount);
-                } else {
-                    // Pro-rata matching
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        double amount = order.getAmount() / totalAmount;
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(), amount, makerOrder,
-                                order)));
-                        makerOrder.fill(amount);
-                    }
-                }
+    // There is no aggressor in an auction, so the later of the two orders is recorded as the taker
+    private Trade newAuctionTrade(BatchAuction.Fills buys, int buyIndex, BatchAuction.Fills sells, int sellIndex,
+                                  long price, long amount) {
+        boolean buyerTakes = buys.getSequence(buyIndex) > sells.getSequence(sellIndex);
+        BatchAuction.Fills makers = buyerTakes ? sells : buys;
+        BatchAuction.Fills takers = buyerTakes ? buys : sells;
+        int makerIndex = buyerTakes ? sellIndex : buyIndex;
+        int takerIndex = buyerTakes ? buyIndex : sellIndex;
+        return new Trade(idGenerator.next(), market, buyerTakes ? Order.BUY : Order.SELL, price, amount,
+                makers.getId(makerIndex), makers.getAccount(makerIndex),
+                takers.getId(takerIndex), takers.getAccount(takerIndex));
+    }
+
+    // Resting orders are filled through the book once each; batch orders are settled by runAuction afterwards
+    private void applyAuctionFills(BatchAuction.Fills fills, Set<JSONObject> updates) throws Exception {
+        for (int i = 0; i < fills.size(); i++) {
+            if (fills.getSlot(i) != OrderStore.NONE) {
+                fillMakerOrder(fills.getSlot(i), fills.getAmount(i), updates);
+            } else {
+                fills.getOrder(i).fill(fills.getAmount(i));
             }
-        } else if (order.getSide() == Order.SELL) {
-            // Match orders
-            while (order.getAmount() > 0) {
-                Level currentLevel = orderbook.getLevel(orderbook.getBestBid());
-                double totalAmount = currentLevel.getTotalAmount();
-                if (totalAmount == 0) {
-                    break;
-                }
-                if (order.getAmount() >= totalAmount) {
-                    // Match with entire level
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(),
-                                makerOrder.getAmount(), makerOrder, order)));
-                        makerOrder.fill(makerOrder.getAmount());
-                    }
-                    order.setAmount(order.getAmount() - totalAmount);
-                } else {
-                    // Pro-rata matching
-                    for (Order makerOrder : currentLevel.getOrders()) {
-                        double amount = order.getAmount() / totalAmount;
-                        updates.addAll(processTrade(new Trade(market, order.getSide(), makerOrder.getPrice(), amount, makerOrder,
-                                order)));
-                        makerOrder.fill(amount);
-                    }
+        }
+    }
+
+    // Fills every maker at the level completely; the caller has checked the taker covers the level total
+    private void fillEntireLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        level.forEachOrder(makerSlot -> {
+            long amount = store.getAmount(makerSlot);
+            updates.addAll(processTrade(newTrade(order, makerSlot, amount)));
+            order.fill(amount);
+            fillMakerOrder(makerSlot, amount, updates);
+        });
+    }
+
+    private void matchImpliedLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        if (level.getPriority() == Orderbook.QueuePriority.PRO_RATA) {
+            int numMakers = complement.proRataAllocator.allocate(level, order.getAmount());
+            for (int i = 0; i < numMakers; i++) {
+                long amount = complement.proRataAllocator.getAllocation(i);
+                if (amount > 0) {
+                    fillImplied(order, complement.proRataAllocator.getSlot(i), amount, updates);
                 }
             }
+        } else {
+            int makerSlot = level.getFirstOrder();
+            fillImplied(order, makerSlot, Math.min(order.getAmount(), complement.store.getAmount(makerSlot)), updates);
+        }
+    }
+
+    private void fillEntireImpliedLevel(Order order, Set<JSONObject> updates, Level level) throws Exception {
+        level.forEachOrder(makerSlot -> fillImplied(order, makerSlot, complement.store.getAmount(makerSlot), updates));
+    }
+
+    // Fills the taker against a resting order in the complement book. Both do the same thing in their own market,
+    // at prices adding up to 1: two buys mint a new pair, two sells merge one. Each market records its own trade.
+    private void fillImplied(Order order, int makerSlot, long amount, Set<JSONObject> updates) throws Exception {
+        OrderStore makerStore = complement.store;
+        long makerPrice = makerStore.getPrice(makerSlot);
+        long price = FixedPoint.PRICE_SCALE - makerPrice;
+        long makerOrderId = makerStore.getId(makerSlot);
+        Account makerAccount = makerStore.getAccount(makerSlot);
+        Trade trade = new Trade(idGenerator.next(), market, order.getSide(), price, amount,
+                makerOrderId, makerAccount, order.getId(), order.getAccount());
+        Trade complementTrade = new Trade(complement.idGenerator.next(), complement.market, order.getSide(), makerPrice,
+                amount, makerOrderId, makerAccount, order.getId(), order.getAccount());
+        logger.info("Processing implied trade: " + trade.toString() + " against " + complementTrade.toString());
+        updateAccount(order.getAccount(), amount, price, order.getSide());
+        complement.updateAccount(makerAccount, amount, makerPrice, order.getSide());
+        updates.add(getNewTradeJson(trade));
+        updates.add(getNewTradeJson(complementTrade));
+        persistTrade(trade);
+        complement.persistTrade(complementTrade);
+        order.fill(amount);
+        complement.fillMakerOrder(makerSlot, amount, updates);
+    }
+
+    // Runs after every change to the book
+    private void refreshTopOfBook(Set<JSONObject> updates) {
+        refreshImpliedQuotes(updates);
+        refreshMark();
+        publishLevelChanges();
+        if (getComplement() != null) {
+            complement.refreshMark();
+            complement.publishLevelChanges();
+        }
+    }
+
+    // One delta per command for the levels it changed, sent only to the symbol's subscribers
+    private void publishLevelChanges() {
+        if (marketDataPublisher == null || marketDataPublisher.getNumSubscribers(market.getSymbol()) == 0) {
+            orderbook.skipLevelChanges();
+            return;
+        }
+        L2Delta delta = orderbook.drainLevelChanges();
+        if (delta != null) {
+            marketDataPublisher.publishDelta(delta);
+        }
+    }
+
+    // Mid of the outright top of book, or its one side. A move only touches the accounts holding the market.
+    private void refreshMark() {
+        long mark;
+        if (orderbook.hasBids() && orderbook.hasAsks()) {
+            mark = (orderbook.getBestBid() + orderbook.getBestAsk()) / 2;
+        } else if (orderbook.hasBids()) {
+            mark = orderbook.getBestBid();
+        } else if (orderbook.hasAsks()) {
+            mark = orderbook.getBestAsk();
+        } else {
+            return;
+        }
+        if (mark == markPrice) {
+            return;
+        }
+        markPrice = mark;
+        for (int i = 0; i < numHolders; i++) {
+            holders[i].setMark(mark);
+            holders[i].getAccount().markPnlChanged();
+        }
+    }
+
+    public long getMarkPrice() {
+        return markPrice;
+    }
+
+    private void trackPosition(Position position) {
+        if (!position.isTracked()) {
+            position.setTracked(true);
+            positions.add(position);
+        }
+    }
+
+    // Keeps the holder list to accounts with an open position; removal swaps in the last holder
+    private void updateHolders(Position position) {
+        if (position.getQuantity() != 0 && position.getHolderIndex() < 0) {
+            if (numHolders == holders.length) {
+                holders = Arrays.copyOf(holders, numHolders * 2);
+            }
+            position.setHolderIndex(numHolders);
+            holders[numHolders++] = position;
+        } else if (position.getQuantity() == 0 && position.getHolderIndex() >= 0) {
+            int index = position.getHolderIndex();
+            Position last = holders[--numHolders];
+            holders[index] = last;
+            last.setHolderIndex(index);
+            holders[numHolders] = null;
+            position.setHolderIndex(-1);
+        }
+    }
+
+    // Implied quotes only depend on the top level of each side of the complement book, so refreshing both
+    // directions after an event is constant time. A change is published as an impliedQuote message.
+    private void refreshImpliedQuotes(Set<JSONObject> updates) {
+        JSONObject quote = refreshImpliedQuote();
+        if (quote != null) {
+            updates.add(quote);
+        }
+        if (getComplement() != null) {
+            quote = complement.refreshImpliedQuote();
+            if (quote != null) {
+                updates.add(quote);
+            }
+        }
+    }
+
+    private JSONObject refreshImpliedQuote() {
+        long bid = getNextImplied(Order.SELL, Long.MAX_VALUE);
+        long ask = getNextImplied(Order.BUY, 0);
+        long bidAmount = bid >= 0 ? getImpliedLevel(bid).getTotalAmount() : 0;
+        long askAmount = ask >= 0 ? getImpliedLevel(ask).getTotalAmount() : 0;
+        if (bid == impliedBid && ask == impliedAsk && bidAmount == impliedBidAmount && askAmount == impliedAskAmount) {
+            return null;
+        }
+        impliedBid = bid;
+        impliedBidAmount = bidAmount;
+        impliedAsk = ask;
+        impliedAskAmount = askAmount;
+        JSONObject quoteJson = new JSONObject();
+        quoteJson.put("symbol", market.getSymbol());
+        quoteJson.put("bid", bid >= 0 ? FixedPoint.fromPrice(bid) : null);
+        quoteJson.put("bidAmount", FixedPoint.fromLots(bidAmount));
+        quoteJson.put("ask", ask >= 0 ? FixedPoint.fromPrice(ask) : null);
+        quoteJson.put("askAmount", FixedPoint.fromLots(askAmount));
+        JSONObject updateJson = new JSONObject();
+        updateJson.put("messageType", "impliedQuote");
+        updateJson.put("content", quoteJson.toString());
+        return updateJson;
+    }
+
+    public long getImpliedBid() {
+        return impliedBid;
+    }
+
+    public long getImpliedBidAmount() {
+        return impliedBidAmount;
+    }
+
+    public long getImpliedAsk() {
+        return impliedAsk;
+    }
+
+    public long getImpliedAskAmount() {
+        return impliedAskAmount;
+    }
+
+    private Trade newTrade(Order order, int makerSlot, long amount) {
+        return new Trade(idGenerator.next(), market, order.getSide(), store.getPrice(makerSlot), amount,
+                store.getId(makerSlot), store.getAccount(makerSlot), order.getId(), order.getAccount());
+    }
+
+    // Fills a resting order through the book so the level aggregates stay current, and releases it once empty
+    private void fillMakerOrder(int makerSlot, long amount, Set<JSONObject> updates) throws Exception {
+        releaseOrder(store.getAccount(makerSlot), store.getSide(makerSlot), store.getPrice(makerSlot), amount);
+        orderbook.fillOrder(makerSlot, amount);
+        addOrderUpdate(updates, makerSlot);
+        if (store.getAmount(makerSlot) == 0) {
+            orderbook.removeOrder(makerSlot);
+        }
+    }
+
+    // Publishes the order's new state and queues it for persistence
+    private void addOrderUpdate(Set<JSONObject> updates, Order order) {
+        updates.add(getOrderUpdateJson(order));
+        if (databaseManager != null) {
+            databaseManager.addOrderUpdate(order);
+        }
+    }
+
+    private void addOrderUpdate(Set<JSONObject> updates, int slot) {
+        updates.add(getOrderUpdateJson(slot));
+        if (databaseManager != null) {
+            databaseManager.addOrderUpdate(store.getId(slot), store.getAccount(slot).getUsername(), market.getSymbol(),
+                    store.getType(slot), store.getPrice(slot), store.getSide(slot) * store.getAmount(slot),
+                    store.getTimestamp(slot));
+        }
+    }
+
+    private void persistTrade(Trade trade) {
+        if (databaseManager != null) {
+            databaseManager.addTrade(trade);
         }
-        return updates;
     }
 
     private JSONObject getOrderUpdateJson(Order order) {
@@ -298,6 +1144,21 @@ public class MatchingEngine {
         return orderJson;
     }
 
+    private JSONObject getOrderUpdateJson(int slot) {
+        JSONObject orderJson = new JSONObject();
+        orderJson.put("messageType", "orderUpdate");
+        orderJson.put("content", store.toJsonString(slot, market.getSymbol()));
+        return orderJson;
+    }
+
+    private JSONObject getOrderRejectJson(Order order, String reason) {
+        JSONObject orderJson = new JSONObject();
+        orderJson.put("messageType", "orderRejected");
+        orderJson.put("content", order.toString());
+        orderJson.put("reason", reason);
+        return orderJson;
+    }
+
     private JSONObject getNewTradeJson(Trade trade) {
         JSONObject orderJson = new JSONObject();
         orderJson.put("messageType", "newTrade");
@@ -305,61 +1166,150 @@ public class MatchingEngine {
         return orderJson;
     }
 
-    private Set<JSONObject> cancelOrder(Order order) throws Exception {
-        Set<JSONObject> updates = new HashSet<>();
-        orderbook.removeOrder(order.getId(), order.getPrice(), order.getSide());
+    public Set<JSONObject> cancelOrder(long id, String username) throws Exception {
+        Set<JSONObject> updates = new LinkedHashSet<>();
+        if (batchAuction != null && batchAuction.get(id) != null) {
+            checkOwner(batchAuction.get(id).getAccount(), id, username);
+            long limitPrice = batchAuction.getLimitPrice(id);
+            Order order = batchAuction.remove(id);
+            releaseOrder(order.getAccount(), order.getSide(), limitPrice, order.getAmount());
+            order.setAmount(0);
+            addOrderUpdate(updates, order);
+            return updates;
+        }
+        int slot = getOwnedSlot(id, username);
+        releaseOrder(store.getAccount(slot), store.getSide(slot), store.getPrice(slot), store.getAmount(slot));
+        Order order = orderbook.removeOrder(id);
         order.setAmount(0);
-        updates.add(getOrderUpdateJson(order));
+        addOrderUpdate(updates, order);
+        refreshTopOfBook(updates);
         return updates;
     }
 
+    // A size decrease at the same price is applied in place and keeps queue priority. Any other change is an
+    // atomic cancel-replace: the order keeps its id but re-enters matching with a new sequence number.
+    public Set<JSONObject> amendOrder(long id, long newPrice, long newAmount, String username) throws Exception {
+        return amendOrder(id, newPrice, newAmount, username, 0);
+    }
+
+    public Set<JSONObject> amendOrder(long id, long newPrice, long newAmount, String username, long commandSequence)
+            throws Exception {
+        if (batchAuction != null && batchAuction.get(id) != null) {
+            return amendPendingOrder(id, newPrice, newAmount, username, commandSequence);
+        }
+        int slot = getOwnedSlot(id, username);
+        if (newAmount <= 0) {
+            return cancelOrder(id, username);
+        }
+        if (newPrice <= 0) {
+            newPrice = store.getPrice(slot);
+        }
+        Set<JSONObject> updates = new LinkedHashSet<>();
+        if (newPrice == store.getPrice(slot) && newAmount <= store.getAmount(slot)) {
+            releaseOrder(store.getAccount(slot), store.getSide(slot), newPrice, store.getAmount(slot) - newAmount);
+            orderbook.amendOrder(slot, newAmount);
+            addOrderUpdate(updates, slot);
+            refreshTopOfBook(updates);
+            return updates;
+        }
+        if (orderbook.getLevel(newPrice) == null) {
+            throw new Exception("Price " + newPrice + " is not a valid level");
+        }
+        if (store.isPostOnly(slot) && wouldTakeLiquidity(store.getSide(slot), newPrice)) {
+            throw new Exception("Post-only order " + id + " would take liquidity at " + newPrice);
+        }
+        replaceCollateral(store.getAccount(slot), store.getSide(slot), store.getPrice(slot), store.getAmount(slot),
+                newPrice, newAmount, id, commandSequence);
+        Order order = orderbook.removeOrder(id);
+        order.setPrice(newPrice);
+        order.setAmount(newAmount);
+        order.setSequence(++sequenceNumber);
+        if (batchAuction != null) {
+            batchAuction.add(order, newPrice);
+        } else {
+            try {
+                updates.addAll(processLimitOrder(order));
+            } finally {
+                releaseTakerCollateral(order, newPrice, newAmount);
+            }
+            refreshTopOfBook(updates);
+        }
+        return updates;
+    }
+
+    // Orders waiting for the next uncross have no queue position yet, so any change just re-enters the batch
+    private Set<JSONObject> amendPendingOrder(long id, long newPrice, long newAmount, String username,
+                                              long commandSequence) throws Exception {
+        Order order = batchAuction.get(id);
+        checkOwner(order.getAccount(), id, username);
+        if (newAmount <= 0) {
+            return cancelOrder(id, username);
+        }
+        if (newPrice <= 0) {
+            newPrice = order.getPrice();
+        }
+        if (order.getType() == Order.Type.LIMIT && orderbook.getLevel(newPrice) == null) {
+            throw new Exception("Price " + newPrice + " is not a valid level");
+        }
+        // A market order's limit comes from its protection bound, not its price
+        long newLimitPrice = order.getType() == Order.Type.LIMIT ? newPrice : getAuctionLimit(order);
+        replaceCollateral(order.getAccount(), order.getSide(), batchAuction.getLimitPrice(id), order.getAmount(),
+                newLimitPrice, newAmount, id, commandSequence);
+        batchAuction.remove(id);
+        order.setPrice(newPrice);
+        order.setAmount(newAmount);
+        order.setSequence(++sequenceNumber);
+        batchAuction.add(order, newLimitPrice);
+        return new LinkedHashSet<>();
+    }
+
+    // Moves an amended order's exposure to its new price and size, refusing the amend if the increase is not available
+    private void replaceCollateral(Account account, int side, long price, long amount, long newPrice, long newAmount,
+                                   long id, long commandSequence) throws Exception {
+        Exposure exposure = getExposure(account);
+        exposure.remove(side, price, amount);
+        if (!reserveOrder(account, side, newPrice, newAmount, commandSequence)) {
+            exposure.add(side, price, amount);
+            exposures.put(account, exposure);
+            throw new Exception("Insufficient collateral to amend order " + id);
+        }
+    }
+
+    private int getOwnedSlot(long id, String username) throws Exception {
+        int slot = orderbook.getSlot(id);
+        if (slot == OrderStore.NONE) {
+            throw new Exception("Order " + id + " is not resting");
+        }
+        checkOwner(store.getAccount(slot), id, username);
+        return slot;
+    }
+
+    private void checkOwner(Account account, long id, String username) throws Exception {
+        if (username != null && !account.getUsername().equals(username)) {
+            throw new Exception("Order " + id + " does not belong to " + username);
+        }
+    }
+
     public Set<JSONObject> processTrade(Trade trade) {
-        Set<JSONObject> updates = new HashSet<>();
+        Set<JSONObject> updates = new LinkedHashSet<>();
         logger.info("Processing trade: " + trade.toString());
         Account makerAccount = trade.getMakerAccount();
         Account takerAccount = trade.getTakerAccount();
         updateAccount(makerAccount, trade.getAmount(), trade.getPrice(), -trade.getSide());
         updateAccount(takerAccount, trade.getAmount(), trade.getPrice(), trade.getSide());
         updates.add(getNewTradeJson(trade));
+        persistTrade(trade);
         return updates;
     }
 
-    public void updateAccount(Account account, double amount, double price, int side) {
-        double total = price * amount;
-        double position = account.getPosition(market);
-        if (side == Order.BUY) {
-            if (position >= 0) {
-                account.updatePosition(market, amount);
-                account.updateBalance(-total);
-            } else {
-                double filledAmount = 0;
-                //Close out entire position
-                account.updatePosition(market, -position);
-                account.updateBalance(-position * price);
-                filledAmount += Math.abs(position);
-                if (filledAmount < amount) {
-                    // Flip long
-                    account.updatePosition(market, amount - filledAmount);
-                    account.updateBalance(-(amount - filledAmount) * price);
-                }
-            }
-        } else if (side == Order.SELL) {
-            if (position <= 0) {
-                account.updatePosition(market, -amount);
-                account.updateBalance(-total);
-            } else {
-                double filledAmount = 0;
-                // Close out entire position
-                account.updatePosition(market, -position);
-                account.updateBalance(-position * price);
-                filledAmount += -position;
-                if (filledAmount < amount) {
-                    // Flip short
-                    account.updatePosition(market, -(amount - filledAmount));
-                    account.updateBalance(-(amount - filledAmount) * price);
-                }
-            }
-        }
+    // Settles the fill against the account and updates its position and P&L in this market in constant time
+    public void updateAccount(Account account, long amount, long price, int side) {
+        Position position = account.applyFill(market, side * amount, price);
+        position.setMark(markPrice >= 0 ? markPrice : price);
+        trackPosition(position);
+        updateHolders(position);
+        refreshCollateral(account);
+        account.markPnlChanged();
     }
 
 }
@@ -0,0 +1,109 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Order;
+
+// Reusable slot in the Sequencer ring. I/O threads fill it in, the matching thread executes and clears it.
+public class OrderCommand {
+
+    // RISK is never sequenced; it only types the journal records of risk decisions
+    public enum Type {
+        SUBMIT, CANCEL, AMEND, AUCTION, SNAPSHOT, RISK
+    }
+
+    private Type type;
+    private Order order;
+    private long orderId;
+    private long price;
+    private long amount;
+    private String username;
+    private String symbol;
+    private boolean broadcast;
+    private long sequence;
+
+    void setSubmit(Order order, boolean broadcast) {
+        this.type = Type.SUBMIT;
+        this.order = order;
+        this.broadcast = broadcast;
+    }
+
+    void setCancel(long orderId, String username, boolean broadcast) {
+        this.type = Type.CANCEL;
+        this.orderId = orderId;
+        this.username = username;
+        this.broadcast = broadcast;
+    }
+
+    void setAmend(long orderId, long price, long amount, String username, boolean broadcast) {
+        this.type = Type.AMEND;
+        this.orderId = orderId;
+        this.price = price;
+        this.amount = amount;
+        this.username = username;
+        this.broadcast = broadcast;
+    }
+
+    // End of a batch auction interval; sequenced like any other command so replays uncross at the same point
+    void setAuction(String symbol, boolean broadcast) {
+        this.type = Type.AUCTION;
+        this.symbol = symbol;
+        this.broadcast = broadcast;
+    }
+
+    // Sequence barrier for a point-in-time snapshot of every engine
+    void setSnapshot() {
+        this.type = Type.SNAPSHOT;
+        this.broadcast = false;
+    }
+
+    void clear() {
+        type = null;
+        order = null;
+        username = null;
+        symbol = null;
+        orderId = 0;
+        price = 0;
+        amount = 0;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public long getOrderId() {
+        return orderId;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    // Global sequence number stamped by the Sequencer; gives every command a total order across markets
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long newSequence) {
+        sequence = newSequence;
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.L2Delta;
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Market data waiting to be written to one connection. Matching threads only add to it; the publisher's sender
+// thread writes it out while the socket keeps up. It holds at most capacity messages: a book delta for a symbol
+// that already has one queued is merged into it, and a queue that still overflows is cleared and marked stale, so a
+// slow client costs bounded memory and is brought back with a fresh snapshot once its socket drains. Messages that
+// only matter in their latest version, such as an account's P&L, are queued under a key and replaced in place too.
+public class OutboundQueue {
+
+    public enum Result {
+        QUEUED, CONFLATED, DROPPED, OVERFLOWED
+    }
+
+    // Queued delta; replaced in place when a newer one for the same symbol is merged into it
+    private static class DeltaSlot {
+
+        private L2Delta delta;
+
+        private DeltaSlot(L2Delta delta) {
+            this.delta = delta;
+        }
+
+    }
+
+    // Queued keyed frame; replaced in place by a newer frame with the same key
+    private static class FrameSlot {
+
+        private ByteBuffer frame;
+
+        private FrameSlot(ByteBuffer frame) {
+            this.frame = frame;
+        }
+
+    }
+
+    private final WebSocket connection;
+    private final int capacity;
+    // Symbols the connection is subscribed to, resent as snapshots after it goes stale
+    private final Set<String> symbols = ConcurrentHashMap.newKeySet();
+    // Shared frames, FrameSlots and DeltaSlots in publish order
+    private final ArrayDeque<Object> pending;
+    private final Map<String, DeltaSlot> pendingDeltas = new HashMap<>();
+    private final Map<String, FrameSlot> pendingFrames = new HashMap<>();
+    private boolean stale = false;
+    // Set while the queue is waiting for the sender thread, so it is handed over once
+    private boolean scheduled = false;
+
+    public OutboundQueue(WebSocket connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.pending = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    public WebSocket getConnection() {
+        return connection;
+    }
+
+    public Set<String> getSymbols() {
+        return symbols;
+    }
+
+    public synchronized Result offer(ByteBuffer frame) {
+        if (stale) {
+            return Result.DROPPED;
+        }
+        if (pending.size() >= capacity) {
+            overflow();
+            return Result.OVERFLOWED;
+        }
+        pending.add(frame);
+        return Result.QUEUED;
+    }
+
+    public synchronized Result offer(String key, ByteBuffer frame) {
+        if (stale) {
+            return Result.DROPPED;
+        }
+        FrameSlot slot = pendingFrames.get(key);
+        if (slot != null) {
+            slot.frame = frame;
+            return Result.CONFLATED;
+        }
+        if (pending.size() >= capacity) {
+            overflow();
+            return Result.OVERFLOWED;
+        }
+        slot = new FrameSlot(frame);
+        pending.add(slot);
+        pendingFrames.put(key, slot);
+        return Result.QUEUED;
+    }
+
+    public synchronized Result offer(L2Delta delta) {
+        if (stale) {
+            return Result.DROPPED;
+        }
+        DeltaSlot slot = pendingDeltas.get(delta.getSymbol());
+        if (slot != null) {
+            slot.delta = slot.delta.merge(delta);
+            return Result.CONFLATED;
+        }
+        if (pending.size() >= capacity) {
+            overflow();
+            return Result.OVERFLOWED;
+        }
+        slot = new DeltaSlot(delta);
+        pending.add(slot);
+        pendingDeltas.put(delta.getSymbol(), slot);
+        return Result.QUEUED;
+    }
+
+    private void overflow() {
+        pending.clear();
+        pendingDeltas.clear();
+        pendingFrames.clear();
+        stale = true;
+    }
+
+    // True if the caller should hand the queue to the sender thread
+    public synchronized boolean schedule() {
+        if (scheduled || (pending.isEmpty() && !stale)) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    // Moves everything queued into frames, unless the socket has not written out the last batch yet
+    public synchronized boolean drainTo(List<ByteBuffer> frames) {
+        scheduled = false;
+        if (connection.hasBufferedData()) {
+            return false;
+        }
+        for (Object entry : pending) {
+            if (entry instanceof DeltaSlot) {
+                frames.add(((DeltaSlot) entry).delta.toFrame());
+            } else if (entry instanceof FrameSlot) {
+                frames.add(((FrameSlot) entry).frame);
+            } else {
+                frames.add((ByteBuffer) entry);
+            }
+        }
+        pending.clear();
+        pendingDeltas.clear();
+        pendingFrames.clear();
+        return true;
+    }
+
+    // Clears the stale mark once the socket has drained; the caller then queues a snapshot of every symbol
+    public synchronized boolean takeResync() {
+        if (!stale || connection.hasBufferedData()) {
+            return false;
+        }
+        stale = false;
+        return true;
+    }
+
+    public synchronized boolean hasPending() {
+        return stale || !pending.isEmpty();
+    }
+
+    public synchronized int getDepth() {
+        return pending.size();
+    }
+
+    public synchronized boolean isStale() {
+        return stale;
+    }
+
+}
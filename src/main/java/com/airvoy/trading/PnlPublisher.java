@@ -0,0 +1,127 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Position;
+import com.airvoy.model.utils.FixedPoint;
+import com.airvoy.model.utils.Frames;
+import com.airvoy.model.utils.LoggerFactory;
+import org.java_websocket.WebSocket;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Throttled P&L stream per account. Engines keep positions and P&L current on every fill and mark move and only
+// flag a subscribed account as changed; every interval the publisher sends each changed account's positions once,
+// however many fills or marks it saw in between. Updates go through each connection's outbound queue, where an
+// update the connection has not been sent yet is replaced by the newer one for the same account.
+public class PnlPublisher {
+
+    private final static LoggerFactory logger = new LoggerFactory("PnlPublisher");
+
+    private final MarketDataPublisher marketDataPublisher;
+    private final Map<Account, Set<WebSocket>> subscriptions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "pnl-publisher"));
+
+    public PnlPublisher(MarketDataPublisher marketDataPublisher) {
+        this.marketDataPublisher = marketDataPublisher;
+    }
+
+    public void start(long intervalMillis) {
+        timer.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Publishing P&L at most every " + intervalMillis + "ms");
+    }
+
+    public void stop() {
+        timer.shutdown();
+    }
+
+    // Sends the current P&L straight away, then changes as they happen
+    public void subscribe(Account account, WebSocket connection) {
+        subscriptions.compute(account, (key, connections) -> {
+            if (connections == null) {
+                connections = ConcurrentHashMap.newKeySet();
+            }
+            connections.add(connection);
+            key.setPnlSubscribed(true);
+            return connections;
+        });
+        send(account, connection, Frames.encode(getPnlJson(account).toString()));
+    }
+
+    private void send(Account account, WebSocket connection, ByteBuffer frame) {
+        marketDataPublisher.send(connection, "pnl:" + account.getUsername(), frame);
+    }
+
+    // Current P&L of every account the connection follows, after its queue overflowed and was cleared
+    public void resync(WebSocket connection) {
+        for (Map.Entry<Account, Set<WebSocket>> subscription : subscriptions.entrySet()) {
+            if (subscription.getValue().contains(connection)) {
+                send(subscription.getKey(), connection, Frames.encode(getPnlJson(subscription.getKey()).toString()));
+            }
+        }
+    }
+
+    public void unsubscribe(Account account, WebSocket connection) {
+        subscriptions.computeIfPresent(account, (key, connections) -> {
+            connections.remove(connection);
+            if (connections.isEmpty()) {
+                key.setPnlSubscribed(false);
+                return null;
+            }
+            return connections;
+        });
+    }
+
+    // Called when a connection closes
+    public void unsubscribeAll(WebSocket connection) {
+        for (Account account : subscriptions.keySet()) {
+            unsubscribe(account, connection);
+        }
+    }
+
+    private void publish() {
+        try {
+            for (Map.Entry<Account, Set<WebSocket>> subscription : subscriptions.entrySet()) {
+                if (subscription.getKey().takePnlChanged()) {
+                    ByteBuffer frame = Frames.encode(getPnlJson(subscription.getKey()).toString());
+                    for (WebSocket connection : subscription.getValue()) {
+                        send(subscription.getKey(), connection, frame);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Exception publishing P&L: " + e.getMessage());
+        }
+    }
+
+    public static JSONObject getPnlJson(Account account) {
+        long realizedPnl = 0;
+        long unrealizedPnl = 0;
+        JSONArray positionsArray = new JSONArray();
+        for (Position position : account.getPositions()) {
+            realizedPnl += position.getRealizedPnl();
+            unrealizedPnl += position.getUnrealizedPnl();
+            positionsArray.add(position.toJson());
+        }
+        JSONObject contentObject = new JSONObject();
+        contentObject.put("username", account.getUsername());
+        contentObject.put("balance", FixedPoint.fromMicros(account.getBalance()));
+        contentObject.put("available", FixedPoint.fromMicros(account.getAvailable()));
+        contentObject.put("realizedPnl", FixedPoint.fromMicros(realizedPnl));
+        contentObject.put("unrealizedPnl", FixedPoint.fromMicros(unrealizedPnl));
+        contentObject.put("positions", positionsArray);
+        JSONObject pnlJson = new JSONObject();
+        pnlJson.put("messageType", "pnl");
+        pnlJson.put("content", contentObject);
+        return pnlJson;
+    }
+
+}
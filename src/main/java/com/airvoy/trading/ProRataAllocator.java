@@ -0,0 +1,148 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Level;
+import com.airvoy.model.OrderStore;
+import com.airvoy.model.OrderVisitor;
+
+import java.util.Arrays;
+
+// Splits a taker amount across the resting orders of a pro-rata level in whole lots. Each maker gets the floor
+// of its share in a single pass over a primitive array of maker sizes; the few lots left over go to the largest
+// remainders, ties going to the older order. With top-order priority the oldest order at the level is filled
+// first and the rest is split pro-rata. Scratch arrays are reused, so allocating does not create garbage.
+public class ProRataAllocator implements OrderVisitor {
+
+    private final OrderStore store;
+    private boolean topOrderPriority;
+    private int[] slots = new int[64];
+    private long[] sizes = new long[64];
+    private long[] allocations = new long[64];
+    private long[] remainders = new long[64];
+    private int[] heap = new int[64];
+    private int count = 0;
+
+    public ProRataAllocator(OrderStore store, boolean topOrderPriority) {
+        this.store = store;
+        this.topOrderPriority = topOrderPriority;
+    }
+
+    public void setTopOrderPriority(boolean topOrderPriority) {
+        this.topOrderPriority = topOrderPriority;
+    }
+
+    // Returns the number of makers considered; read the results with getSlot/getAllocation
+    public int allocate(Level level, long amount) throws Exception {
+        count = 0;
+        level.forEachOrder(this);
+        long totalAmount = 0;
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            allocations[i] = 0;
+            totalAmount += sizes[i];
+            if (store.getSequence(slots[i]) < store.getSequence(slots[top])) {
+                top = i;
+            }
+        }
+        if (amount >= totalAmount) {
+            System.arraycopy(sizes, 0, allocations, 0, count);
+            return count;
+        }
+        if (topOrderPriority && count > 0) {
+            long topFill = Math.min(amount, sizes[top]);
+            allocations[top] = topFill;
+            amount -= topFill;
+            totalAmount -= topFill;
+        }
+        if (amount == 0) {
+            return count;
+        }
+        long allocated = 0;
+        for (int i = 0; i < count; i++) {
+            long available = sizes[i] - allocations[i];
+            long scaled = Math.multiplyExact(amount, available);
+            long share = scaled / totalAmount;
+            remainders[i] = scaled % totalAmount;
+            allocations[i] += share;
+            allocated += share;
+        }
+        distributeLeftover(amount - allocated);
+        return count;
+    }
+
+    public int getSlot(int index) {
+        return slots[index];
+    }
+
+    public long getAllocation(int index) {
+        return allocations[index];
+    }
+
+    public void visit(int slot) {
+        if (count == slots.length) {
+            grow();
+        }
+        slots[count] = slot;
+        sizes[count] = store.getAmount(slot);
+        count++;
+    }
+
+    // Leftover is fewer lots than there are makers, and no maker's floored share can reach its size, so one
+    // extra lot each for the top remainders always fits
+    private void distributeLeftover(long leftover) {
+        if (leftover <= 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            heap[i] = i;
+        }
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(i, count);
+        }
+        int heapSize = count;
+        while (leftover > 0 && heapSize > 0) {
+            int best = heap[0];
+            allocations[best]++;
+            leftover--;
+            heap[0] = heap[--heapSize];
+            siftDown(0, heapSize);
+        }
+    }
+
+    private void siftDown(int index, int heapSize) {
+        while (true) {
+            int largest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < heapSize && ranksAbove(heap[left], heap[largest])) {
+                largest = left;
+            }
+            if (right < heapSize && ranksAbove(heap[right], heap[largest])) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            int swap = heap[index];
+            heap[index] = heap[largest];
+            heap[largest] = swap;
+            index = largest;
+        }
+    }
+
+    private boolean ranksAbove(int a, int b) {
+        if (remainders[a] != remainders[b]) {
+            return remainders[a] > remainders[b];
+        }
+        return store.getSequence(slots[a]) < store.getSequence(slots[b]);
+    }
+
+    private void grow() {
+        int capacity = slots.length * 2;
+        slots = Arrays.copyOf(slots, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        allocations = Arrays.copyOf(allocations, capacity);
+        remainders = Arrays.copyOf(remainders, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.airvoy.trading;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Outcomes of the pre-trade collateral checks, by the global sequence of the command that made them. Accounts are
+// shared by every partition, so whether an order fits depends on how it interleaves with fills in other partitions
+// and a replay could decide differently. Partitions queue each outcome for the sequencer to journal; a replay
+// applies the journaled outcome instead of checking again, and only checks commands whose outcome never reached the
+// journal.
+public class RiskDecisions {
+
+    // sequence << 1 | accepted
+    private final Queue<Long> pending = new ConcurrentLinkedQueue<>();
+    // Loaded from the journal before a replay and consumed by it
+    private final Map<Long, Boolean> recorded = new ConcurrentHashMap<>();
+
+    public void record(long commandSequence, boolean accepted) {
+        pending.offer(commandSequence << 1 | (accepted ? 1 : 0));
+    }
+
+    // Called by the sequencer thread; null when nothing is waiting
+    public Long poll() {
+        return pending.poll();
+    }
+
+    public static long getSequence(long decision) {
+        return decision >>> 1;
+    }
+
+    public static boolean isAccepted(long decision) {
+        return (decision & 1) == 1;
+    }
+
+    public void putRecorded(long commandSequence, boolean accepted) {
+        recorded.put(commandSequence, accepted);
+    }
+
+    // Null if the command's outcome was not journaled
+    public Boolean takeRecorded(long commandSequence) {
+        return recorded.remove(commandSequence);
+    }
+
+    public void clearRecorded() {
+        recorded.clear();
+    }
+
+    public int getNumRecorded() {
+        return recorded.size();
+    }
+
+}
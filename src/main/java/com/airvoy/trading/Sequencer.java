@@ -0,0 +1,212 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Order;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-writer front end for the matching engines. Any number of I/O threads publish commands into a
+// pre-allocated ring buffer; one matching thread drains it in order, stamps each command with a global sequence
+// number and dispatches it to the partition thread that owns its market. Each engine is only ever touched by its
+// partition thread and sees its commands in global sequence order, so the engines need no locks and replaying the
+// same command sequence gives the same result per market. The one outcome that depends on other partitions, an
+// order's collateral check against its shared account, is journaled by the sequencer as a RISK record.
+public class Sequencer implements Runnable {
+
+    private final static LoggerFactory logger = new LoggerFactory("Sequencer");
+
+    private final static int SPIN_TRIES = 100;
+    private final static int YIELD_TRIES = 100;
+    private final static long PARK_NANOS = 50_000;
+
+    private final ExchangeManager exchangeManager;
+    // Optional; every command is journaled before it is dispatched
+    private final CommandJournal journal;
+    // Collateral check outcomes made by the partitions, journaled as the sequencer gets to them
+    private final RiskDecisions riskDecisions;
+    // Global sequence the ring starts after, so numbering continues across restarts
+    private long baseSequence = 0;
+    private final OrderCommand[] ring;
+    private final int mask;
+    // Highest sequence claimed by a producer
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // Sequence last published into each ring slot
+    private final AtomicLongArray published;
+    // Highest sequence the matching thread has finished with
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private volatile boolean running = false;
+    private Thread matchingThread;
+
+    public Sequencer(ExchangeManager exchangeManager, int capacity) {
+        this(exchangeManager, capacity, null);
+    }
+
+    public Sequencer(ExchangeManager exchangeManager, int capacity, CommandJournal journal) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        this.exchangeManager = exchangeManager;
+        this.journal = journal;
+        this.riskDecisions = exchangeManager.getRiskDecisions();
+        this.ring = new OrderCommand[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new OrderCommand();
+            published.set(i, -1);
+        }
+    }
+
+    public void start() {
+        if (journal != null) {
+            baseSequence = journal.getLastSequence();
+        }
+        running = true;
+        matchingThread = new Thread(this, "matching-thread");
+        matchingThread.start();
+        logger.info("Started sequencer with ring capacity " + ring.length);
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (matchingThread != null) {
+            LockSupport.unpark(matchingThread);
+            matchingThread.join();
+        }
+    }
+
+    public void publishSubmit(Order order, boolean broadcast) {
+        long sequence = claim();
+        ring[(int) (sequence & mask)].setSubmit(order, broadcast);
+        publish(sequence);
+    }
+
+    public void publishCancel(long orderId, String username, boolean broadcast) {
+        long sequence = claim();
+        ring[(int) (sequence & mask)].setCancel(orderId, username, broadcast);
+        publish(sequence);
+    }
+
+    public void publishAmend(long orderId, long price, long amount, String username, boolean broadcast) {
+        long sequence = claim();
+        ring[(int) (sequence & mask)].setAmend(orderId, price, amount, username, broadcast);
+        publish(sequence);
+    }
+
+    public void publishAuction(String symbol, boolean broadcast) {
+        long sequence = claim();
+        ring[(int) (sequence & mask)].setAuction(symbol, broadcast);
+        publish(sequence);
+    }
+
+    public void publishSnapshot() {
+        long sequence = claim();
+        ring[(int) (sequence & mask)].setSnapshot();
+        publish(sequence);
+    }
+
+    // Number of commands published but not yet executed
+    public long getBacklog() {
+        return claimed.get() - consumed.get();
+    }
+
+    // Claims the next sequence, waiting while its ring slot still holds a command the matching thread has not
+    // finished with
+    private long claim() {
+        long sequence = claimed.incrementAndGet();
+        int idle = 0;
+        while (sequence - consumed.get() > ring.length) {
+            idle = idle(idle);
+        }
+        return sequence;
+    }
+
+    private void publish(long sequence) {
+        published.set((int) (sequence & mask), sequence);
+        LockSupport.unpark(matchingThread);
+    }
+
+    @Override
+    public void run() {
+        long next = consumed.get() + 1;
+        int idle = 0;
+        while (running || published.get((int) (next & mask)) == next) {
+            int index = (int) (next & mask);
+            if (published.get(index) != next) {
+                // Out of work: journal what the partitions decided meanwhile and force whatever is left unsynced
+                boolean decided = journalRiskDecisions();
+                if ((idle == 0 || decided) && journal != null) {
+                    journal.sync();
+                }
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            OrderCommand command = ring[index];
+            command.setSequence(baseSequence + next + 1);
+            journalRiskDecisions();
+            journal(command);
+            execute(command);
+            command.clear();
+            consumed.set(next);
+            next++;
+        }
+        journalRiskDecisions();
+        logger.info("Sequencer stopped after " + next + " commands");
+    }
+
+    private void journal(OrderCommand command) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(command);
+        } catch (Exception e) {
+            logger.warn("Could not journal command " + command.getSequence() + ": " + e.getMessage());
+        }
+    }
+
+    // Drained even without a journal, so the queue cannot grow; true if there were any
+    private boolean journalRiskDecisions() {
+        boolean decided = false;
+        Long decision;
+        while ((decision = riskDecisions.poll()) != null) {
+            decided = true;
+            if (journal == null) {
+                continue;
+            }
+            try {
+                journal.appendRisk(RiskDecisions.getSequence(decision), RiskDecisions.isAccepted(decision));
+            } catch (Exception e) {
+                logger.warn("Could not journal risk decision of command " + RiskDecisions.getSequence(decision)
+                        + ": " + e.getMessage());
+            }
+        }
+        return decided;
+    }
+
+    private void execute(OrderCommand command) {
+        try {
+            exchangeManager.dispatch(command);
+        } catch (Exception e) {
+            logger.warn("Exception executing command " + command.getSequence() + ": " + e.getMessage()
+                    + ", stack trace: " + Arrays.toString(e.getStackTrace()));
+        }
+    }
+
+    // Spin, then yield, then park briefly; returns the updated idle count
+    private int idle(int idle) {
+        if (idle < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+}
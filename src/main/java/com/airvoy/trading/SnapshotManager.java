@@ -0,0 +1,309 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.utils.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// Point-in-time snapshots of the exchange. A snapshot is a sequenced command: when the sequencer dispatches it, each
+// partition serialises its engines to a byte array in sequence with their other commands and then waits at a
+// barrier. Balances are shared by every partition, so they are captured once, by the last partition to arrive, while
+// all the others are held at the barrier; the engines and the balances then describe the exchange exactly as of
+// that sequence number. Matching only pauses for that copy; the file is written and synced by a background thread.
+// Startup restores the newest readable snapshot and replays the journal from its sequence.
+//
+// File: int magic, int version, long sequence, int numAccounts, then per account whose balance or realised P&L
+// differs from its seed the username (UTF) and balance, then int numEngines and per engine the symbol (UTF), an int
+// block length and the block written by MatchingEngine.captureSnapshot.
+public class SnapshotManager {
+
+    private final static LoggerFactory logger = new LoggerFactory("SnapshotManager");
+
+    private final static int MAGIC = 0x41565953;
+    private final static int VERSION = 3;
+    private final static String PREFIX = "snapshot-";
+    private final static String SUFFIX = ".bin";
+    private final static int SNAPSHOTS_KEPT = 2;
+    // Partitions give up on a snapshot rather than wait any longer for one that is stuck behind a long queue
+    private final static long BARRIER_TIMEOUT_SECONDS = 30;
+
+    private final ExchangeManager exchangeManager;
+    private final File directory;
+    // Writes snapshot files and publishes the periodic snapshot commands
+    private final ScheduledExecutorService writer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "snapshot-writer"));
+
+    public SnapshotManager(ExchangeManager exchangeManager, String directory) {
+        this.exchangeManager = exchangeManager;
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            logger.warn("Could not create snapshot directory " + directory);
+        }
+    }
+
+    public void start(Sequencer sequencer, long intervalMillis) {
+        writer.scheduleAtFixedRate(sequencer::publishSnapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Taking snapshots every " + intervalMillis + "ms");
+    }
+
+    public void stop() {
+        writer.shutdown();
+    }
+
+    // Called on the sequencer thread when the snapshot command is dispatched
+    public void takeSnapshot(long sequence) {
+        List<MatchingEngine> matchingEngines = new ArrayList<>(exchangeManager.getMatchingEngines());
+        byte[][] blocks = new byte[matchingEngines.size()][];
+        Map<Integer, List<Integer>> partitions = new LinkedHashMap<>();
+        for (int i = 0; i < matchingEngines.size(); i++) {
+            partitions.computeIfAbsent(matchingEngines.get(i).getPartition(), key -> new ArrayList<>()).add(i);
+        }
+        if (partitions.isEmpty()) {
+            // Nothing else can be changing balances
+            captureAndWrite(sequence, matchingEngines, blocks);
+            return;
+        }
+        // The action runs on the last partition to arrive, before any of them is released
+        CyclicBarrier barrier = new CyclicBarrier(partitions.size(),
+                () -> captureAndWrite(sequence, matchingEngines, blocks));
+        for (List<Integer> indexes : partitions.values()) {
+            try {
+                matchingEngines.get(indexes.get(0)).execute(() -> capture(sequence, matchingEngines, blocks, indexes,
+                        barrier));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Skipping snapshot " + sequence + ": partition is not running");
+                // Releases the partitions already waiting
+                barrier.reset();
+                return;
+            }
+        }
+    }
+
+    private void capture(long sequence, List<MatchingEngine> matchingEngines, byte[][] blocks, List<Integer> indexes,
+                         CyclicBarrier barrier) {
+        for (int index : indexes) {
+            MatchingEngine matchingEngine = matchingEngines.get(index);
+            try {
+                blocks[index] = matchingEngine.captureSnapshot();
+            } catch (IOException e) {
+                logger.warn("Could not capture " + matchingEngine.getMarket().getSymbol() + ": " + e.getMessage());
+            }
+        }
+        try {
+            barrier.await(BARRIER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted waiting for snapshot " + sequence);
+        } catch (BrokenBarrierException | TimeoutException e) {
+            logger.warn("Skipping snapshot " + sequence + ": not every partition reached it");
+        }
+    }
+
+    private void captureAndWrite(long sequence, List<MatchingEngine> matchingEngines, byte[][] blocks) {
+        byte[] accountBlock;
+        try {
+            accountBlock = captureAccounts();
+        } catch (IOException e) {
+            logger.warn("Skipping snapshot " + sequence + ": could not capture accounts: " + e.getMessage());
+            return;
+        }
+        writer.execute(() -> write(sequence, matchingEngines, blocks, accountBlock));
+    }
+
+    // Accounts that still hold their seed balance and never realised P&L are restored as they were loaded
+    private byte[] captureAccounts() throws IOException {
+        AccountRegistry accountRegistry = exchangeManager.getAccountRegistry();
+        List<Account> accounts = new ArrayList<>();
+        for (int handle = 0; handle < accountRegistry.size(); handle++) {
+            Account account = accountRegistry.get(handle);
+            if (account.getBalance() != account.getSeedBalance() || account.getRealizedPnl() != 0) {
+                accounts.add(account);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * accounts.size() + 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(accounts.size());
+        for (Account account : accounts) {
+            out.writeUTF(account.getUsername());
+            out.writeLong(account.getBalance());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void write(long sequence, List<MatchingEngine> matchingEngines, byte[][] blocks, byte[] accountBlock) {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] == null) {
+                logger.warn("Skipping snapshot " + sequence + ": "
+                        + matchingEngines.get(i).getMarket().getSymbol() + " was not captured");
+                return;
+            }
+        }
+        File temp = new File(directory, PREFIX + sequence + ".tmp");
+        File target = new File(directory, PREFIX + sequence + SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sequence);
+            out.write(accountBlock);
+            out.writeInt(blocks.length);
+            for (int i = 0; i < blocks.length; i++) {
+                out.writeUTF(matchingEngines.get(i).getMarket().getSymbol());
+                out.writeInt(blocks[i].length);
+                out.write(blocks[i]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            logger.warn("Could not write snapshot " + sequence + ": " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not publish snapshot " + sequence + ": " + e.getMessage());
+            return;
+        }
+        logger.info("Wrote snapshot " + target.getName() + " for " + blocks.length + " engines");
+        deleteOldSnapshots();
+    }
+
+    private void deleteOldSnapshots() {
+        long[] sequences = getSnapshotSequences();
+        for (int i = 0; i < sequences.length - SNAPSHOTS_KEPT; i++) {
+            new File(directory, PREFIX + sequences[i] + SUFFIX).delete();
+        }
+    }
+
+    // Ascending
+    private long[] getSnapshotSequences() {
+        String[] names = directory.list((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                sequences[count] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring snapshot file " + name);
+            }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    // A snapshot file decoded in full, with each engine block already checked against its engine
+    private static class Contents {
+
+        private final long sequence;
+        private final String[] usernames;
+        private final long[] balances;
+        private final List<MatchingEngine> matchingEngines = new ArrayList<>();
+        private final List<MatchingEngine.Snapshot> snapshots = new ArrayList<>();
+
+        private Contents(long sequence, String[] usernames, long[] balances) {
+            this.sequence = sequence;
+            this.usernames = usernames;
+            this.balances = balances;
+        }
+
+    }
+
+    // Restores the newest snapshot that decodes completely and returns its sequence, or 0 if there is none. A file
+    // that cannot be decoded falls back to an older one while every engine is still empty; nothing is restored
+    // until the whole file, accounts and every engine block, has been decoded. A failure after that would leave the
+    // exchange half restored, so it is thrown instead. Must run before the sequencer starts.
+    public long loadLatest() throws Exception {
+        long[] sequences = getSnapshotSequences();
+        for (int i = sequences.length - 1; i >= 0; i--) {
+            File file = new File(directory, PREFIX + sequences[i] + SUFFIX);
+            Contents contents;
+            try {
+                contents = decode(file);
+            } catch (Exception e) {
+                logger.warn("Could not load snapshot " + file.getName() + ": " + e.getMessage());
+                continue;
+            }
+            restore(contents);
+            logger.info("Loaded snapshot " + file.getName() + " with " + contents.usernames.length + " accounts and "
+                    + contents.snapshots.size() + " engines");
+            return contents.sequence;
+        }
+        return 0;
+    }
+
+    private Contents decode(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unrecognised snapshot format");
+        }
+        long sequence = in.readLong();
+        int numAccounts = in.readInt();
+        if (numAccounts < 0 || numAccounts > in.available()) {
+            throw new IOException("Bad account count " + numAccounts);
+        }
+        String[] usernames = new String[numAccounts];
+        long[] balances = new long[numAccounts];
+        for (int i = 0; i < numAccounts; i++) {
+            usernames[i] = in.readUTF();
+            balances[i] = in.readLong();
+        }
+        Contents contents = new Contents(sequence, usernames, balances);
+        int numEngines = in.readInt();
+        for (int i = 0; i < numEngines; i++) {
+            String symbol = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Bad block length " + length + " for " + symbol);
+            }
+            byte[] block = new byte[length];
+            in.readFully(block);
+            MatchingEngine.Snapshot snapshot;
+            try {
+                snapshot = MatchingEngine.decodeSnapshot(new DataInputStream(new ByteArrayInputStream(block)));
+            } catch (IOException e) {
+                throw new IOException("Could not decode " + symbol + ": " + e.getMessage());
+            }
+            MatchingEngine matchingEngine = exchangeManager.getMatchingEngine(symbol);
+            if (matchingEngine == null) {
+                logger.warn("No matching engine for snapshot of " + symbol);
+                continue;
+            }
+            if (contents.matchingEngines.contains(matchingEngine)) {
+                throw new IOException("Two blocks for " + symbol);
+            }
+            matchingEngine.checkSnapshot(snapshot);
+            contents.matchingEngines.add(matchingEngine);
+            contents.snapshots.add(snapshot);
+        }
+        if (in.available() > 0) {
+            throw new IOException("Unexpected data after " + numEngines + " engines");
+        }
+        return contents;
+    }
+
+    private void restore(Contents contents) throws Exception {
+        for (int i = 0; i < contents.snapshots.size(); i++) {
+            contents.matchingEngines.get(i).restoreSnapshot(contents.snapshots.get(i));
+        }
+        AccountRegistry accountRegistry = exchangeManager.getAccountRegistry();
+        for (int i = 0; i < contents.usernames.length; i++) {
+            accountRegistry.restore(contents.usernames[i]).setBalance(contents.balances[i]);
+        }
+    }
+
+}
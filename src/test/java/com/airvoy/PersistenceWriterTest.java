@@ -0,0 +1,134 @@
+package com.airvoy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Runs the writer against an in-memory H2 database with the exchange's schema
+public class PersistenceWriterTest {
+
+    private static int databaseCount = 0;
+
+    private String url;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        url = "jdbc:h2:mem:persistence" + (databaseCount++) + ";DB_CLOSE_DELAY=-1";
+        connection = DriverManager.getConnection(url, "sa", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE OrderUpdates(SequenceNumber BIGINT PRIMARY KEY AUTO_INCREMENT, "
+                    + "Id VARCHAR(100), Username VARCHAR(100), Symbol VARCHAR(5), Type VARCHAR(20), Price DOUBLE, "
+                    + "Amount DOUBLE, OrderTime BIGINT)");
+            statement.execute("CREATE TABLE Orderbooks(Id VARCHAR(100) PRIMARY KEY, Symbol VARCHAR(100), "
+                    + "Username VARCHAR(100), Price DOUBLE, Amount DOUBLE)");
+            statement.execute("CREATE TABLE Trades(Id VARCHAR(100) PRIMARY KEY, Maker VARCHAR(20), "
+                    + "Taker VARCHAR(20), Price DOUBLE, Amount DOUBLE, Fee DOUBLE, TradeTime BIGINT)");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    private PersistenceWriter newWriter(int maxBatch) throws SQLException {
+        return new PersistenceWriter(url, "sa", "", 64, maxBatch, 10);
+    }
+
+    private long count(String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    @Test
+    public void writesOrderUpdatesAndTrades() throws Exception {
+        PersistenceWriter writer = newWriter(100);
+        writer.start();
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(1, "alice", "ABC", "limit", 600, 5000, 1));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(2, "bob", "ABC", "limit", 550, -3000, 2));
+        writer.enqueue(PersistenceWriter.Event.trade(3, "alice", "bob", 600, 2000, 0, 3));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(1, "alice", "ABC", "limit", 600, 3000, 3));
+        writer.stop();
+
+        assertEquals(4, writer.getWritten());
+        assertEquals(0, writer.getFailed());
+        assertEquals(3, count("OrderUpdates"));
+        assertEquals(1, count("Trades"));
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT Id, Username, Price, Amount FROM Orderbooks "
+                     + "ORDER BY Id")) {
+            assertTrue(resultSet.next());
+            assertEquals("1", resultSet.getString("Id"));
+            assertEquals(0.6, resultSet.getDouble("Price"), 1e-9);
+            assertEquals(3.0, resultSet.getDouble("Amount"), 1e-9);
+            assertTrue(resultSet.next());
+            assertEquals("2", resultSet.getString("Id"));
+            assertEquals("bob", resultSet.getString("Username"));
+            assertEquals(-3.0, resultSet.getDouble("Amount"), 1e-9);
+            assertFalse(resultSet.next());
+        }
+    }
+
+    @Test
+    public void deletesClosedOrders() throws Exception {
+        PersistenceWriter writer = newWriter(1);
+        writer.start();
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(1, "alice", "ABC", "limit", 600, 5000, 1));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(2, "bob", "ABC", "limit", 400, 1000, 2));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(1, "alice", "ABC", "limit", 600, 0, 3));
+        // Opened and closed within one batch
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(4, "bob", "ABC", "market", 0, -1000, 4));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(4, "bob", "ABC", "market", 0, 0, 4));
+        writer.stop();
+
+        assertEquals(5, count("OrderUpdates"));
+        assertEquals(1, count("Orderbooks"));
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT Id FROM Orderbooks")) {
+            assertTrue(resultSet.next());
+            assertEquals("2", resultSet.getString("Id"));
+        }
+    }
+
+    @Test
+    public void dropsOnlyEventsThatFail() throws Exception {
+        PersistenceWriter writer = newWriter(100);
+        // Queued before the writer starts, so they go out as one batch
+        writer.enqueue(PersistenceWriter.Event.trade(7, "alice", "bob", 600, 1000, 0, 1));
+        writer.enqueue(PersistenceWriter.Event.orderUpdate(8, "alice", "ABC", "limit", 500, 1000, 2));
+        writer.enqueue(PersistenceWriter.Event.trade(7, "carol", "bob", 610, 2000, 0, 3));
+        writer.enqueue(PersistenceWriter.Event.trade(9, "carol", "bob", 620, 3000, 0, 4));
+        writer.start();
+        writer.stop();
+
+        assertEquals(3, writer.getWritten());
+        assertEquals(1, writer.getFailed());
+        assertEquals(0, writer.getRetries());
+        assertEquals(2, count("Trades"));
+        assertEquals(1, count("OrderUpdates"));
+        assertEquals(1, count("Orderbooks"));
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT Maker FROM Trades WHERE Id='7'")) {
+            assertTrue(resultSet.next());
+            assertEquals("alice", resultSet.getString("Maker"));
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Batch orders are held until the uncross, which trades everything at one price that maximises volume
+public class BatchAuctionTest {
+
+    private Market market;
+    private MatchingEngine engine;
+    private Orderbook orderbook;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    @Before
+    public void setUp() {
+        market = new Market("Test", "TST", 0);
+        market.setAuctionInterval(100);
+        engine = new MatchingEngine(market, null, 0);
+        orderbook = engine.getOrderbook();
+    }
+
+    private Order submit(Account account, int side, long price, long amount) throws Exception {
+        Order order = new Order(market, side, price, amount, account, Order.Type.LIMIT);
+        engine.processOrder(order);
+        return order;
+    }
+
+    private static int countTrades(Set<JSONObject> updates) {
+        int numTrades = 0;
+        for (JSONObject update : updates) {
+            if ("newTrade".equals(update.get("messageType"))) {
+                numTrades++;
+            }
+        }
+        return numTrades;
+    }
+
+    @Test
+    public void ordersAreHeldUntilTheUncross() throws Exception {
+        Account buyer = newAccount("buyer");
+        submit(newAccount("seller"), Order.SELL, 500, 10);
+        submit(buyer, Order.BUY, 600, 10);
+        assertFalse(orderbook.hasBids());
+        assertFalse(orderbook.hasAsks());
+        assertEquals(0, buyer.getPosition(market));
+        engine.runAuction();
+        assertEquals(10, buyer.getPosition(market));
+    }
+
+    @Test
+    public void clearsAtThePriceWithMostVolume() throws Exception {
+        Account resting = newAccount("resting");
+        Account buyer = newAccount("buyer");
+        Account seller = newAccount("seller");
+        submit(resting, Order.SELL, 600, 10);
+        engine.runAuction();
+        assertEquals(600, orderbook.getBestAsk());
+        Order buy = submit(buyer, Order.BUY, 620, 6);
+        submit(seller, Order.SELL, 550, 5);
+        submit(buyer, Order.BUY, 580, 4);
+        // 5 can trade at 0.58 but 6 from 0.6 upwards
+        assertTrue(countTrades(engine.runAuction()) > 0);
+        assertEquals(0, buy.getAmount());
+        assertEquals(-5, seller.getPosition(market));
+        assertEquals(-1, resting.getPosition(market));
+        assertEquals(600, orderbook.getBestAsk());
+        assertEquals(9, orderbook.getLevel(600).getTotalAmount());
+        assertEquals(580, orderbook.getBestBid());
+        assertEquals(4, orderbook.getLevel(580).getTotalAmount());
+    }
+
+    @Test
+    public void clearingPriceMaximisesVolume() throws Exception {
+        BatchAuction batchAuction = new BatchAuction(orderbook, new ProRataAllocator(orderbook.getStore(), false));
+        batchAuction.add(new Order(market, Order.BUY, 620, 6, newAccount("buyer"), Order.Type.LIMIT), 620);
+        batchAuction.add(new Order(market, Order.BUY, 580, 4, newAccount("buyer"), Order.Type.LIMIT), 580);
+        batchAuction.add(new Order(market, Order.SELL, 550, 5, newAccount("seller"), Order.Type.LIMIT), 550);
+        batchAuction.add(new Order(market, Order.SELL, 600, 10, newAccount("seller"), Order.Type.LIMIT), 600);
+        // 5 trades at 0.58; 6 trades from 0.6 to 0.62 with the same imbalance, so the middle is taken
+        assertTrue(batchAuction.uncross());
+        assertEquals(610, batchAuction.getClearingPrice());
+        assertEquals(6, batchAuction.getVolume());
+        assertEquals(6, batchAuction.getFills(Order.BUY).getAmount(0));
+    }
+
+    @Test
+    public void tiedPricesClearInTheMiddle() throws Exception {
+        BatchAuction batchAuction = new BatchAuction(orderbook, new ProRataAllocator(orderbook.getStore(), false));
+        batchAuction.add(new Order(market, Order.BUY, 600, 5, newAccount("buyer"), Order.Type.LIMIT), 600);
+        batchAuction.add(new Order(market, Order.SELL, 400, 5, newAccount("seller"), Order.Type.LIMIT), 400);
+        // Every price from 0.4 to 0.6 trades 5 with nothing left over
+        assertTrue(batchAuction.uncross());
+        assertEquals(500, batchAuction.getClearingPrice());
+        assertEquals(5, batchAuction.getVolume());
+    }
+
+    @Test
+    public void uncrossedOrdersRest() throws Exception {
+        submit(newAccount("buyer"), Order.BUY, 400, 5);
+        submit(newAccount("seller"), Order.SELL, 600, 5);
+        assertEquals(0, countTrades(engine.runAuction()));
+        assertEquals(400, orderbook.getBestBid());
+        assertEquals(600, orderbook.getBestAsk());
+    }
+
+    @Test
+    public void unfilledMarketOrderExpires() throws Exception {
+        Account buyer = newAccount("buyer");
+        submit(newAccount("seller"), Order.SELL, 600, 10);
+        Order order = new Order(market, Order.BUY, 0, 100, buyer, Order.Type.MARKET);
+        engine.processOrder(order);
+        engine.runAuction();
+        assertEquals(10, buyer.getPosition(market));
+        assertEquals(0, order.getAmount());
+        assertFalse(orderbook.hasAsks());
+        assertFalse(orderbook.hasBids());
+    }
+
+}
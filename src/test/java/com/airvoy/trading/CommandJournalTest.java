@@ -0,0 +1,128 @@
+package com.airvoy.trading;
+
+import com.airvoy.DatabaseManager;
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// Replays a journal into a fresh exchange backed by an in-memory H2 database
+public class CommandJournalTest {
+
+    private static int databaseCount = 0;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ExchangeManager> exchangeManagers = new ArrayList<>();
+    private String path;
+    private CommandJournal journal;
+    private Market market;
+    private Account seller;
+    private Account buyer;
+
+    private ExchangeManager newExchangeManager() throws SQLException {
+        String url = "jdbc:h2:mem:journal" + (databaseCount++) + ";DB_CLOSE_DELAY=-1;MODE=MySQL";
+        DatabaseManager databaseManager = new DatabaseManager(url, "sa", "");
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO Users VALUES('seller', 100, 0)");
+            statement.execute("INSERT INTO Users VALUES('buyer', 100, 0)");
+            statement.execute("INSERT INTO Markets VALUES('0', 'Test', 'TST', 0, 0, 'fifo', false, 0, NULL, NULL)");
+        }
+        ExchangeManager exchangeManager = new ExchangeManager(databaseManager, 1);
+        exchangeManagers.add(exchangeManager);
+        return exchangeManager;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        path = folder.newFile("journal.dat").getPath();
+        journal = new CommandJournal(path, 1 << 16, 0);
+        // Only used to build the journaled commands
+        market = new Market("Test", "TST", 0);
+        seller = new Account("seller");
+        buyer = new Account("buyer");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+        for (ExchangeManager exchangeManager : exchangeManagers) {
+            exchangeManager.shutdown();
+        }
+    }
+
+    private long appendSubmit(Account account, int side, long price, long amount) throws Exception {
+        return journal.appendSubmit(new Order(market, side, price, amount, account, Order.Type.LIMIT), false);
+    }
+
+    @Test
+    public void replayRebuildsTheBook() throws Exception {
+        appendSubmit(seller, Order.SELL, 500, 2000);
+        appendSubmit(buyer, Order.BUY, 500, 1000);
+        appendSubmit(buyer, Order.BUY, 400, 1000);
+        ExchangeManager exchangeManager = newExchangeManager();
+        assertEquals(3, journal.replay(exchangeManager, 0));
+        AccountRegistry accounts = exchangeManager.getAccountRegistry();
+        Market replayed = exchangeManager.getMatchingEngine("TST").getMarket();
+        assertEquals(-1000, accounts.get("seller").getPosition(replayed));
+        assertEquals(1000, accounts.get("buyer").getPosition(replayed));
+        Orderbook orderbook = exchangeManager.getMatchingEngine("TST").getOrderbook();
+        assertEquals(1000, orderbook.getLevel(500).getTotalAmount());
+        assertEquals(400, orderbook.getBestBid());
+    }
+
+    @Test
+    public void replayStartsAfterTheGivenSequence() throws Exception {
+        long first = appendSubmit(seller, Order.SELL, 500, 2000);
+        appendSubmit(buyer, Order.BUY, 500, 1000);
+        ExchangeManager exchangeManager = newExchangeManager();
+        assertEquals(1, journal.replay(exchangeManager, first));
+        Orderbook orderbook = exchangeManager.getMatchingEngine("TST").getOrderbook();
+        assertFalse(orderbook.hasAsks());
+        assertEquals(500, orderbook.getBestBid());
+    }
+
+    @Test
+    public void journaledRejectIsReplayed() throws Exception {
+        long sequence = appendSubmit(buyer, Order.BUY, 400, 1000);
+        journal.appendRisk(sequence, false);
+        ExchangeManager exchangeManager = newExchangeManager();
+        journal.replay(exchangeManager, 0);
+        // The order fits the account now, but was rejected when it was first matched
+        assertFalse(exchangeManager.getMatchingEngine("TST").getOrderbook().hasBids());
+        assertEquals(0, exchangeManager.getRiskDecisions().getNumRecorded());
+    }
+
+    @Test
+    public void reopenedJournalAppendsAfterItsLastRecord() throws Exception {
+        appendSubmit(seller, Order.SELL, 500, 2000);
+        long sequence = appendSubmit(buyer, Order.BUY, 400, 1000);
+        journal.appendRisk(sequence, true);
+        journal.close();
+        journal = new CommandJournal(path, 1 << 16, 0);
+        assertEquals(sequence, journal.getLastSequence());
+        assertEquals(3, journal.getNumRecords());
+        assertEquals(sequence + 1, appendSubmit(buyer, Order.BUY, 450, 1000));
+        ExchangeManager exchangeManager = newExchangeManager();
+        assertEquals(3, journal.replay(exchangeManager, 0));
+        assertEquals(450, exchangeManager.getMatchingEngine("TST").getOrderbook().getBestBid());
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Level;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// FIFO levels fill in price priority, then in the order the makers arrived
+public class FifoPriorityTest {
+
+    private Market market;
+    private MatchingEngine engine;
+    private Orderbook orderbook;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    @Before
+    public void setUp() {
+        market = new Market("Test", "TST", 0);
+        engine = new MatchingEngine(market, null, 0);
+        orderbook = engine.getOrderbook();
+    }
+
+    private Order submit(Account account, int side, long price, long amount) throws Exception {
+        Order order = new Order(market, side, price, amount, account, Order.Type.LIMIT);
+        engine.processOrder(order);
+        return order;
+    }
+
+    private long getFirstId(Level level) {
+        return orderbook.getStore().getId(level.getFirstOrder());
+    }
+
+    @Test
+    public void fillsOlderOrdersFirst() throws Exception {
+        Account first = newAccount("first");
+        Account second = newAccount("second");
+        Account third = newAccount("third");
+        submit(first, Order.SELL, 500, 1000);
+        Order secondOrder = submit(second, Order.SELL, 500, 1000);
+        submit(third, Order.SELL, 500, 1000);
+        submit(newAccount("taker"), Order.BUY, 500, 1500);
+        assertEquals(-1000, first.getPosition(market));
+        assertEquals(-500, second.getPosition(market));
+        assertEquals(0, third.getPosition(market));
+        Level level = orderbook.getLevel(500);
+        assertEquals(1500, level.getTotalAmount());
+        assertEquals(2, level.getNumOrders());
+        assertEquals(secondOrder.getId(), getFirstId(level));
+    }
+
+    @Test
+    public void partlyFilledOrderKeepsItsPlace() throws Exception {
+        Order firstOrder = submit(newAccount("first"), Order.BUY, 400, 1000);
+        Order secondOrder = submit(newAccount("second"), Order.BUY, 400, 1000);
+        Account taker = newAccount("taker");
+        submit(taker, Order.SELL, 400, 400);
+        Level level = orderbook.getLevel(400);
+        assertEquals(firstOrder.getId(), getFirstId(level));
+        assertEquals(600, orderbook.getStore().getAmount(level.getFirstOrder()));
+        submit(taker, Order.SELL, 400, 800);
+        assertEquals(1, level.getNumOrders());
+        assertEquals(secondOrder.getId(), getFirstId(level));
+        assertEquals(800, level.getTotalAmount());
+    }
+
+    @Test
+    public void betterPriceFillsBeforeOlderOrder() throws Exception {
+        Account older = newAccount("older");
+        Account better = newAccount("better");
+        submit(older, Order.SELL, 550, 1000);
+        submit(better, Order.SELL, 500, 1000);
+        submit(newAccount("taker"), Order.BUY, 550, 1000);
+        assertEquals(-1000, better.getPosition(market));
+        assertEquals(0, older.getPosition(market));
+        assertEquals(550, orderbook.getBestAsk());
+    }
+
+    @Test
+    public void crossingRemainderRestsBehindExistingOrders() throws Exception {
+        Account maker = newAccount("maker");
+        submit(maker, Order.SELL, 500, 1000);
+        Order resting = submit(maker, Order.BUY, 450, 1000);
+        Order taker = submit(newAccount("taker"), Order.BUY, 500, 1500);
+        assertFalse(orderbook.hasAsks());
+        assertEquals(500, orderbook.getBestBid());
+        assertEquals(500, orderbook.getLevel(500).getTotalAmount());
+        assertEquals(taker.getId(), getFirstId(orderbook.getLevel(500)));
+        assertEquals(resting.getId(), getFirstId(orderbook.getLevel(450)));
+    }
+
+}
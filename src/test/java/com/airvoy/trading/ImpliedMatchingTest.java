@@ -0,0 +1,112 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// Complementary markets imply liquidity in each other: buying both outcomes mints a pair, selling both merges it
+public class ImpliedMatchingTest {
+
+    private Market yesMarket;
+    private Market noMarket;
+    private MatchingEngine yes;
+    private MatchingEngine no;
+    private Account yesTrader;
+    private Account noTrader;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    @Before
+    public void setUp() {
+        yesMarket = new Market("Test", "TST", 0);
+        noMarket = new Market("Test No", "TSTN", 0);
+        yesMarket.setComplementSymbol("TSTN");
+        noMarket.setComplementSymbol("TST");
+        noMarket.setOutcome(Market.Outcomes.SHORT);
+        yes = new MatchingEngine(yesMarket, null, 0);
+        no = new MatchingEngine(noMarket, null, 1);
+        Map<String, MatchingEngine> matchingEngines = new HashMap<>();
+        matchingEngines.put("TST", yes);
+        matchingEngines.put("TSTN", no);
+        yes.setMatchingEnginePointers(matchingEngines);
+        no.setMatchingEnginePointers(matchingEngines);
+        yesTrader = newAccount("yes");
+        noTrader = newAccount("no");
+    }
+
+    @Test
+    public void complementBidImpliesAnAsk() throws Exception {
+        no.processOrder(new Order(noMarket, Order.BUY, 600, 10, noTrader, Order.Type.LIMIT));
+        assertEquals(400, yes.getImpliedAsk());
+        assertEquals(10, yes.getImpliedAskAmount());
+        no.processOrder(new Order(noMarket, Order.SELL, 700, 5, noTrader, Order.Type.LIMIT));
+        assertEquals(300, yes.getImpliedBid());
+        assertEquals(5, yes.getImpliedBidAmount());
+    }
+
+    @Test
+    public void buyAgainstComplementBidMints() throws Exception {
+        no.processOrder(new Order(noMarket, Order.BUY, 600, 10, noTrader, Order.Type.LIMIT));
+        Order order = new Order(yesMarket, Order.BUY, 450, 4, yesTrader, Order.Type.LIMIT);
+        yes.processOrder(order);
+        assertEquals(0, order.getAmount());
+        assertEquals(4, yesTrader.getPosition(yesMarket));
+        assertEquals(4, noTrader.getPosition(noMarket));
+        assertEquals(6, no.getOrderbook().getLevel(600).getTotalAmount());
+        assertEquals(6, yes.getImpliedAskAmount());
+        assertFalse(yes.getOrderbook().hasBids());
+    }
+
+    @Test
+    public void sellAgainstComplementAskMerges() throws Exception {
+        no.processOrder(new Order(noMarket, Order.SELL, 700, 5, noTrader, Order.Type.LIMIT));
+        Order order = new Order(yesMarket, Order.SELL, 300, 3, yesTrader, Order.Type.LIMIT);
+        yes.processOrder(order);
+        assertEquals(0, order.getAmount());
+        assertEquals(-3, yesTrader.getPosition(yesMarket));
+        assertEquals(-3, noTrader.getPosition(noMarket));
+        assertEquals(2, no.getOrderbook().getLevel(700).getTotalAmount());
+        assertFalse(yes.getOrderbook().hasAsks());
+    }
+
+    @Test
+    public void outrightAndImpliedLevelsAreSweptInPriceOrder() throws Exception {
+        Account maker = newAccount("maker");
+        no.processOrder(new Order(noMarket, Order.BUY, 600, 10, noTrader, Order.Type.LIMIT));
+        yes.processOrder(new Order(yesMarket, Order.SELL, 300, 3, maker, Order.Type.LIMIT));
+        Order order = new Order(yesMarket, Order.BUY, 0, 14, yesTrader, Order.Type.MARKET);
+        yes.processOrder(order);
+        assertEquals(1, order.getAmount());
+        assertEquals(-3, maker.getPosition(yesMarket));
+        assertEquals(10, noTrader.getPosition(noMarket));
+        assertFalse(no.getOrderbook().hasBids());
+        assertEquals(-1, yes.getImpliedAsk());
+    }
+
+    @Test
+    public void betterOutrightIsMatchedFirst() throws Exception {
+        Account maker = newAccount("maker");
+        yes.processOrder(new Order(yesMarket, Order.SELL, 350, 5, maker, Order.Type.LIMIT));
+        no.processOrder(new Order(noMarket, Order.BUY, 600, 5, noTrader, Order.Type.LIMIT));
+        Order order = new Order(yesMarket, Order.BUY, 400, 5, yesTrader, Order.Type.LIMIT);
+        yes.processOrder(order);
+        // The outright ask at 0.35 is better than the implied one at 0.4
+        assertEquals(-5, maker.getPosition(yesMarket));
+        assertEquals(0, noTrader.getPosition(noMarket));
+        assertEquals(5, no.getOrderbook().getLevel(600).getTotalAmount());
+    }
+
+}
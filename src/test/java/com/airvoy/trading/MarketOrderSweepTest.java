@@ -0,0 +1,170 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Level;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// Market orders sweep the opposite side in price order and stop at their protection bounds
+public class MarketOrderSweepTest {
+
+    private Market market;
+    private MatchingEngine engine;
+    private Orderbook orderbook;
+    private Account maker;
+    private Account taker;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    @Before
+    public void setUp() {
+        market = new Market("Test", "TST", 0);
+        engine = new MatchingEngine(market, null, 0);
+        orderbook = engine.getOrderbook();
+        maker = newAccount("maker");
+        taker = newAccount("taker");
+    }
+
+    private Order rest(int side, long price, long amount) throws Exception {
+        Order order = new Order(market, side, price, amount, maker, Order.Type.LIMIT);
+        engine.processOrder(order);
+        return order;
+    }
+
+    private Order newMarketOrder(int side, long amount) {
+        return new Order(market, side, 0, amount, taker, Order.Type.MARKET);
+    }
+
+    private long getFirstId(Level level) {
+        return orderbook.getStore().getId(level.getFirstOrder());
+    }
+
+    @Test
+    public void consumesCoveredLevelsWhole() throws Exception {
+        rest(Order.SELL, 500, 1000);
+        rest(Order.SELL, 500, 1000);
+        rest(Order.SELL, 550, 1000);
+        rest(Order.SELL, 600, 1000);
+        Order order = newMarketOrder(Order.BUY, 4000);
+        engine.processOrder(order);
+        assertEquals(0, order.getAmount());
+        assertFalse(orderbook.hasAsks());
+    }
+
+    @Test
+    public void partlyCoveredLevelIsMatchedBeforeWorsePrices() throws Exception {
+        rest(Order.SELL, 500, 1000);
+        Order second = rest(Order.SELL, 500, 1000);
+        rest(Order.SELL, 550, 1000);
+        Order order = newMarketOrder(Order.BUY, 1500);
+        engine.processOrder(order);
+        assertEquals(0, order.getAmount());
+        assertEquals(500, orderbook.getBestAsk());
+        Level level = orderbook.getLevel(500);
+        assertEquals(500, level.getTotalAmount());
+        assertEquals(1, level.getNumOrders());
+        assertEquals(second.getId(), getFirstId(level));
+        assertEquals(1000, orderbook.getLevel(550).getTotalAmount());
+    }
+
+    @Test
+    public void partlyCoveredSellLevelIsMatchedBeforeWorsePrices() throws Exception {
+        rest(Order.BUY, 500, 1000);
+        rest(Order.BUY, 500, 1000);
+        rest(Order.BUY, 450, 1000);
+        Order order = newMarketOrder(Order.SELL, 1200);
+        engine.processOrder(order);
+        assertEquals(0, order.getAmount());
+        assertEquals(500, orderbook.getBestBid());
+        assertEquals(800, orderbook.getLevel(500).getTotalAmount());
+        assertEquals(1000, orderbook.getLevel(450).getTotalAmount());
+    }
+
+    @Test
+    public void partlyCoveredImpliedLevelIsMatchedBeforeWorsePrices() throws Exception {
+        Market complementMarket = new Market("Test No", "TSTN", 0);
+        market.setComplementSymbol("TSTN");
+        complementMarket.setComplementSymbol("TST");
+        complementMarket.setOutcome(Market.Outcomes.SHORT);
+        MatchingEngine complement = new MatchingEngine(complementMarket, null, 1);
+        Map<String, MatchingEngine> matchingEngines = new HashMap<>();
+        matchingEngines.put("TST", engine);
+        matchingEngines.put("TSTN", complement);
+        engine.setMatchingEnginePointers(matchingEngines);
+        complement.setMatchingEnginePointers(matchingEngines);
+        // Bids at 0.5 and 0.45 in the complement imply asks at 0.5 and 0.55 here
+        complement.processOrder(new Order(complementMarket, Order.BUY, 500, 1000, maker, Order.Type.LIMIT));
+        Order second = new Order(complementMarket, Order.BUY, 500, 1000, maker, Order.Type.LIMIT);
+        complement.processOrder(second);
+        complement.processOrder(new Order(complementMarket, Order.BUY, 450, 1000, maker, Order.Type.LIMIT));
+        Order order = newMarketOrder(Order.BUY, 1500);
+        engine.processOrder(order);
+        assertEquals(0, order.getAmount());
+        Orderbook complementBook = complement.getOrderbook();
+        Level level = complementBook.getLevel(500);
+        assertEquals(500, level.getTotalAmount());
+        assertEquals(second.getId(), complementBook.getStore().getId(level.getFirstOrder()));
+        assertEquals(1000, complementBook.getLevel(450).getTotalAmount());
+    }
+
+    @Test
+    public void stopsAtProtectionPrice() throws Exception {
+        rest(Order.SELL, 500, 1000);
+        rest(Order.SELL, 550, 1000);
+        rest(Order.SELL, 600, 1000);
+        Order order = newMarketOrder(Order.BUY, 3000);
+        order.setProtectionPrice(550);
+        engine.processOrder(order);
+        assertEquals(1000, order.getAmount());
+        assertEquals(600, orderbook.getBestAsk());
+        assertEquals(1000, orderbook.getLevel(600).getTotalAmount());
+    }
+
+    @Test
+    public void stopsAtMaxSlippageFromBestPrice() throws Exception {
+        rest(Order.BUY, 500, 1000);
+        rest(Order.BUY, 480, 1000);
+        rest(Order.BUY, 450, 1000);
+        Order order = newMarketOrder(Order.SELL, 3000);
+        order.setMaxSlippage(20);
+        engine.processOrder(order);
+        assertEquals(1000, order.getAmount());
+        assertEquals(450, orderbook.getBestBid());
+    }
+
+    @Test
+    public void stopsAfterMaxLevels() throws Exception {
+        for (long price = 500; price <= 700; price += 50) {
+            rest(Order.SELL, price, 10);
+        }
+        Order order = newMarketOrder(Order.BUY, 1000);
+        order.setMaxLevels(2);
+        engine.processOrder(order);
+        assertEquals(980, order.getAmount());
+        assertEquals(600, orderbook.getBestAsk());
+    }
+
+    @Test
+    public void remainderIsNotRested() throws Exception {
+        rest(Order.SELL, 500, 1000);
+        Order order = newMarketOrder(Order.BUY, 1500);
+        engine.processOrder(order);
+        assertEquals(500, order.getAmount());
+        assertFalse(orderbook.hasAsks());
+        assertFalse(orderbook.hasBids());
+    }
+
+}
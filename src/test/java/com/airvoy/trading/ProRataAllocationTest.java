@@ -0,0 +1,103 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+// Pro-rata levels split a taker by size in whole lots; leftover lots go to the largest remainders, then to the
+// older order
+public class ProRataAllocationTest {
+
+    private Market market;
+    private MatchingEngine engine;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    private void newEngine(boolean topOrderPriority) {
+        market = new Market("Test", "TST", 0);
+        market.setQueuePriority(Orderbook.QueuePriority.PRO_RATA);
+        market.setTopOrderPriority(topOrderPriority);
+        engine = new MatchingEngine(market, null, 0);
+    }
+
+    @Before
+    public void setUp() {
+        newEngine(false);
+    }
+
+    private Account[] restSells(long... amounts) throws Exception {
+        Account[] makers = new Account[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            makers[i] = newAccount("maker" + i);
+            engine.processOrder(new Order(market, Order.SELL, 500, amounts[i], makers[i], Order.Type.LIMIT));
+        }
+        return makers;
+    }
+
+    private void buy(long amount) throws Exception {
+        engine.processOrder(new Order(market, Order.BUY, 500, amount, newAccount("taker"), Order.Type.LIMIT));
+    }
+
+    @Test
+    public void leftoverLotGoesToLargestRemainder() throws Exception {
+        Account[] makers = restSells(5, 3, 2);
+        buy(4);
+        // Shares of 2, 1.2 and 0.8 lots
+        assertEquals(-2, makers[0].getPosition(market));
+        assertEquals(-1, makers[1].getPosition(market));
+        assertEquals(-1, makers[2].getPosition(market));
+        assertEquals(6, engine.getOrderbook().getLevel(500).getTotalAmount());
+    }
+
+    @Test
+    public void equalRemaindersGoToOlderOrders() throws Exception {
+        Account[] makers = restSells(1, 1, 1);
+        buy(2);
+        assertEquals(-1, makers[0].getPosition(market));
+        assertEquals(-1, makers[1].getPosition(market));
+        assertEquals(0, makers[2].getPosition(market));
+    }
+
+    @Test
+    public void allocatesExactlyTheTakerAmount() throws Exception {
+        Account[] makers = restSells(7, 13, 1, 29, 3, 11, 17);
+        buy(23);
+        long filled = 0;
+        for (Account maker : makers) {
+            filled -= maker.getPosition(market);
+        }
+        assertEquals(23, filled);
+        assertEquals(81 - 23, engine.getOrderbook().getLevel(500).getTotalAmount());
+    }
+
+    @Test
+    public void topOrderIsFilledFirst() throws Exception {
+        newEngine(true);
+        Account[] makers = restSells(5, 3, 2);
+        buy(6);
+        assertEquals(-5, makers[0].getPosition(market));
+        assertEquals(-1, makers[1].getPosition(market));
+        assertEquals(0, makers[2].getPosition(market));
+    }
+
+    @Test
+    public void takerCoveringTheLevelFillsEveryMaker() throws Exception {
+        Account[] makers = restSells(5, 3, 2);
+        buy(12);
+        assertEquals(-5, makers[0].getPosition(market));
+        assertEquals(-3, makers[1].getPosition(market));
+        assertEquals(-2, makers[2].getPosition(market));
+        assertEquals(500, engine.getOrderbook().getBestBid());
+        assertEquals(2, engine.getOrderbook().getLevel(500).getTotalAmount());
+    }
+
+}
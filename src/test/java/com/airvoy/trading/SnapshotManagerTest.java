@@ -0,0 +1,185 @@
+package com.airvoy.trading;
+
+import com.airvoy.DatabaseManager;
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Position;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+// Snapshots an exchange spread over several partitions and restores it into a fresh one
+public class SnapshotManagerTest {
+
+    private final static String[] USERNAMES = {"first", "second", "third", "idle"};
+    private final static String[] SYMBOLS = {"AAA", "BBB", "CCC", "DDD", "EEE"};
+
+    private static int databaseCount = 0;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ExchangeManager> exchangeManagers = new ArrayList<>();
+    private final List<SnapshotManager> snapshotManagers = new ArrayList<>();
+    private File directory;
+    private ExchangeManager exchangeManager;
+    private SnapshotManager snapshotManager;
+
+    private ExchangeManager newExchangeManager() throws SQLException {
+        String url = "jdbc:h2:mem:snapshot" + (databaseCount++) + ";DB_CLOSE_DELAY=-1;MODE=MySQL";
+        DatabaseManager databaseManager = new DatabaseManager(url, "sa", "");
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            for (String username : USERNAMES) {
+                statement.execute("INSERT INTO Users VALUES('" + username + "', 100, 0)");
+            }
+            for (int i = 0; i < SYMBOLS.length; i++) {
+                statement.execute("INSERT INTO Markets VALUES('" + i + "', '" + SYMBOLS[i] + "', '" + SYMBOLS[i]
+                        + "', 0, 0, 'fifo', false, 0, NULL, NULL)");
+            }
+        }
+        ExchangeManager newExchangeManager = new ExchangeManager(databaseManager, 4);
+        exchangeManagers.add(newExchangeManager);
+        return newExchangeManager;
+    }
+
+    private SnapshotManager newSnapshotManager(ExchangeManager exchangeManager) {
+        SnapshotManager newSnapshotManager = new SnapshotManager(exchangeManager, directory.getPath());
+        snapshotManagers.add(newSnapshotManager);
+        return newSnapshotManager;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("snapshots");
+        exchangeManager = newExchangeManager();
+        snapshotManager = newSnapshotManager(exchangeManager);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SnapshotManager manager : snapshotManagers) {
+            manager.stop();
+        }
+        for (ExchangeManager manager : exchangeManagers) {
+            manager.shutdown();
+        }
+    }
+
+    // Leaves the first account flat everywhere with realised P&L, the others holding positions and resting orders
+    private long trade() {
+        AccountRegistry accounts = exchangeManager.getAccountRegistry();
+        Account first = accounts.get("first");
+        Account second = accounts.get("second");
+        Account third = accounts.get("third");
+        long sequence = 1;
+        for (MatchingEngine matchingEngine : exchangeManager.getMatchingEngines()) {
+            Market market = matchingEngine.getMarket();
+            exchangeManager.submitOrder(new Order(market, Order.BUY, 500, 2000, first, Order.Type.LIMIT), sequence++,
+                    false);
+            exchangeManager.submitOrder(new Order(market, Order.SELL, 500, 2000, second, Order.Type.LIMIT),
+                    sequence++, false);
+            exchangeManager.submitOrder(new Order(market, Order.BUY, 600, 2000, third, Order.Type.LIMIT), sequence++,
+                    false);
+            exchangeManager.submitOrder(new Order(market, Order.SELL, 600, 2000, first, Order.Type.LIMIT), sequence++,
+                    false);
+            exchangeManager.submitOrder(new Order(market, Order.BUY, 300, 1000, second, Order.Type.LIMIT),
+                    sequence++, false);
+        }
+        return sequence;
+    }
+
+    private File takeSnapshot(long sequence) throws InterruptedException {
+        snapshotManager.takeSnapshot(sequence);
+        File file = new File(directory, "snapshot-" + sequence + ".bin");
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(file.exists());
+        return file;
+    }
+
+    private static String describe(ExchangeManager exchangeManager) {
+        StringBuilder description = new StringBuilder();
+        for (String username : USERNAMES) {
+            Account account = exchangeManager.getAccountRegistry().get(username);
+            description.append(username).append(' ').append(account.getBalance()).append(' ')
+                    .append(account.getAvailable()).append(' ').append(account.getRealizedPnl());
+            for (MatchingEngine matchingEngine : exchangeManager.getMatchingEngines()) {
+                Position position = account.findPosition(matchingEngine.getMarket());
+                if (position != null) {
+                    description.append(' ').append(matchingEngine.getMarket().getSymbol()).append(' ')
+                            .append(position.getQuantity()).append(' ').append(position.getCost()).append(' ')
+                            .append(position.getRealizedPnl());
+                }
+            }
+            description.append('\n');
+        }
+        for (MatchingEngine matchingEngine : exchangeManager.getMatchingEngines()) {
+            description.append(matchingEngine.getMarket().getSymbol()).append(' ')
+                    .append(matchingEngine.getOrderbook().toString()).append('\n');
+        }
+        return description.toString();
+    }
+
+    @Test
+    public void enginesAreSpreadOverPartitions() {
+        Set<Integer> partitions = new HashSet<>();
+        for (MatchingEngine matchingEngine : exchangeManager.getMatchingEngines()) {
+            partitions.add(matchingEngine.getPartition());
+        }
+        assertTrue(partitions.size() > 1);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        long sequence = trade();
+        takeSnapshot(sequence);
+        String before = describe(exchangeManager);
+        assertNotEquals(0, exchangeManager.getAccountRegistry().get("first").getRealizedPnl());
+        ExchangeManager restored = newExchangeManager();
+        assertEquals(sequence, newSnapshotManager(restored).loadLatest());
+        assertEquals(before, describe(restored));
+    }
+
+    @Test
+    public void corruptNewestSnapshotFallsBackToTheOlderOne() throws Exception {
+        long sequence = trade();
+        takeSnapshot(sequence);
+        String before = describe(exchangeManager);
+        Market market = exchangeManager.getMatchingEngines().get(0).getMarket();
+        exchangeManager.submitOrder(new Order(market, Order.BUY, 200, 1000,
+                exchangeManager.getAccountRegistry().get("third"), Order.Type.LIMIT), sequence + 1, false);
+        File newer = takeSnapshot(sequence + 2);
+        byte[] contents = Files.readAllBytes(newer.toPath());
+        Files.write(newer.toPath(), Arrays.copyOf(contents, contents.length - 5));
+        ExchangeManager restored = newExchangeManager();
+        assertEquals(sequence, newSnapshotManager(restored).loadLatest());
+        assertEquals(before, describe(restored));
+    }
+
+    @Test
+    public void emptyDirectoryLoadsNothing() throws Exception {
+        assertEquals(0, snapshotManager.loadLatest());
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.airvoy.trading;
+
+import com.airvoy.model.Account;
+import com.airvoy.model.Market;
+import com.airvoy.model.Order;
+import com.airvoy.model.Orderbook;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+// Immediate-or-cancel, fill-or-kill and post-only orders; a rejected order must leave the book untouched
+public class TimeInForceTest {
+
+    private Market market;
+    private MatchingEngine engine;
+    private Orderbook orderbook;
+    private Account maker;
+    private Account taker;
+
+    private static Account newAccount(String username) {
+        Account account = new Account(username);
+        account.updateBalance(1_000_000_000_000L);
+        return account;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        market = new Market("Test", "TST", 0);
+        engine = new MatchingEngine(market, null, 0);
+        orderbook = engine.getOrderbook();
+        maker = newAccount("maker");
+        taker = newAccount("taker");
+        engine.processOrder(new Order(market, Order.SELL, 500, 1000, maker, Order.Type.LIMIT));
+        engine.processOrder(new Order(market, Order.SELL, 550, 1000, maker, Order.Type.LIMIT));
+    }
+
+    private static String getRejectReason(Set<JSONObject> updates) {
+        for (JSONObject update : updates) {
+            if ("orderRejected".equals(update.get("messageType"))) {
+                return (String) update.get("reason");
+            }
+        }
+        return null;
+    }
+
+    private Order newOrder(long price, long amount, Order.TimeInForce timeInForce, boolean isPostOnly) {
+        Order order = new Order(market, Order.BUY, price, amount, taker, Order.Type.LIMIT);
+        order.setTimeInForce(timeInForce);
+        order.setPostOnly(isPostOnly);
+        return order;
+    }
+
+    @Test
+    public void immediateOrCancelRemainderIsNotRested() throws Exception {
+        Order order = newOrder(500, 1500, Order.TimeInForce.IOC, false);
+        assertNull(getRejectReason(engine.processOrder(order)));
+        assertEquals(1000, taker.getPosition(market));
+        assertFalse(orderbook.hasBids());
+        assertEquals(550, orderbook.getBestAsk());
+    }
+
+    @Test
+    public void fillOrKillFillsWhenDepthIsEnough() throws Exception {
+        Order order = newOrder(550, 2000, Order.TimeInForce.FOK, false);
+        assertNull(getRejectReason(engine.processOrder(order)));
+        assertEquals(0, order.getAmount());
+        assertFalse(orderbook.hasAsks());
+    }
+
+    @Test
+    public void fillOrKillIsRejectedWithoutTouchingTheBook() throws Exception {
+        Order order = newOrder(500, 1500, Order.TimeInForce.FOK, false);
+        assertEquals("Fill-or-kill order cannot be filled completely", getRejectReason(engine.processOrder(order)));
+        assertEquals(0, taker.getPosition(market));
+        assertEquals(1000, orderbook.getLevel(500).getTotalAmount());
+        assertFalse(orderbook.hasBids());
+    }
+
+    @Test
+    public void fillOrKillMarketOrderRespectsMaxLevels() throws Exception {
+        Order order = new Order(market, Order.BUY, 0, 1500, taker, Order.Type.MARKET);
+        order.setTimeInForce(Order.TimeInForce.FOK);
+        order.setMaxLevels(1);
+        assertEquals("Fill-or-kill order cannot be filled completely", getRejectReason(engine.processOrder(order)));
+        assertEquals(500, orderbook.getBestAsk());
+    }
+
+    @Test
+    public void postOnlyIsRejectedWhenItWouldTake() throws Exception {
+        Order order = newOrder(500, 1000, Order.TimeInForce.GTC, true);
+        assertEquals("Post-only order would take liquidity", getRejectReason(engine.processOrder(order)));
+        assertEquals(0, taker.getPosition(market));
+        assertEquals(1000, orderbook.getLevel(500).getTotalAmount());
+        assertFalse(orderbook.hasBids());
+    }
+
+    @Test
+    public void postOnlyRestsBelowTheAsk() throws Exception {
+        Order order = newOrder(490, 1000, Order.TimeInForce.GTC, true);
+        assertNull(getRejectReason(engine.processOrder(order)));
+        assertEquals(490, orderbook.getBestBid());
+    }
+
+    @Test
+    public void postOnlyIsRejectedAgainstImpliedLiquidity() throws Exception {
+        Market complementMarket = new Market("Test No", "TSTN", 0);
+        market.setComplementSymbol("TSTN");
+        complementMarket.setComplementSymbol("TST");
+        complementMarket.setOutcome(Market.Outcomes.SHORT);
+        MatchingEngine complement = new MatchingEngine(complementMarket, null, 1);
+        Map<String, MatchingEngine> matchingEngines = new HashMap<>();
+        matchingEngines.put("TST", engine);
+        matchingEngines.put("TSTN", complement);
+        engine.setMatchingEnginePointers(matchingEngines);
+        complement.setMatchingEnginePointers(matchingEngines);
+        // A bid at 0.6 in the complement implies an ask at 0.4 here
+        complement.processOrder(new Order(complementMarket, Order.BUY, 600, 1000, maker, Order.Type.LIMIT));
+        Order order = newOrder(450, 1000, Order.TimeInForce.GTC, true);
+        assertEquals("Post-only order would take liquidity", getRejectReason(engine.processOrder(order)));
+        assertEquals(1000, complement.getOrderbook().getLevel(600).getTotalAmount());
+    }
+
+}